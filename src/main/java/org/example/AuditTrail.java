@@ -0,0 +1,302 @@
+package org.example;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+// Audit trail of every insert, update and delete made through the application.
+//
+// Mutating code calls record(), which copies the event into a slot of a
+// preallocated ring buffer and returns; no lock and no I/O on the caller's
+// thread. Producers claim sequence numbers with a CAS, fill their slot and
+// publish it by storing the sequence in the slot's marker. One consumer
+// thread reads published slots in order, hands them to the Sink in batches
+// and then frees the slots. The ring never grows: when it is full an event
+// is either dropped and counted, or the producer waits until there is room,
+// depending on the policy.
+public class AuditTrail {
+    private static final int MAX_BATCH = 512;
+
+    private static volatile AuditTrail instance;
+    private static volatile String actor = "system";
+
+    public enum FullPolicy { DROP, BLOCK }
+
+    public record AuditEvent(long sequence, long timeMillis, String actor, String action, String table, long rowId, String detail) {
+    }
+
+    // Where batches of events end up
+    public interface Sink extends Closeable {
+        void write(List<AuditEvent> batch) throws IOException, SQLException;
+    }
+
+    private static final class Slot {
+        long timeMillis;
+        String actor;
+        String action;
+        String table;
+        long rowId;
+        String detail;
+    }
+
+    private final Slot[] slots;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final FullPolicy policy;
+    private final Sink sink;
+
+    // Next sequence to claim / next sequence the consumer will read
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private volatile long maxLag;
+    private volatile long lastBatchMicros;
+    private volatile boolean running = true;
+    private final Thread consumer;
+
+    public AuditTrail(int capacity, FullPolicy policy, Sink sink) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) slots[i] = new Slot();
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) published.set(i, -1);
+        this.mask = capacity - 1;
+        this.policy = policy;
+        this.sink = sink;
+        this.consumer = new Thread(this::consume, "audit-writer");
+        consumer.setDaemon(true);
+    }
+
+    public static AuditTrail start(int capacity, FullPolicy policy, Sink sink) {
+        AuditTrail trail = new AuditTrail(capacity, policy, sink);
+        trail.consumer.start();
+        instance = trail;
+        return trail;
+    }
+
+    public static AuditTrail getInstance() {
+        return instance;
+    }
+
+    // Who the following events are attributed to, e.g. the logged in user
+    public static void setActor(String name) {
+        actor = name;
+    }
+
+    // Publishes an event to the running trail, if any
+    public static void record(String action, String table, long rowId, String detail) {
+        AuditTrail trail = instance;
+        if (trail != null) trail.publish(action, table, rowId, detail);
+    }
+
+    public boolean publish(String action, String table, long rowId, String detail) {
+        long sequence;
+        int spins = 0;
+        while (true) {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                if (policy == FullPolicy.DROP) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                // Spin briefly, then back off so the consumer gets the CPU
+                if (++spins < 100) Thread.onSpinWait();
+                else LockSupport.parkNanos(50_000);
+                continue;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) break;
+        }
+        Slot slot = slots[(int) sequence & mask];
+        slot.timeMillis = System.currentTimeMillis();
+        slot.actor = actor;
+        slot.action = action;
+        slot.table = table;
+        slot.rowId = rowId;
+        slot.detail = detail;
+        // Volatile store: the slot fields above are visible once this is
+        published.set((int) sequence & mask, sequence);
+        return true;
+    }
+
+    private void consume() {
+        List<AuditEvent> batch = new ArrayList<>(MAX_BATCH);
+        long next = consumed;
+        while (running || next < claimed.get()) {
+            while (batch.size() < MAX_BATCH && published.get((int) next & mask) == next) {
+                Slot slot = slots[(int) next & mask];
+                batch.add(new AuditEvent(next, slot.timeMillis, slot.actor, slot.action, slot.table, slot.rowId, slot.detail));
+                next++;
+            }
+            if (batch.isEmpty()) {
+                if (!running && next >= claimed.get()) break;
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+            long lag = claimed.get() - batch.get(0).sequence();
+            if (lag > maxLag) maxLag = lag;
+
+            long start = System.nanoTime();
+            while (true) {
+                try {
+                    sink.write(batch);
+                    break;
+                } catch (IOException | SQLException e) {
+                    // Keep the slots until the sink recovers; producers see a full ring meanwhile
+                    e.printStackTrace();
+                    System.out.println("Error while writing the audit trail, retrying");
+                    LockSupport.parkNanos(1_000_000_000L);
+                }
+            }
+            lastBatchMicros = (System.nanoTime() - start) / 1000;
+            written.addAndGet(batch.size());
+            batch.clear();
+            // Frees the slots for the producers
+            consumed = next;
+        }
+    }
+
+    // Events published but not written yet
+    public long lag() {
+        return claimed.get() - consumed;
+    }
+
+    public String report() {
+        return String.format("Audit: %d written, %d dropped, lag %d (max %d), last batch %d us",
+                written.get(), dropped.get(), lag(), maxLag, lastBatchMicros);
+    }
+
+    // Writes what is still in the ring, then closes the sink. Later record()
+    // calls go nowhere instead of filling a ring nobody drains.
+    public void close() throws IOException {
+        if (instance == this) instance = null;
+        running = false;
+        try {
+            consumer.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sink.close();
+        System.out.println(report());
+    }
+
+    // Batches go to the AUDIT_LOG table over the sink's own connection.
+    // Sequences start again at 0 with every start of the application, so rows
+    // are keyed by an identity column and carry the run they belong to, the
+    // time the sink was opened.
+    public static class TableSink implements Sink {
+        private final Connection connection;
+        private final long runId = System.currentTimeMillis();
+
+        public TableSink(String url) throws SQLException {
+            connection = DriverManager.getConnection(url);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS AUDIT_LOG (" +
+                        "id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+                        "runid BIGINT, " +
+                        "sequence BIGINT, " +
+                        "eventtime TIMESTAMP NOT NULL, " +
+                        "actor VARCHAR(255), " +
+                        "action VARCHAR(32) NOT NULL, " +
+                        "tablename VARCHAR(64), " +
+                        "rowid BIGINT, " +
+                        "detail VARCHAR(1000))");
+                // Logs created before the key existed; existing rows get ids in place
+                stmt.execute("ALTER TABLE AUDIT_LOG ADD COLUMN IF NOT EXISTS id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY");
+                stmt.execute("ALTER TABLE AUDIT_LOG ADD COLUMN IF NOT EXISTS runid BIGINT");
+            }
+            connection.setAutoCommit(false);
+        }
+
+        @Override
+        public void write(List<AuditEvent> batch) throws SQLException {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "INSERT INTO AUDIT_LOG(runid, sequence, eventtime, actor, action, tablename, rowid, detail) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+                for (AuditEvent event : batch) {
+                    stmt.setLong(1, runId);
+                    stmt.setLong(2, event.sequence());
+                    stmt.setTimestamp(3, new Timestamp(event.timeMillis()));
+                    stmt.setString(4, event.actor());
+                    stmt.setString(5, event.action());
+                    stmt.setString(6, event.table());
+                    stmt.setLong(7, event.rowId());
+                    String detail = event.detail();
+                    stmt.setString(8, detail != null && detail.length() > 1000 ? detail.substring(0, 1000) : detail);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    // Batches go to gzip files, one per day and rolled again past maxBytes
+    // of uncompressed text: audit-<date>-<n>.log.gz
+    public static class RollingFileSink implements Sink {
+        private final Path directory;
+        private final long maxBytes;
+        private Writer writer;
+        private LocalDate day;
+        private long bytes;
+
+        public RollingFileSink(Path directory, long maxBytes) throws IOException {
+            this.directory = Files.createDirectories(directory);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(List<AuditEvent> batch) throws IOException {
+            StringBuilder text = new StringBuilder(batch.size() * 96);
+            for (AuditEvent event : batch) {
+                text.append(event.sequence()).append('\t').append(Instant.ofEpochMilli(event.timeMillis())).append('\t')
+                    .append(event.actor()).append('\t').append(event.action()).append('\t')
+                    .append(event.table()).append('\t').append(event.rowId()).append('\t')
+                    .append(event.detail() == null ? "" : event.detail().replace('\n', ' ')).append('\n');
+            }
+            if (writer == null || !LocalDate.now().equals(day) || bytes > maxBytes) roll();
+            writer.write(text.toString());
+            // One gzip flush per batch so a crash loses at most the batch in flight
+            writer.flush();
+            bytes += text.length();
+        }
+
+        private void roll() throws IOException {
+            if (writer != null) writer.close();
+            day = LocalDate.now();
+            bytes = 0;
+            int n = 0;
+            Path file;
+            do {
+                file = directory.resolve("audit-" + day + "-" + n++ + ".log.gz");
+            } while (Files.exists(file));
+            writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file), 64 * 1024, true), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (writer != null) writer.close();
+        }
+    }
+}
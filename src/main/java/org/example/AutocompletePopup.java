@@ -0,0 +1,124 @@
+package org.example;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+
+// Suggestion list under a text field, fed by a PrefixIndex. Typing shows the
+// matches, Up/Down moves through them and Enter or a click puts the chosen
+// label in the field and its id in the field's client property, which is
+// what the form inserts. Typing again clears the chosen id.
+public class AutocompletePopup {
+    private static final int MAX_SUGGESTIONS = 10;
+    private static final String SELECTED_ID = "autocomplete.id";
+
+    private final JTextField field;
+    private final PrefixIndex index;
+    private final DefaultListModel<PrefixIndex.Suggestion> suggestions = new DefaultListModel<>();
+    private final JList<PrefixIndex.Suggestion> list = new JList<>(suggestions);
+    private final JPopupMenu popup = new JPopupMenu();
+    private boolean selecting;
+
+    private AutocompletePopup(JTextField field, PrefixIndex index) {
+        this.field = field;
+        this.index = index;
+
+        list.setFocusable(false);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int i, boolean selected, boolean focus) {
+                return super.getListCellRendererComponent(list, ((PrefixIndex.Suggestion) value).label(), i, selected, focus);
+            }
+        });
+        popup.setFocusable(false);
+        popup.add(new JScrollPane(list));
+
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { edited(); }
+            public void removeUpdate(DocumentEvent e) { edited(); }
+            public void changedUpdate(DocumentEvent e) { }
+        });
+        field.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (!popup.isVisible()) return;
+                int selected = list.getSelectedIndex();
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_DOWN -> list.setSelectedIndex(Math.min(selected + 1, suggestions.size() - 1));
+                    case KeyEvent.VK_UP -> list.setSelectedIndex(Math.max(selected - 1, 0));
+                    case KeyEvent.VK_ENTER -> choose(list.getSelectedValue());
+                    case KeyEvent.VK_ESCAPE -> popup.setVisible(false);
+                    default -> { return; }
+                }
+                e.consume();
+            }
+        });
+        field.addFocusListener(new FocusAdapter() {
+            @Override
+            public void focusLost(FocusEvent e) {
+                popup.setVisible(false);
+            }
+        });
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                choose(list.getSelectedValue());
+            }
+        });
+    }
+
+    public static AutocompletePopup attach(JTextField field, PrefixIndex index) {
+        return new AutocompletePopup(field, index);
+    }
+
+    // Id of the suggestion chosen in the field, or null if the text was typed
+    // and not chosen from the list
+    public static Integer selectedId(JTextField field) {
+        return (Integer) field.getClientProperty(SELECTED_ID);
+    }
+
+    private void edited() {
+        if (selecting) return;
+        field.putClientProperty(SELECTED_ID, null);
+        update();
+    }
+
+    private void update() {
+        if (!field.isShowing()) return;
+        List<PrefixIndex.Suggestion> found = index.suggest(field.getText(), MAX_SUGGESTIONS);
+        suggestions.clear();
+        for (PrefixIndex.Suggestion suggestion : found) suggestions.addElement(suggestion);
+        if (found.isEmpty()) {
+            popup.setVisible(false);
+            return;
+        }
+        list.setSelectedIndex(0);
+        list.setVisibleRowCount(found.size());
+        popup.setPopupSize(field.getWidth(), list.getPreferredScrollableViewportSize().height + 4);
+        popup.show(field, 0, field.getHeight());
+        field.requestFocusInWindow();
+    }
+
+    void choose(PrefixIndex.Suggestion suggestion) {
+        popup.setVisible(false);
+        if (suggestion == null) return;
+        // Document listeners fire synchronously, so the flag keeps the popup
+        // shut and the id in place
+        selecting = true;
+        try {
+            field.setText(suggestion.label());
+        } finally {
+            selecting = false;
+        }
+        field.putClientProperty(SELECTED_ID, suggestion.id());
+    }
+}
@@ -0,0 +1,467 @@
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.*;
+
+// Online backups of the H2 database while the desk keeps working.
+//
+// Every run checkpoints the database and reads the MVStore file itself in
+// fixed-size blocks, hashing each one. Space reuse is off while it reads
+// (the same trick H2's BACKUP TO uses), so the chunks of the checkpoint stay
+// in place and the copy is consistent without stopping other connections.
+// A full backup stores every block; an incremental one stores only blocks
+// whose hash differs from the previous manifest and points at older backup
+// files for the rest. Both the reads of the live file and the writes of
+// deflated blocks go through a byte-rate limiter, so backups do not starve
+// the desk of disk bandwidth. Old backups are pruned down to a number of
+// manifests; block files are deleted once no manifest refers to them.
+//
+// Files in the backup directory, named by timestamp:
+//   backup-<ts>.blk        deflated blocks, back to back
+//   backup-<ts>.manifest   file length, block size and, per block, its
+//                          SHA-256 and location (.blk file, offset, length)
+public class BackupManager {
+    private static final int MAGIC = 0x4C424B50; // "LBKP"
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int FULL_EVERY = 7;
+    // RETENTION_TIME while a backup reads the file, and H2's default to go back
+    // to if a crash left it set
+    private static final int NO_REUSE = Integer.MAX_VALUE;
+    private static final int DEFAULT_RETENTION = 45_000;
+
+    private final String url;
+    private final Path directory;
+    private final long bytesPerSecond;
+    private ScheduledExecutorService scheduler;
+
+    private record BlockRef(byte[] hash, String file, long offset, int length) {
+    }
+
+    private record Manifest(long timestamp, boolean full, long fileLength, List<BlockRef> blocks) {
+    }
+
+    public record BackupReport(String manifest, boolean full, long databaseBytes, int changedBlocks, int totalBlocks,
+                               long storedBytes, long snapshotMillis, long totalMillis,
+                               double probeAvgMillis, double probeMaxMillis) {
+    }
+
+    public BackupManager(String url, Path directory, long bytesPerSecond) throws IOException {
+        this.url = url;
+        this.directory = directory;
+        this.bytesPerSecond = bytesPerSecond;
+        Files.createDirectories(directory);
+    }
+
+    // backup | verify <manifest> | restore <manifest> <target file> | prune [keep]
+    // Only backup touches the database; the others work on the backup files
+    // alone, so they also run while the database is in use or damaged.
+    public static void main(String[] args) throws Exception {
+        String command = args.length > 0 ? args[0] : "backup";
+        String url = command.equals("backup") ? BranchRouter.localUrl() : null;
+        BackupManager manager = new BackupManager(url, Paths.get(System.getProperty("library.backup.dir", "./db/backups")),
+                Long.getLong("library.backup.rate", 20L * 1024 * 1024));
+        switch (command) {
+            case "verify" -> {
+                List<String> problems = manager.verify(manager.manifestPath(args[1]));
+                if (problems.isEmpty()) System.out.println("Backup OK");
+                else problems.forEach(System.out::println);
+            }
+            case "restore" -> manager.restore(manager.manifestPath(args[1]), Paths.get(args[2]));
+            case "prune" -> System.out.println(manager.prune(args.length > 1 ? Integer.parseInt(args[1]) : configuredKeep())
+                    + " backup files deleted");
+            default -> {
+                System.out.println(manager.backup());
+                manager.prune(configuredKeep());
+            }
+        }
+    }
+
+    // Number of manifests kept by prune()
+    public static int configuredKeep() {
+        return Integer.getInteger("library.backup.keep", 14);
+    }
+
+    // A manifest given by path or by its name in the backup directory
+    private Path manifestPath(String name) {
+        Path path = Paths.get(name);
+        return Files.exists(path) ? path : directory.resolve(name);
+    }
+
+    // Backs up every intervalHours, counted from the newest backup on disk, so
+    // a restart neither skips a due backup nor takes an extra one; prunes after each
+    public void startSchedule(long intervalHours, int keep) throws IOException {
+        long intervalMinutes = intervalHours * 60;
+        List<Path> manifests = manifests();
+        long initialDelay = 1;
+        if (!manifests.isEmpty()) {
+            long last = readManifest(manifests.get(manifests.size() - 1)).timestamp();
+            long dueIn = (last + intervalMinutes * 60_000 - System.currentTimeMillis()) / 60_000;
+            initialDelay = Math.max(1, dueIn);
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "backup");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                System.out.println(backup());
+                prune(keep);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Error while backing up the database");
+            }
+        }, initialDelay, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    public synchronized BackupReport backup() throws SQLException, IOException {
+        long started = System.nanoTime();
+        List<Path> manifests = manifests();
+        Manifest previous = manifests.isEmpty() ? null : readManifest(manifests.get(manifests.size() - 1));
+        int sinceFull = 0;
+        for (int i = manifests.size() - 1; i >= 0 && !readManifest(manifests.get(i)).full(); i--) sinceFull++;
+        boolean full = previous == null || sinceFull >= FULL_EVERY - 1;
+
+        long timestamp = System.currentTimeMillis();
+        String blockFile = "backup-" + timestamp + ".blk";
+        List<BlockRef> blocks = new ArrayList<>();
+        long databaseBytes = 0;
+        long stored = 0;
+        int changed = 0;
+        RateLimiter limiter = new RateLimiter(bytesPerSecond);
+
+        // A probe measures what a desk query sees while the file is read
+        LatencyProbe probe = new LatencyProbe(url);
+        probe.start();
+        long snapshotStart = System.nanoTime();
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement stmt = connection.createStatement()) {
+            Path databaseFile = databaseFile(stmt);
+            int retention = retentionTime(stmt);
+            stmt.execute("SET RETENTION_TIME " + NO_REUSE);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (FileChannel in = FileChannel.open(databaseFile, StandardOpenOption.READ);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(directory.resolve(blockFile)))) {
+                stmt.execute("CHECKPOINT SYNC");
+                // Chunks written after the checkpoint land past this length or in
+                // space the checkpoint does not use
+                long length = in.size();
+                byte[] block = new byte[BLOCK_SIZE];
+                int index = 0;
+                int read;
+                while ((read = readBlock(in, (long) index * BLOCK_SIZE, length, block)) > 0) {
+                    limiter.acquire(read);
+                    byte[] hash = sha256(block, read);
+                    databaseBytes += read;
+                    BlockRef old = previous != null && index < previous.blocks().size() ? previous.blocks().get(index) : null;
+                    if (!full && old != null && Arrays.equals(old.hash(), hash) && blockLength(previous, index) == read) {
+                        blocks.add(old);
+                    } else {
+                        byte[] compressed = deflate(deflater, block, read);
+                        limiter.acquire(compressed.length);
+                        out.write(compressed);
+                        blocks.add(new BlockRef(hash, blockFile, stored, compressed.length));
+                        stored += compressed.length;
+                        changed++;
+                    }
+                    index++;
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(directory.resolve(blockFile));
+                throw e;
+            } finally {
+                deflater.end();
+                stmt.execute("SET RETENTION_TIME " + retention);
+            }
+        } finally {
+            probe.stopProbe();
+        }
+        long snapshotMillis = (System.nanoTime() - snapshotStart) / 1_000_000;
+
+        Manifest manifest = new Manifest(timestamp, full, databaseBytes, blocks);
+        Path manifestPath = directory.resolve("backup-" + timestamp + ".manifest");
+        writeManifest(manifestPath, manifest);
+        if (changed == 0) Files.deleteIfExists(directory.resolve(blockFile));
+
+        return new BackupReport(manifestPath.getFileName().toString(), full, databaseBytes, changed, blocks.size(), stored,
+                snapshotMillis, (System.nanoTime() - started) / 1_000_000, probe.averageMillis(), probe.maxMillis());
+    }
+
+    // Keeps the newest keep manifests, deletes the older ones and then every
+    // block file no remaining manifest refers to. Returns the files deleted.
+    public synchronized int prune(int keep) throws IOException {
+        List<Path> manifests = manifests();
+        int deleted = 0;
+        for (int i = 0; i < manifests.size() - Math.max(1, keep); i++) {
+            Files.delete(manifests.get(i));
+            deleted++;
+        }
+        Set<String> referenced = new HashSet<>();
+        for (Path manifest : manifests()) {
+            for (BlockRef block : readManifest(manifest).blocks()) referenced.add(block.file());
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "backup-*.blk")) {
+            for (Path file : files) {
+                if (referenced.contains(file.getFileName().toString())) continue;
+                Files.delete(file);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    // Checks every block a manifest refers to; returns the problems found
+    public List<String> verify(Path manifestPath) throws IOException {
+        List<String> problems = new ArrayList<>();
+        Manifest manifest = readManifest(manifestPath);
+        readBlocks(manifest, (index, data, length) -> {
+        }, problems);
+        return problems;
+    }
+
+    // Rebuilds the database file a manifest describes into target (never the live file)
+    public void restore(Path manifestPath, Path target) throws IOException {
+        Manifest manifest = readManifest(manifestPath);
+        List<String> problems = new ArrayList<>();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            readBlocks(manifest, (index, data, length) -> out.write(data, 0, length), problems);
+        }
+        if (!problems.isEmpty()) {
+            Files.deleteIfExists(temp);
+            throw new IOException("Backup is damaged: " + problems);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Restored " + manifestPath.getFileName() + " to " + target);
+    }
+
+    @FunctionalInterface
+    private interface BlockSink {
+        void accept(int index, byte[] data, int length) throws IOException;
+    }
+
+    private void readBlocks(Manifest manifest, BlockSink sink, List<String> problems) throws IOException {
+        Map<String, RandomAccessFile> files = new HashMap<>();
+        Inflater inflater = new Inflater();
+        byte[] block = new byte[BLOCK_SIZE];
+        try {
+            for (int index = 0; index < manifest.blocks().size(); index++) {
+                BlockRef ref = manifest.blocks().get(index);
+                int expected = blockLength(manifest, index);
+                try {
+                    RandomAccessFile file = files.get(ref.file());
+                    if (file == null) {
+                        file = new RandomAccessFile(directory.resolve(ref.file()).toFile(), "r");
+                        files.put(ref.file(), file);
+                    }
+                    byte[] compressed = new byte[ref.length()];
+                    file.seek(ref.offset());
+                    file.readFully(compressed);
+                    inflater.reset();
+                    inflater.setInput(compressed);
+                    int length = inflater.inflate(block);
+                    if (length != expected || !Arrays.equals(sha256(block, length), ref.hash())) {
+                        problems.add("block " + index + " in " + ref.file() + " does not match its checksum");
+                        continue;
+                    }
+                    sink.accept(index, block, length);
+                } catch (IOException | DataFormatException e) {
+                    problems.add("block " + index + " in " + ref.file() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            inflater.end();
+            for (RandomAccessFile file : files.values()) file.close();
+        }
+    }
+
+    public List<Path> manifests() throws IOException {
+        List<Path> manifests = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "backup-*.manifest")) {
+            files.forEach(manifests::add);
+        }
+        manifests.sort(Comparator.comparing(path -> path.getFileName().toString()));
+        return manifests;
+    }
+
+    private static Path databaseFile(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT DATABASE_PATH()")) {
+            rs.next();
+            String path = rs.getString(1);
+            if (path == null) throw new SQLException("Only file databases can be backed up");
+            return Paths.get(path + ".mv.db");
+        }
+    }
+
+    private static int retentionTime(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery(
+                "SELECT SETTING_VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE SETTING_NAME = 'RETENTION_TIME'")) {
+            int retention = rs.next() ? Integer.parseInt(rs.getString(1)) : DEFAULT_RETENTION;
+            return retention == NO_REUSE ? DEFAULT_RETENTION : retention;
+        }
+    }
+
+    // Reads the block at position, cut off at length; returns the bytes read
+    private static int readBlock(FileChannel in, long position, long length, byte[] block) throws IOException {
+        int wanted = (int) Math.min(BLOCK_SIZE, length - position);
+        if (wanted <= 0) return 0;
+        ByteBuffer buffer = ByteBuffer.wrap(block, 0, wanted);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) break;
+        }
+        return buffer.position();
+    }
+
+    private static int blockLength(Manifest manifest, int index) {
+        return (int) Math.min(BLOCK_SIZE, manifest.fileLength() - (long) index * BLOCK_SIZE);
+    }
+
+    private static void writeManifest(Path path, Manifest manifest) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(manifest.timestamp());
+            out.writeBoolean(manifest.full());
+            out.writeLong(manifest.fileLength());
+            out.writeInt(BLOCK_SIZE);
+            out.writeInt(manifest.blocks().size());
+            for (BlockRef block : manifest.blocks()) {
+                out.write(block.hash());
+                out.writeUTF(block.file());
+                out.writeLong(block.offset());
+                out.writeInt(block.length());
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Manifest readManifest(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a backup manifest: " + path);
+            long timestamp = in.readLong();
+            boolean full = in.readBoolean();
+            long fileLength = in.readLong();
+            if (in.readInt() != BLOCK_SIZE) throw new IOException("Unsupported block size in " + path);
+            int count = in.readInt();
+            List<BlockRef> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] hash = new byte[32];
+                in.readFully(hash);
+                blocks.add(new BlockRef(hash, in.readUTF(), in.readLong(), in.readInt()));
+            }
+            return new Manifest(timestamp, full, fileLength, blocks);
+        }
+    }
+
+    private static byte[] sha256(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] data, int length) {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buffer = new byte[16 * 1024];
+        while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+        return out.toByteArray();
+    }
+
+    // Simple pacing: sleeps whenever more bytes went through than the rate allows
+    private static class RateLimiter {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long bytes;
+
+        RateLimiter(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(int count) {
+            if (bytesPerSecond <= 0) return;
+            bytes += count;
+            long allowedAt = start + bytes * 1_000_000_000L / bytesPerSecond;
+            long wait = allowedAt - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // Times a typical desk lookup on its own connection while the snapshot runs
+    private static class LatencyProbe extends Thread {
+        private final String url;
+        private volatile boolean running = true;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        LatencyProbe(String url) {
+            super("backup-latency-probe");
+            this.url = url;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (Connection connection = DriverManager.getConnection(url);
+                 PreparedStatement stmt = connection.prepareStatement("SELECT id, status FROM COPIES WHERE id = ?")) {
+                while (running) {
+                    long start = System.nanoTime();
+                    stmt.setInt(1, 1);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        rs.next();
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    synchronized (this) {
+                        count++;
+                        totalNanos += elapsed;
+                        maxNanos = Math.max(maxNanos, elapsed);
+                    }
+                    Thread.sleep(20);
+                }
+            } catch (SQLException | InterruptedException e) {
+                // probe is best effort
+            }
+        }
+
+        void stopProbe() {
+            running = false;
+            try {
+                join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized double averageMillis() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        synchronized double maxMillis() {
+            return maxNanos / 1e6;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Cold storage for closed borrowings. Each archival run writes one immutable
+// segment file: records sorted by user then borrow date, packed into deflated
+// blocks, followed by a sparse index holding the first user id of every block.
+// Segments are memory-mapped for reads and never modified after they are written.
+public class BorrowingArchive {
+    private static final int MAGIC = 0x4C425341; // "LBSA"
+    private static final int RECORDS_PER_BLOCK = 256;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+
+    private final Path directory;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Set<Path> loaded = new HashSet<>();
+    private FileTime directoryModified;
+    private ScheduledExecutorService scheduler;
+
+    public record ArchivedBorrowing(int id, int userId, int copyId, String title,
+                                    java.sql.Date borrowDate, java.sql.Date returnDate) {
+    }
+
+    private static class Segment {
+        final Path path;
+        final MappedByteBuffer data;
+        final int[] blockFirstUser;
+        final long[] blockOffset;
+        final int[] blockLength;
+        final int[] blockRecords;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            // Footer: index offset (long), block count (int), magic (int)
+            int footer = data.capacity() - 16;
+            if (footer < 0 || data.getInt(footer + 12) != MAGIC) {
+                throw new IOException("Not an archive segment: " + path);
+            }
+            long indexOffset = data.getLong(footer);
+            int blocks = data.getInt(footer + 8);
+            blockFirstUser = new int[blocks];
+            blockOffset = new long[blocks];
+            blockLength = new int[blocks];
+            blockRecords = new int[blocks];
+            int position = (int) indexOffset;
+            for (int i = 0; i < blocks; i++) {
+                blockFirstUser[i] = data.getInt(position);
+                blockOffset[i] = data.getLong(position + 4);
+                blockLength[i] = data.getInt(position + 12);
+                blockRecords[i] = data.getInt(position + 16);
+                position += 20;
+            }
+        }
+
+        void readUser(int userId, List<ArchivedBorrowing> out) throws IOException {
+            // Last block starting before the user - their records may begin at its tail
+            int low = 0;
+            int high = blockFirstUser.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (blockFirstUser[mid] < userId) low = mid + 1;
+                else high = mid;
+            }
+            int start = Math.max(0, low - 1);
+
+            for (int block = start; block < blockFirstUser.length && blockFirstUser[block] <= userId; block++) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflate(block)));
+                for (int i = 0; i < blockRecords[block]; i++) {
+                    int id = in.readInt();
+                    int user = in.readInt();
+                    int copyId = in.readInt();
+                    int borrowDay = in.readInt();
+                    int returnDay = in.readInt();
+                    String title = in.readUTF();
+                    if (user == userId) {
+                        out.add(new ArchivedBorrowing(id, user, copyId, title, toDate(borrowDay), toDate(returnDay)));
+                    }
+                }
+            }
+        }
+
+        private byte[] inflate(int block) throws IOException {
+            ByteBuffer compressed = data.slice((int) blockOffset[block], blockLength[block]);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(blockLength[block] * 4);
+                byte[] buffer = new byte[8192];
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && inflater.needsInput()) break;
+                    out.write(buffer, 0, n);
+                }
+                return out.toByteArray();
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block " + block + " in " + path, e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private BorrowingArchive(Path directory) {
+        this.directory = directory;
+    }
+
+    public static BorrowingArchive open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        BorrowingArchive archive = new BorrowingArchive(directory);
+        archive.loadNewSegments();
+        System.out.println("Archive segments loaded: " + archive.segments.size());
+        return archive;
+    }
+
+    // Maps the segments not seen yet. The GUI and the server share the
+    // directory, so segments written by the other process are picked up too;
+    // the directory timestamp keeps this to one stat call when nothing changed.
+    private synchronized void loadNewSegments() throws IOException {
+        FileTime modified = Files.getLastModifiedTime(directory);
+        if (modified.equals(directoryModified)) return;
+        List<Path> sorted = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "borrowings-*.seg")) {
+            for (Path file : files) {
+                if (!loaded.contains(file.getFileName())) sorted.add(file);
+            }
+        }
+        Collections.sort(sorted);
+        for (Path file : sorted) addSegment(file);
+        directoryModified = modified;
+    }
+
+    private synchronized void addSegment(Path file) throws IOException {
+        if (loaded.add(file.getFileName())) segments.add(new Segment(file));
+    }
+
+    // Age in days after which a returned loan is moved out of BORROWINGS
+    public static int configuredMaxAgeDays() {
+        return Integer.getInteger("library.archive.days", 365);
+    }
+
+    // Runs archive() once a day on a background thread
+    // Each run opens its own connection, so the archive transaction never
+    // mixes with the statements of the desk's connection
+    public void startJob(String url) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "borrowing-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try (Connection connection = DriverManager.getConnection(url)) {
+                archive(connection, configuredMaxAgeDays());
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Error while archiving borrowings");
+            }
+        }, 1, 24 * 60, TimeUnit.MINUTES);
+    }
+
+    public void stopJob() {
+        if (scheduler != null) scheduler.shutdown();
+    }
+
+    // Moves loans returned more than maxAgeDays ago into a new segment.
+    // The segment is made durable before the rows are deleted, so a crash in
+    // between leaves duplicates (filtered by id on read) rather than lost loans.
+    public synchronized int archive(Connection connection, int maxAgeDays) throws SQLException, IOException {
+        String query = "SELECT BORROWINGS.id, BORROWINGS.userid, BORROWINGS.copyid, BORROWINGS.borrowdate,\n" +
+                       "BORROWINGS.returndate, BOOKS.title\n" +
+                       "FROM BORROWINGS\n" +
+                       "JOIN COPIES ON COPIES.id = BORROWINGS.copyid\n" +
+                       "JOIN BOOKS ON BOOKS.id = COPIES.bookid\n" +
+                       "WHERE BORROWINGS.returndate IS NOT NULL AND BORROWINGS.returndate < ?\n" +
+                       "ORDER BY BORROWINGS.userid, BORROWINGS.borrowdate, BORROWINGS.id";
+
+        List<ArchivedBorrowing> rows = new ArrayList<>();
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                stmt.setDate(1, java.sql.Date.valueOf(LocalDate.now().minusDays(maxAgeDays)));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new ArchivedBorrowing(rs.getInt("id"), rs.getInt("userid"), rs.getInt("copyid"),
+                                rs.getString("title"), rs.getDate("borrowdate"), rs.getDate("returndate")));
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        if (rows.isEmpty()) return 0;
+
+        Path segmentPath = writeSegment(rows);
+        addSegment(segmentPath);
+
+        CirculationLog.Transaction events = CirculationLog.begin();
+        ConnectionLock.lock(connection);
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "DELETE FROM BORROWINGS WHERE id = ? AND returndate IS NOT NULL")) {
+                for (ArchivedBorrowing row : rows) {
+                    stmt.setInt(1, row.id());
+                    stmt.addBatch();
+                    events.record(CirculationLog.ARCHIVE, row.id(), row.userId(), row.copyId(), null);
+                }
+                stmt.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                events.abort();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        events.awaitDurable();
+        for (ArchivedBorrowing row : rows) {
+            AuditTrail.record("DELETE", "BORROWINGS", row.id(), "archived to " + segmentPath.getFileName());
+        }
+        System.out.println("Archived " + rows.size() + " borrowings to " + segmentPath.getFileName());
+        return rows.size();
+    }
+
+    private Path writeSegment(List<ArchivedBorrowing> rows) throws IOException {
+        String name = String.format("borrowings-%013d.seg", System.currentTimeMillis());
+        Path target = directory.resolve(name);
+        Path temp = directory.resolve(name + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream indexOut = new DataOutputStream(index);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            long offset = 0;
+            int blocks = 0;
+            try {
+                for (int from = 0; from < rows.size(); from += RECORDS_PER_BLOCK) {
+                    int to = Math.min(rows.size(), from + RECORDS_PER_BLOCK);
+                    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(raw);
+                    for (int i = from; i < to; i++) {
+                        ArchivedBorrowing row = rows.get(i);
+                        out.writeInt(row.id());
+                        out.writeInt(row.userId());
+                        out.writeInt(row.copyId());
+                        out.writeInt(toDay(row.borrowDate()));
+                        out.writeInt(toDay(row.returnDate()));
+                        out.writeUTF(row.title() == null ? "" : row.title());
+                    }
+                    byte[] compressed = deflate(deflater, raw.toByteArray());
+                    writeFully(channel, ByteBuffer.wrap(compressed));
+
+                    indexOut.writeInt(rows.get(from).userId());
+                    indexOut.writeLong(offset);
+                    indexOut.writeInt(compressed.length);
+                    indexOut.writeInt(to - from);
+                    offset += compressed.length;
+                    blocks++;
+                }
+            } finally {
+                deflater.end();
+            }
+            writeFully(channel, ByteBuffer.wrap(index.toByteArray()));
+            ByteBuffer footer = ByteBuffer.allocate(16);
+            footer.putLong(offset).putInt(blocks).putInt(MAGIC).flip();
+            writeFully(channel, footer);
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    // True if any segment holds a loan of the user
+    public boolean hasHistory(int userId) {
+        List<ArchivedBorrowing> found = new ArrayList<>();
+        try {
+            loadNewSegments();
+            for (Segment segment : segments) {
+                segment.readUser(userId, found);
+                if (!found.isEmpty()) return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Unreadable archive: assume there is history rather than lose it
+            return true;
+        }
+        return false;
+    }
+
+    // Archived loans of a user in borrowing id order, without duplicates left
+    // by an archival run that was interrupted before its delete
+    public List<ArchivedBorrowing> archived(int userId) throws IOException {
+        loadNewSegments();
+        List<ArchivedBorrowing> found = new ArrayList<>();
+        for (Segment segment : segments) segment.readUser(userId, found);
+        Map<Integer, ArchivedBorrowing> byId = new TreeMap<>();
+        for (ArchivedBorrowing row : found) byId.put(row.id(), row);
+        return new ArrayList<>(byId.values());
+    }
+
+    // Full borrowing history of a user: open and recent loans from BORROWINGS
+    // merged with archived ones, oldest first
+    public List<List<Object>> history(Connection connection, int userID) throws SQLException {
+        String query = "SELECT BORROWINGS.id, BOOKS.title, BORROWINGS.borrowdate, BORROWINGS.returndate\n" +
+                       "FROM BOOKS\n" +
+                       "JOIN COPIES ON BOOKS.id = COPIES.bookid\n" +
+                       "JOIN BORROWINGS ON COPIES.ID = BORROWINGS.copyID\n" +
+                       "WHERE BORROWINGS.userID = ?";
+
+        Map<Integer, ArchivedBorrowing> merged = new HashMap<>();
+        try {
+            for (ArchivedBorrowing row : archived(userID)) merged.put(row.id(), row);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error while reading the borrowing archive");
+        }
+
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                stmt.setInt(1, userID);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        int id = rs.getInt("id");
+                        merged.put(id, new ArchivedBorrowing(id, userID, 0, rs.getString("title"),
+                                rs.getDate("borrowdate"), rs.getDate("returndate")));
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+
+        List<ArchivedBorrowing> sorted = new ArrayList<>(merged.values());
+        sorted.sort(Comparator.comparing(ArchivedBorrowing::borrowDate).thenComparingInt(ArchivedBorrowing::id));
+        List<List<Object>> rows = new ArrayList<>(sorted.size());
+        for (ArchivedBorrowing row : sorted) {
+            List<Object> tableRow = new ArrayList<>();
+            tableRow.add(row.title());
+            tableRow.add(row.borrowDate());
+            tableRow.add(row.returnDate());
+            rows.add(tableRow);
+        }
+        return rows;
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] input) {
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static int toDay(java.sql.Date date) {
+        return date == null ? NO_DATE : (int) date.toLocalDate().toEpochDay();
+    }
+
+    private static java.sql.Date toDate(int day) {
+        return day == NO_DATE ? null : java.sql.Date.valueOf(LocalDate.ofEpochDay(day));
+    }
+}
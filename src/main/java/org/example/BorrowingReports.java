@@ -0,0 +1,44 @@
+package org.example;
+
+import java.sql.*;
+import java.time.LocalDate;
+
+// Date-range reports over BORROWINGS.
+//
+// Loans are read straight from BORROWINGS through an index on the borrow
+// date, so a range report is one index range scan over the months it asks
+// for, and loans that are archived or deleted leave the reports together with
+// their rows. BORROWINGS is not split into monthly tables: every circulation
+// path, the loan counters, the fines run and the archive work on the one
+// table, and moving them behind a partition router is out of scope. Old
+// months leave the table through BorrowingArchive instead. Earlier versions
+// kept a trigger-maintained copy of every loan in monthly BORROWINGS_P<yyyyMM>
+// tables; install() removes the trigger, and those tables, no longer kept up
+// to date, are left for the administrator to drop.
+public class BorrowingReports {
+    static final String LEGACY_TRIGGER = "BORROWINGS_PARTITION_ROUTER";
+
+    public static void install(Connection connection) throws SQLException {
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE INDEX IF NOT EXISTS IDX_BORROWINGS_BORROWDATE ON BORROWINGS(borrowdate)");
+                stmt.execute("DROP TRIGGER IF EXISTS " + LEGACY_TRIGGER);
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+    }
+
+    // Loans borrowed between from and to (inclusive) with id, userid, copyid,
+    // borrowdate and returndate, ordered by borrow date
+    public static PreparedStatement prepareRange(Connection connection, LocalDate from, LocalDate to) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(
+                "SELECT id, userid, copyid, borrowdate, returndate FROM BORROWINGS\n" +
+                "WHERE borrowdate BETWEEN ? AND ?\n" +
+                "ORDER BY borrowdate, id");
+        stmt.setDate(1, Date.valueOf(from));
+        stmt.setDate(2, Date.valueOf(to));
+        return stmt;
+    }
+}
@@ -0,0 +1,321 @@
+package org.example;
+
+import java.sql.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+// Resolves and opens the H2 database of each library branch.
+// Branches are configured with -Dlibrary.branches=name=path,name=path and the
+// branch this desk belongs to with -Dlibrary.branch=name. Without configuration
+// there is a single "main" branch on ./db/database, same as before.
+// The url lookups open nothing: an embedded H2 file is locked by whoever opens
+// it, so tools that only need the url must not touch the database. Branch
+// connections are opened on first use, by a catalogue search or a loan across
+// branches; the desks of other branches serve their files over tcp:// paths or
+// with ;AUTO_SERVER=TRUE so several processes can reach them.
+//
+// A loan of another branch's copy is recorded twice. The copy's branch lends
+// the copy to a mirror of the borrower (matched on email), so its copy status
+// and borrowing commit together as for any local loan. The borrower's home
+// branch keeps a BRANCH_LOANS row pointing at that borrowing, which is what
+// puts the loan in the borrower's history; its return date is read back from
+// the copy's branch while the loan is open.
+public class BranchRouter {
+    private static final Map<String, Connection> CONNECTIONS = new ConcurrentHashMap<>();
+
+    private BranchRouter() {
+    }
+
+    public record BookHit(String branch, int id, String title, String author, int publicationYear,
+                          String isbn, int availableCopies) {
+    }
+
+    public record BranchLoan(String branch, int borrowingId, int copyId, String title,
+                             java.sql.Date borrowDate, java.sql.Date returnDate) {
+    }
+
+    // Branch name -> JDBC url, in configuration order
+    public static Map<String, String> branches() {
+        Map<String, String> branches = new LinkedHashMap<>();
+        String config = System.getProperty("library.branches", "main=./db/database");
+        for (String entry : config.split(",")) {
+            String[] parts = entry.trim().split("=", 2);
+            if (parts.length == 2) branches.put(parts[0].trim(), "jdbc:h2:" + parts[1].trim());
+        }
+        if (branches.isEmpty()) throw new IllegalArgumentException("No branches in library.branches: " + config);
+        return branches;
+    }
+
+    public static String localBranch() {
+        Map<String, String> branches = branches();
+        String local = System.getProperty("library.branch", branches.keySet().iterator().next());
+        if (!branches.containsKey(local)) throw new IllegalArgumentException("Unknown branch: " + local);
+        return local;
+    }
+
+    // JDBC url of the branch this desk belongs to
+    public static String localUrl() {
+        return branches().get(localBranch());
+    }
+
+    // Connection to a branch, opened on first use and kept until closeConnections()
+    public static Connection connection(String branch) throws SQLException {
+        String url = branches().get(branch);
+        if (url == null) throw new IllegalArgumentException("Unknown branch: " + branch);
+        Connection connection = CONNECTIONS.get(branch);
+        if (connection != null && !connection.isClosed()) return connection;
+        synchronized (CONNECTIONS) {
+            connection = CONNECTIONS.get(branch);
+            if (connection == null || connection.isClosed()) {
+                connection = DriverManager.getConnection(url);
+                CONNECTIONS.put(branch, connection);
+            }
+            return connection;
+        }
+    }
+
+    public static void closeConnections() {
+        synchronized (CONNECTIONS) {
+            for (Connection connection : CONNECTIONS.values()) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+            CONNECTIONS.clear();
+        }
+    }
+
+    public static void createTable(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS BRANCH_LOANS (\n" +
+                    "id INT AUTO_INCREMENT PRIMARY KEY,\n" +
+                    "userid INT NOT NULL REFERENCES USERS(id),\n" +
+                    "branch VARCHAR(64) NOT NULL,\n" +
+                    "borrowingid INT NOT NULL,\n" +
+                    "copyid INT NOT NULL,\n" +
+                    "title VARCHAR(255),\n" +
+                    "borrowdate DATE NOT NULL,\n" +
+                    "returndate DATE,\n" +
+                    "UNIQUE (branch, borrowingid))");
+            stmt.execute("CREATE INDEX IF NOT EXISTS IDX_BRANCH_LOANS_USER ON BRANCH_LOANS(userid)");
+        }
+    }
+
+    // Catalogue search over every branch in parallel. Each branch returns at
+    // most offset + limit rows already ordered by title, the sorted lists are
+    // merged and the requested page is cut from the merged stream.
+    public static List<BookHit> searchBooks(String titlePrefix, int offset, int limit) throws SQLException {
+        String query = "SELECT b.id, b.title, b.author, b.publicationyear, b.isbn,\n" +
+                       "(SELECT COUNT(*) FROM COPIES c WHERE c.bookid = b.id AND c.status = 'Available') AS available\n" +
+                       "FROM BOOKS b\n" +
+                       "WHERE LOWER(b.title) LIKE ?\n" +
+                       "ORDER BY b.title, b.id\n" +
+                       "LIMIT ?";
+        String pattern = titlePrefix.toLowerCase().replace("%", "\\%").replace("_", "\\_") + "%";
+
+        Map<String, Future<List<BookHit>>> futures = new LinkedHashMap<>();
+        List<List<BookHit>> perBranch = new ArrayList<>();
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String branch : branches().keySet()) {
+                futures.put(branch, pool.submit(() -> {
+                    Connection connection = connection(branch);
+                    List<BookHit> hits = new ArrayList<>();
+                    ConnectionLock.lock(connection);
+                    try {
+                        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                            stmt.setString(1, pattern);
+                            stmt.setInt(2, offset + limit);
+                            try (ResultSet rs = stmt.executeQuery()) {
+                                while (rs.next()) {
+                                    hits.add(new BookHit(branch, rs.getInt("id"), rs.getString("title"), rs.getString("author"),
+                                            rs.getInt("publicationyear"), rs.getString("isbn"), rs.getInt("available")));
+                                }
+                            }
+                        }
+                    } finally {
+                        ConnectionLock.unlock(connection);
+                    }
+                    return hits;
+                }));
+            }
+            for (Map.Entry<String, Future<List<BookHit>>> future : futures.entrySet()) {
+                try {
+                    perBranch.add(future.getValue().get());
+                } catch (ExecutionException e) {
+                    throw new SQLException("Search failed on branch " + future.getKey(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Search interrupted", e);
+                }
+            }
+        }
+
+        // k-way merge of the already sorted branch results
+        Comparator<BookHit> order = Comparator.comparing(BookHit::title, Comparator.nullsFirst(String::compareTo))
+                .thenComparing(BookHit::branch)
+                .thenComparingInt(BookHit::id);
+        PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) ->
+                order.compare(perBranch.get(a[0]).get(a[1]), perBranch.get(b[0]).get(b[1])));
+        for (int i = 0; i < perBranch.size(); i++) {
+            if (!perBranch.get(i).isEmpty()) heads.add(new int[]{i, 0});
+        }
+        List<BookHit> page = new ArrayList<>(limit);
+        int position = 0;
+        while (!heads.isEmpty() && page.size() < limit) {
+            int[] head = heads.poll();
+            if (position++ >= offset) page.add(perBranch.get(head[0]).get(head[1]));
+            if (++head[1] < perBranch.get(head[0]).size()) heads.add(head);
+        }
+        return page;
+    }
+
+    // Lends a copy of copyBranch to a user of the home branch behind the given
+    // connection. A copy of the home branch itself is an ordinary loan. If the
+    // home branch cannot record the loan, the copy is returned again so no loan
+    // exists that the borrower's history does not show.
+    public static int borrowAcrossBranches(Connection home, int userId, String copyBranch, int copyId) throws SQLException {
+        if (copyBranch.equals(localBranch())) return Circulation.borrowCopy(home, userId, copyId);
+
+        String name, email, phone, address;
+        ConnectionLock.lock(home);
+        try {
+            try (PreparedStatement stmt = home.prepareStatement(
+                    "SELECT name, email, phonenumber, address FROM USERS WHERE id = ?")) {
+                stmt.setInt(1, userId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) throw new SQLException("No user " + userId + " in branch " + localBranch());
+                    name = rs.getString("name");
+                    email = rs.getString("email");
+                    phone = rs.getString("phonenumber");
+                    address = rs.getString("address");
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(home);
+        }
+        if (email == null) throw new SQLException("User " + userId + " has no email to be known by at " + copyBranch);
+
+        Connection remote = connection(copyBranch);
+        int remoteUserId;
+        String title;
+        ConnectionLock.lock(remote);
+        try {
+            // MERGE on the unique email keeps the mirror idempotent under retries
+            try (PreparedStatement stmt = remote.prepareStatement(
+                    "MERGE INTO USERS(name, email, phonenumber, address) KEY(email) VALUES (?, ?, ?, ?)")) {
+                stmt.setString(1, name);
+                stmt.setString(2, email);
+                stmt.setString(3, phone);
+                stmt.setString(4, address);
+                stmt.executeUpdate();
+            }
+            try (PreparedStatement stmt = remote.prepareStatement("SELECT id FROM USERS WHERE email = ?")) {
+                stmt.setString(1, email);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    remoteUserId = rs.getInt("id");
+                }
+            }
+            try (PreparedStatement stmt = remote.prepareStatement(
+                    "SELECT b.title FROM COPIES c JOIN BOOKS b ON b.id = c.bookid WHERE c.id = ?")) {
+                stmt.setInt(1, copyId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) throw new SQLException("No copy " + copyId + " in branch " + copyBranch);
+                    title = rs.getString("title");
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(remote);
+        }
+
+        int borrowingId = Circulation.borrowCopy(remote, remoteUserId, copyId);
+        try {
+            ConnectionLock.lock(home);
+            try {
+                try (PreparedStatement stmt = home.prepareStatement(
+                        "INSERT INTO BRANCH_LOANS(userid, branch, borrowingid, copyid, title, borrowdate) VALUES (?, ?, ?, ?, ?, CURRENT_DATE)")) {
+                    stmt.setInt(1, userId);
+                    stmt.setString(2, copyBranch);
+                    stmt.setInt(3, borrowingId);
+                    stmt.setInt(4, copyId);
+                    stmt.setString(5, title);
+                    stmt.executeUpdate();
+                }
+            } finally {
+                ConnectionLock.unlock(home);
+            }
+        } catch (SQLException e) {
+            Circulation.returnCopy(remote, copyId);
+            throw e;
+        }
+        AuditTrail.record("INSERT", "BRANCH_LOANS", borrowingId, "user " + userId + " borrowed copy " + copyId + " at " + copyBranch);
+        System.out.println("Cross-branch loan " + borrowingId + ": " + email + " from " + localBranch() + " at " + copyBranch);
+        return borrowingId;
+    }
+
+    // Loans the user took at other branches. Open ones are checked against the
+    // copy's branch first and closed here once that branch has the copy back;
+    // a branch that cannot be reached leaves its loans as they were.
+    public static List<BranchLoan> branchLoans(Connection home, int userId) throws SQLException {
+        List<BranchLoan> loans = new ArrayList<>();
+        ConnectionLock.lock(home);
+        try {
+            try (PreparedStatement stmt = home.prepareStatement(
+                    "SELECT branch, borrowingid, copyid, title, borrowdate, returndate FROM BRANCH_LOANS\n" +
+                    "WHERE userid = ?\n" +
+                    "ORDER BY borrowdate, id")) {
+                stmt.setInt(1, userId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        loans.add(new BranchLoan(rs.getString("branch"), rs.getInt("borrowingid"), rs.getInt("copyid"),
+                                rs.getString("title"), rs.getDate("borrowdate"), rs.getDate("returndate")));
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(home);
+        }
+
+        for (int i = 0; i < loans.size(); i++) {
+            BranchLoan loan = loans.get(i);
+            if (loan.returnDate() != null || !branches().containsKey(loan.branch())) continue;
+            java.sql.Date returned;
+            try {
+                Connection remote = connection(loan.branch());
+                ConnectionLock.lock(remote);
+                try {
+                    try (PreparedStatement stmt = remote.prepareStatement("SELECT returndate FROM BORROWINGS WHERE id = ?")) {
+                        stmt.setInt(1, loan.borrowingId());
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            returned = rs.next() ? rs.getDate("returndate") : null;
+                        }
+                    }
+                } finally {
+                    ConnectionLock.unlock(remote);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                System.out.println("Error while reading loans of branch " + loan.branch());
+                continue;
+            }
+            if (returned == null) continue;
+            ConnectionLock.lock(home);
+            try {
+                try (PreparedStatement stmt = home.prepareStatement(
+                        "UPDATE BRANCH_LOANS SET returndate = ? WHERE branch = ? AND borrowingid = ?")) {
+                    stmt.setDate(1, returned);
+                    stmt.setString(2, loan.branch());
+                    stmt.setInt(3, loan.borrowingId());
+                    stmt.executeUpdate();
+                }
+            } finally {
+                ConnectionLock.unlock(home);
+            }
+            loans.set(i, new BranchLoan(loan.branch(), loan.borrowingId(), loan.copyId(), loan.title(), loan.borrowDate(), returned));
+        }
+        return loans;
+    }
+}
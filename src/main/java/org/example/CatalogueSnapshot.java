@@ -0,0 +1,331 @@
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Read-only catalogue for browse sessions and kiosks. A builder periodically
+// exports BOOKS, their publisher and the number of available copies into an
+// immutable file; readers memory-map the newest one and swap to a newer
+// snapshot atomically, so browsing never touches the transactional database.
+//
+// File layout (big-endian):
+//   header   magic, format, version (long), record count, offsets of the
+//            record-offset table and of the title index
+//   records  id, publication year, available copies, then title, author,
+//            publisher id, publisher name, isbn and lower-case title key as
+//            length-prefixed UTF-8
+//   offsets  int per record, records in id order
+//   titles   record numbers sorted by title key (UTF-8 byte order)
+public class CatalogueSnapshot {
+    private static final int MAGIC = 0x4C43534E; // "LCSN"
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 28;
+
+    // BOOKS.publisher holds the publisher id as text
+    static final String PUBLISHER_JOIN = "LEFT JOIN PUBLISHERS p ON CAST(p.id AS VARCHAR) = b.publisher";
+
+    private static volatile CatalogueSnapshot current;
+    private static ScheduledExecutorService builder;
+
+    private final Path path;
+    private final MappedByteBuffer data;
+    private final long version;
+    private final int count;
+    private final int offsetsStart;
+    private final int titlesStart;
+
+    public record Book(int id, String title, String author, String publisherId, String publisherName,
+                       int publicationYear, String isbn, int availableCopies) {
+    }
+
+    private CatalogueSnapshot(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.getInt(0) != MAGIC || data.getInt(4) != FORMAT) throw new IOException("Not a catalogue snapshot: " + path);
+        version = data.getLong(8);
+        count = data.getInt(16);
+        offsetsStart = data.getInt(20);
+        titlesStart = data.getInt(24);
+    }
+
+    public static CatalogueSnapshot current() {
+        return current;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Opens the newest snapshot in the directory without needing a database
+    public static CatalogueSnapshot openLatest(Path directory) throws IOException {
+        Path latest = latestPath(directory);
+        if (latest == null) return null;
+        CatalogueSnapshot snapshot = new CatalogueSnapshot(latest);
+        current = snapshot;
+        return snapshot;
+    }
+
+    // Returns the open snapshot unless a newer file has appeared in the
+    // directory. The file name carries the version, so comparing names is
+    // enough and an unchanged catalogue is never mapped twice.
+    static CatalogueSnapshot openIfNewer(Path directory, CatalogueSnapshot open) throws IOException {
+        Path latest = latestPath(directory);
+        if (latest == null || (open != null && latest.equals(open.path))) return open;
+        return openLatest(directory);
+    }
+
+    // Newest snapshot file by name, without mapping it
+    static Path latestPath(Path directory) throws IOException {
+        Path latest = null;
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "catalogue-*.snap")) {
+                for (Path file : files) {
+                    if (latest == null || file.getFileName().toString().compareTo(latest.getFileName().toString()) > 0) latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+
+    // Builds a snapshot now and then every intervalMinutes on its own
+    // connection, swapping each one in
+    public static void startBuilder(String url, Path directory, long intervalMinutes) {
+        builder = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "catalogue-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        builder.scheduleWithFixedDelay(() -> {
+            try (Connection connection = DriverManager.getConnection(url)) {
+                build(connection, directory);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Error while building the catalogue snapshot");
+            }
+        }, 0, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    public static CatalogueSnapshot build(Connection connection, Path directory) throws SQLException, IOException {
+        String query = "SELECT b.id, b.title, b.author, b.publisher, p.name AS publishername, b.publicationyear, b.isbn,\n" +
+                       "(SELECT COUNT(*) FROM COPIES c WHERE c.bookid = b.id AND c.status = 'Available') AS available\n" +
+                       "FROM BOOKS b\n" +
+                       PUBLISHER_JOIN + "\n" +
+                       "ORDER BY b.id";
+
+        List<Book> books = new ArrayList<>();
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.setFetchSize(1000);
+                try (ResultSet rs = stmt.executeQuery(query)) {
+                    while (rs.next()) {
+                        books.add(new Book(rs.getInt("id"), rs.getString("title"), rs.getString("author"),
+                                rs.getString("publisher"), rs.getString("publishername"), rs.getInt("publicationyear"),
+                                rs.getString("isbn"), rs.getInt("available")));
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+
+        Files.createDirectories(directory);
+        long version = System.currentTimeMillis();
+        Path target = directory.resolve(String.format("catalogue-%013d.snap", version));
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        int[] offsets = new int[books.size()];
+        byte[][] keys = new byte[books.size()][];
+        for (int i = 0; i < books.size(); i++) {
+            Book book = books.get(i);
+            offsets[i] = HEADER_SIZE + out.size();
+            out.writeInt(book.id());
+            out.writeInt(book.publicationYear());
+            out.writeInt(book.availableCopies());
+            writeString(out, book.title());
+            writeString(out, book.author());
+            writeString(out, book.publisherId());
+            writeString(out, book.publisherName());
+            writeString(out, book.isbn());
+            keys[i] = titleKey(book.title());
+            writeBytes(out, keys[i]);
+        }
+        Integer[] byTitle = new Integer[books.size()];
+        for (int i = 0; i < byTitle.length; i++) byTitle[i] = i;
+        Arrays.sort(byTitle, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+
+        int offsetsStart = HEADER_SIZE + out.size();
+        int titlesStart = offsetsStart + 4 * books.size();
+        try (DataOutputStream file = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+            file.writeInt(MAGIC);
+            file.writeInt(FORMAT);
+            file.writeLong(version);
+            file.writeInt(books.size());
+            file.writeInt(offsetsStart);
+            file.writeInt(titlesStart);
+            records.writeTo(file);
+            for (int offset : offsets) file.writeInt(offset);
+            for (int record : byTitle) file.writeInt(record);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+
+        CatalogueSnapshot snapshot = new CatalogueSnapshot(target);
+        current = snapshot;
+        prune(directory, target);
+        return snapshot;
+    }
+
+    // Deletes every snapshot but the given one, including those left by earlier
+    // runs and unfinished temp files. Readers still holding an older mapping
+    // keep working after the delete.
+    static void prune(Path directory, Path keep) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "catalogue-*.snap*")) {
+            for (Path file : files) {
+                if (file.equals(keep)) continue;
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // Still mapped by a reader on a platform that refuses the delete; next build retries
+                    System.out.println("Could not delete old snapshot " + file.getFileName());
+                }
+            }
+        }
+    }
+
+    // Kiosk mode: answers title searches from the newest snapshot in the
+    // directory, without opening the database. Reads one prefix per line.
+    public static void main(String[] args) throws IOException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "./db/snapshots");
+        CatalogueSnapshot snapshot = openLatest(directory);
+        if (snapshot == null) {
+            System.out.println("No catalogue snapshot in " + directory + ", start the application with -Dlibrary.snapshots=true first");
+            return;
+        }
+        System.out.println("Catalogue of " + snapshot.size() + " books. Type the start of a title, empty line to quit.");
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null && !line.isBlank()) {
+            try {
+                // Pick up a snapshot built since the last search
+                snapshot = openIfNewer(directory, snapshot);
+            } catch (IOException e) {
+                // Pruned while listing; keep the mapping we have
+            }
+            for (Book book : snapshot.searchTitle(line.trim(), 20)) {
+                System.out.printf("%-50s %-25s %4d  %d available%n", book.title(), book.author(),
+                        book.publicationYear(), book.availableCopies());
+            }
+        }
+    }
+
+    public Book get(int record) {
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(data.getInt(offsetsStart + 4 * record));
+        int id = buffer.getInt();
+        int year = buffer.getInt();
+        int available = buffer.getInt();
+        String title = readString(buffer);
+        String author = readString(buffer);
+        String publisherId = readString(buffer);
+        String publisherName = readString(buffer);
+        String isbn = readString(buffer);
+        return new Book(id, title, author, publisherId, publisherName, year, isbn, available);
+    }
+
+    // Records whose title starts with the prefix (case-insensitive), in title order
+    public List<Book> searchTitle(String prefix, int limit) {
+        byte[] key = titleKey(prefix);
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(titleRecord(mid), key, false) < 0) low = mid + 1;
+            else high = mid;
+        }
+        List<Book> result = new ArrayList<>();
+        for (int i = low; i < count && result.size() < limit; i++) {
+            int record = titleRecord(i);
+            if (compareKey(record, key, true) != 0) break;
+            result.add(get(record));
+        }
+        return result;
+    }
+
+    // Rows for the browse tables: title, author, publication year
+    public List<List<Object>> bookRows(boolean availableOnly) {
+        List<List<Object>> rows = new ArrayList<>(count);
+        Set<List<Object>> seen = new HashSet<>();
+        for (int record = 0; record < count; record++) {
+            Book book = get(record);
+            if (availableOnly && book.availableCopies() == 0) continue;
+            List<Object> row = new ArrayList<>();
+            row.add(book.title());
+            row.add(book.author());
+            row.add(book.publicationYear());
+            // Same DISTINCT semantics as populateAvailableBooksTable()
+            if (availableOnly && !seen.add(row)) continue;
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private int titleRecord(int position) {
+        return data.getInt(titlesStart + 4 * position);
+    }
+
+    // Compares the stored title key of a record with the given key without
+    // copying it out of the mapping; prefixOnly treats a key prefix as equal
+    private int compareKey(int record, byte[] key, boolean prefixOnly) {
+        int position = data.getInt(offsetsStart + 4 * record) + 12;
+        for (int field = 0; field < 5; field++) position += 4 + Math.max(0, data.getInt(position));
+        int length = data.getInt(position);
+        position += 4;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int diff = Byte.toUnsignedInt(data.get(position + i)) - Byte.toUnsignedInt(key[i]);
+            if (diff != 0) return diff;
+        }
+        if (prefixOnly && length >= key.length) return 0;
+        return length - key.length;
+    }
+
+    private static byte[] titleKey(String title) {
+        return title == null ? new byte[0] : title.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) out.writeInt(-1);
+        else writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,486 @@
+package org.example;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Circulation {
+
+    // Lends an available copy to the user, or a copy on hold to the user whose
+    // reservation it was assigned to. The conditional status updates make sure
+    // a copy can never be lent out twice. Returns the new borrowing id.
+    public static int borrowCopy(Connection connection, int userId, int copyId) throws SQLException {
+        return borrowCopy(connection, userId, copyId, LocalDate.now());
+    }
+
+    // Same, for a loan the desk is entering after the fact with an earlier borrow date
+    public static int borrowCopy(Connection connection, int userId, int copyId, LocalDate borrowDate) throws SQLException {
+        if (borrowDate.isAfter(LocalDate.now())) throw new SQLException("Borrow date " + borrowDate + " is in the future");
+        LoanCounters counters = LoanCounters.getInstance();
+        if (counters != null && !counters.covers(connection)) counters = null;
+        int borrowingId;
+        CirculationLog.Transaction events = CirculationLog.begin();
+        // Keeps reconcile() from recounting while the loan is half done
+        if (counters != null) counters.lockForChange();
+        try {
+            ConnectionLock.lock(connection);
+            try {
+                // Borrowing limit check against the in-memory counters, no COUNT(*)
+                if (counters != null) counters.reserveLoan(userId);
+                boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try {
+                    try (PreparedStatement stmt = connection.prepareStatement(
+                            "UPDATE COPIES SET status = 'not Available' WHERE id = ? AND status = 'Available'")) {
+                        stmt.setInt(1, copyId);
+                        if (stmt.executeUpdate() == 0 && !ReservationQueue.getInstance().pickUp(connection, userId, copyId)) {
+                            throw new SQLException("Copy " + copyId + " is not available");
+                        }
+                    }
+
+                    try (PreparedStatement stmt = connection.prepareStatement(
+                            "INSERT INTO BORROWINGS(userid, copyid, borrowdate) VALUES (?, ?, ?)",
+                            Statement.RETURN_GENERATED_KEYS)) {
+                        stmt.setInt(1, userId);
+                        stmt.setInt(2, copyId);
+                        stmt.setDate(3, Date.valueOf(borrowDate));
+                        stmt.executeUpdate();
+                        try (ResultSet keys = stmt.getGeneratedKeys()) {
+                            keys.next();
+                            borrowingId = keys.getInt(1);
+                        }
+                    }
+
+                    if (counters != null) counters.persistBorrow(connection, userId);
+
+                    events.record(CirculationLog.BORROW, borrowingId, userId, copyId, null);
+                    events.record(CirculationLog.STATUS_CHANGE, copyId, 0, 0, "not Available");
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    events.abort();
+                    if (counters != null) counters.releaseLoan(userId);
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            } finally {
+                ConnectionLock.unlock(connection);
+            }
+        } finally {
+            if (counters != null) counters.unlockForChange();
+        }
+
+        // The loan is committed from here on; nothing below may report it as failed
+        events.awaitDurable();
+        AuditTrail.record("INSERT", "BORROWINGS", borrowingId, "user " + userId + " borrowed copy " + copyId);
+        CopyBarcodeIndex.copyStatusChanged(copyId, "not Available");
+        recommend(connection, borrowingId, userId, copyId);
+        return borrowingId;
+    }
+
+    // Marks the copy as returned and closes its open borrowing. If somebody is
+    // waiting for the book, the copy goes on hold for the next reservation holder
+    // instead of back to "Available".
+    // Returns the id of the reservation the copy was assigned to, or -1.
+    // Fails if the copy has no open loan.
+    public static int returnCopy(Connection connection, int copyId) throws SQLException {
+        int bookId = findBookId(connection, copyId);
+        if (bookId < 0) throw new SQLException("No copy with id " + copyId);
+
+        LoanCounters counters = LoanCounters.getInstance();
+        if (counters != null && !counters.covers(connection)) counters = null;
+        int borrowerId = -1;
+        int borrowingId = -1;
+        int daysBorrowed = 0;
+        long fine = 0;
+        int assigned;
+        CirculationLog.Transaction events = CirculationLog.begin();
+
+        if (counters != null) counters.lockForChange();
+        try {
+            ReservationQueue queue = ReservationQueue.getInstance();
+            // Book lock first, connection second - same order as reserve() and cancel()
+            ReentrantLock bookLock = queue.lockFor(bookId);
+            bookLock.lock();
+            try {
+                ReservationQueue.Reservation next = queue.peekNext(bookId);
+                ConnectionLock.lock(connection);
+                try {
+                    boolean autoCommit = connection.getAutoCommit();
+                    connection.setAutoCommit(false);
+                    try {
+                        try (PreparedStatement stmt = connection.prepareStatement(
+                                "SELECT userid, DATEDIFF(DAY, borrowdate, CURRENT_DATE), id FROM BORROWINGS WHERE copyid = ? AND returndate IS NULL")) {
+                            stmt.setInt(1, copyId);
+                            try (ResultSet rs = stmt.executeQuery()) {
+                                if (!rs.next()) throw new SQLException("Copy " + copyId + " is not on loan");
+                                borrowerId = rs.getInt(1);
+                                daysBorrowed = rs.getInt(2);
+                                borrowingId = rs.getInt(3);
+                            }
+                        }
+
+                        try (PreparedStatement stmt = connection.prepareStatement(
+                                "UPDATE BORROWINGS SET returndate = CURRENT_DATE WHERE copyid = ? AND returndate IS NULL")) {
+                            stmt.setInt(1, copyId);
+                            if (stmt.executeUpdate() == 0) throw new SQLException("Copy " + copyId + " is not on loan");
+                        }
+
+                        String status = "Available";
+                        if (next != null) {
+                            queue.markAssigned(connection, next, copyId);
+                            status = ReservationQueue.STATUS_ON_HOLD;
+                        }
+
+                        try (PreparedStatement stmt = connection.prepareStatement("UPDATE COPIES SET status = ? WHERE id = ?")) {
+                            stmt.setString(1, status);
+                            stmt.setInt(2, copyId);
+                            stmt.executeUpdate();
+                        }
+
+                        if (counters != null) fine = counters.persistReturn(connection, borrowerId, daysBorrowed, borrowingId);
+
+                        events.record(CirculationLog.RETURN, copyId, next == null ? -1 : next.id, borrowingId, null);
+                        events.record(CirculationLog.STATUS_CHANGE, copyId, 0, 0, status);
+                        connection.commit();
+                    } catch (SQLException e) {
+                        connection.rollback();
+                        events.abort();
+                        throw e;
+                    } finally {
+                        connection.setAutoCommit(autoCommit);
+                    }
+                } finally {
+                    ConnectionLock.unlock(connection);
+                }
+                if (counters != null) counters.returned(borrowerId, borrowingId, fine);
+                AuditTrail.record("UPDATE", "COPIES", copyId, "returned by user " + borrowerId +
+                        (next == null ? "" : ", on hold for reservation " + next.id));
+                CopyBarcodeIndex.copyStatusChanged(copyId, next == null ? "Available" : ReservationQueue.STATUS_ON_HOLD);
+                if (next == null) {
+                    assigned = -1;
+                } else {
+                    // Only drop the holder from the queue once the assignment is committed
+                    queue.removeHead(bookId, next);
+                    System.out.println("Copy " + copyId + " put on hold for user " + next.userId);
+                    assigned = next.id;
+                }
+            } finally {
+                bookLock.unlock();
+            }
+        } finally {
+            if (counters != null) counters.unlockForChange();
+        }
+        events.awaitDurable();
+        return assigned;
+    }
+
+    // Records a loan that was borrowed and returned in the past, e.g. when
+    // history is entered from paper. The copy's current status and the loan
+    // counters are unaffected; the loan must not overlap another loan of the
+    // same copy. Returns the new borrowing id.
+    public static int recordPastLoan(Connection connection, int userId, int copyId, LocalDate borrowDate, LocalDate returnDate)
+            throws SQLException {
+        if (returnDate.isBefore(borrowDate)) throw new SQLException("Return date " + returnDate + " is before the borrow date");
+        if (returnDate.isAfter(LocalDate.now())) throw new SQLException("Return date " + returnDate + " is in the future");
+        int borrowingId;
+        CirculationLog.Transaction events = CirculationLog.begin();
+        ConnectionLock.lock(connection);
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                // Locks the copy row, so concurrent entries for the same copy are checked one at a time
+                try (PreparedStatement stmt = connection.prepareStatement("SELECT id FROM COPIES WHERE id = ? FOR UPDATE")) {
+                    stmt.setInt(1, copyId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next()) throw new SQLException("No copy with id " + copyId);
+                    }
+                }
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "SELECT id FROM BORROWINGS WHERE copyid = ? AND borrowdate <= ? AND (returndate IS NULL OR returndate >= ?)")) {
+                    stmt.setInt(1, copyId);
+                    stmt.setDate(2, Date.valueOf(returnDate));
+                    stmt.setDate(3, Date.valueOf(borrowDate));
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) throw new SQLException("Copy " + copyId + " was on loan then (borrowing " + rs.getInt(1) + ")");
+                    }
+                }
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "INSERT INTO BORROWINGS(userid, copyid, borrowdate, returndate) VALUES (?, ?, ?, ?)",
+                        Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setInt(1, userId);
+                    stmt.setInt(2, copyId);
+                    stmt.setDate(3, Date.valueOf(borrowDate));
+                    stmt.setDate(4, Date.valueOf(returnDate));
+                    stmt.executeUpdate();
+                    try (ResultSet keys = stmt.getGeneratedKeys()) {
+                        keys.next();
+                        borrowingId = keys.getInt(1);
+                    }
+                }
+                // A closed loan: it leaves the copy status as it is
+                events.record(CirculationLog.BORROW, borrowingId, userId, copyId, null);
+                events.record(CirculationLog.RETURN, copyId, -1, borrowingId, null);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                events.abort();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        events.awaitDurable();
+        AuditTrail.record("INSERT", "BORROWINGS", borrowingId, "user " + userId + " borrowed copy " + copyId +
+                " from " + borrowDate + " to " + returnDate);
+        recommend(connection, borrowingId, userId, copyId);
+        return borrowingId;
+    }
+
+    // Feeds a committed loan to the recommender; a failure here only costs a recommendation
+    private static void recommend(Connection connection, int borrowingId, int userId, int copyId) {
+        CoBorrowRecommender recommender = CoBorrowRecommender.getInstance();
+        if (recommender == null) return;
+        try {
+            int bookId;
+            ConnectionLock.lock(connection);
+            try {
+                bookId = findBookId(connection, copyId);
+            } finally {
+                ConnectionLock.unlock(connection);
+            }
+            recommender.onBorrow(borrowingId, userId, bookId);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Error while updating recommendations");
+        }
+    }
+
+    // Cancels a reservation. A waiting one just leaves its queue; if a copy is
+    // already on hold for it, the copy moves on to the next holder of the book
+    // or back to "Available". Returns false if it was fulfilled or cancelled.
+    public static boolean cancelReservation(Connection connection, int reservationId) throws SQLException {
+        ReservationQueue queue = ReservationQueue.getInstance();
+        if (queue.cancel(connection, reservationId)) {
+            AuditTrail.record("UPDATE", "RESERVATIONS", reservationId, "cancelled");
+            return true;
+        }
+
+        int bookId = -1;
+        int copyId = -1;
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT bookid, copyid FROM RESERVATIONS WHERE id = ? AND status = 'Assigned'")) {
+                stmt.setInt(1, reservationId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        bookId = rs.getInt("bookid");
+                        copyId = rs.getInt("copyid");
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        if (bookId < 0) return false;
+
+        CirculationLog.Transaction events = CirculationLog.begin();
+        ReentrantLock bookLock = queue.lockFor(bookId);
+        bookLock.lock();
+        try {
+            ReservationQueue.Reservation next = queue.peekNext(bookId);
+            String status = next == null ? "Available" : ReservationQueue.STATUS_ON_HOLD;
+            ConnectionLock.lock(connection);
+            try {
+                boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try {
+                    try (PreparedStatement stmt = connection.prepareStatement(
+                            "UPDATE RESERVATIONS SET status = 'Cancelled' WHERE id = ? AND status = 'Assigned'")) {
+                        stmt.setInt(1, reservationId);
+                        if (stmt.executeUpdate() == 0) {
+                            connection.rollback();
+                            return false;
+                        }
+                    }
+                    if (next != null) queue.markAssigned(connection, next, copyId);
+                    try (PreparedStatement stmt = connection.prepareStatement(
+                            "UPDATE COPIES SET status = ? WHERE id = ? AND status = '" + ReservationQueue.STATUS_ON_HOLD + "'")) {
+                        stmt.setString(1, status);
+                        stmt.setInt(2, copyId);
+                        if (stmt.executeUpdate() > 0) events.record(CirculationLog.STATUS_CHANGE, copyId, 0, 0, status);
+                    }
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    events.abort();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            } finally {
+                ConnectionLock.unlock(connection);
+            }
+            AuditTrail.record("UPDATE", "RESERVATIONS", reservationId, "cancelled, copy " + copyId + " released" +
+                    (next == null ? "" : " to reservation " + next.id));
+            CopyBarcodeIndex.copyStatusChanged(copyId, status);
+            if (next != null) queue.removeHead(bookId, next);
+        } finally {
+            bookLock.unlock();
+        }
+        events.awaitDurable();
+        return true;
+    }
+
+    // Deletes a user that has no borrowings, live, archived or at other
+    // branches, and is not a librarian. The checks and the delete are one statement; the BORROWINGS
+    // foreign key stops a loan committed concurrently from being left without
+    // its user. The archive is checked after the delete, inside the same
+    // transaction: the archiver writes its segment before it deletes the rows,
+    // so a user whose last loans were archived meanwhile is still found.
+    // The user's reservations go in the same transaction: a copy on hold for
+    // the user moves on to the next holder of its book or back to "Available".
+    public static boolean deleteUser(Connection connection, int userId, BorrowingArchive archive) throws SQLException {
+        List<Integer> bookIds = new ArrayList<>();
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT DISTINCT bookid FROM RESERVATIONS WHERE userid = ? AND status IN ('Waiting', 'Assigned') ORDER BY bookid")) {
+                stmt.setInt(1, userId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) bookIds.add(rs.getInt("bookid"));
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        CirculationLog.Transaction events = CirculationLog.begin();
+        boolean deleted = deleteUser(connection, userId, archive, bookIds, 0, events);
+        events.awaitDurable();
+        return deleted;
+    }
+
+    // Takes the book locks in ascending book id order, then the connection,
+    // the same order every other reservation change uses
+    private static boolean deleteUser(Connection connection, int userId, BorrowingArchive archive,
+                                      List<Integer> bookIds, int locked, CirculationLog.Transaction events) throws SQLException {
+        ReservationQueue queue = ReservationQueue.getInstance();
+        if (locked < bookIds.size()) {
+            ReentrantLock bookLock = queue.lockFor(bookIds.get(locked));
+            bookLock.lock();
+            try {
+                return deleteUser(connection, userId, archive, bookIds, locked + 1, events);
+            } finally {
+                bookLock.unlock();
+            }
+        }
+
+        // Delete query with conditions
+        String deleteQuery = "DELETE FROM USERS\n" +
+                "WHERE id = ?\n" +
+                "AND NOT EXISTS (SELECT 1 FROM BORROWINGS WHERE userid = ?)\n" +
+                "AND NOT EXISTS (SELECT 1 FROM BRANCH_LOANS WHERE userid = ?)\n" +
+                "AND NOT EXISTS (SELECT 1 FROM USERS u left join LIBRARIANS l WHERE u.id = ? and l.userid = ?)";
+
+        ConnectionLock.lock(connection);
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            List<Integer> cancelled = new ArrayList<>();
+            Map<Integer, String> released = new LinkedHashMap<>();
+            Map<ReservationQueue.Reservation, Integer> handedOn = new LinkedHashMap<>();
+            boolean deleted;
+            try {
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "SELECT id, bookid, copyid, status FROM RESERVATIONS\n" +
+                        "WHERE userid = ? AND status IN ('Waiting', 'Assigned')\n" +
+                        "ORDER BY id")) {
+                    stmt.setInt(1, userId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            cancelled.add(rs.getInt("id"));
+                            if (!"Assigned".equals(rs.getString("status"))) continue;
+                            int bookId = rs.getInt("bookid");
+                            int copyId = rs.getInt("copyid");
+                            ReservationQueue.Reservation next = bookIds.contains(bookId)
+                                    ? queue.peekNextExcept(bookId, userId, handedOn.keySet()) : null;
+                            if (next != null) handedOn.put(next, copyId);
+                            released.put(copyId, next == null ? "Available" : ReservationQueue.STATUS_ON_HOLD);
+                        }
+                    }
+                }
+                for (Map.Entry<ReservationQueue.Reservation, Integer> entry : handedOn.entrySet()) {
+                    queue.markAssigned(connection, entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry<Integer, String> entry : released.entrySet()) {
+                    try (PreparedStatement stmt = connection.prepareStatement(
+                            "UPDATE COPIES SET status = ? WHERE id = ? AND status = '" + ReservationQueue.STATUS_ON_HOLD + "'")) {
+                        stmt.setString(1, entry.getValue());
+                        stmt.setInt(2, entry.getKey());
+                        if (stmt.executeUpdate() > 0) {
+                            events.record(CirculationLog.STATUS_CHANGE, entry.getKey(), 0, 0, entry.getValue());
+                        }
+                    }
+                }
+                // The rows reference the user, so they cannot outlive it
+                try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM RESERVATIONS WHERE userid = ?")) {
+                    stmt.setInt(1, userId);
+                    stmt.executeUpdate();
+                }
+                try (PreparedStatement deleteStmt = connection.prepareStatement(deleteQuery)) {
+                    deleteStmt.setInt(1, userId);
+                    deleteStmt.setInt(2, userId);
+                    deleteStmt.setInt(3, userId);
+                    deleteStmt.setInt(4, userId);
+                    deleteStmt.setInt(5, userId);
+                    deleted = deleteStmt.executeUpdate() > 0;
+                }
+                if (!deleted || (archive != null && archive.hasHistory(userId))) {
+                    connection.rollback();
+                    events.abort();
+                    return false;
+                }
+                events.record(CirculationLog.USER_DELETE, userId, 0, 0, null);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                events.abort();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            queue.forgetUser(userId);
+            for (Map.Entry<ReservationQueue.Reservation, Integer> entry : handedOn.entrySet()) {
+                queue.remove(entry.getKey().bookId, entry.getKey());
+            }
+            for (Map.Entry<Integer, String> entry : released.entrySet()) {
+                CopyBarcodeIndex.copyStatusChanged(entry.getKey(), entry.getValue());
+            }
+            for (int reservationId : cancelled) {
+                AuditTrail.record("DELETE", "RESERVATIONS", reservationId, "cancelled, user " + userId + " deleted");
+            }
+            AuditTrail.record("DELETE", "USERS", userId, null);
+            return true;
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+    }
+
+    static int findBookId(Connection connection, int copyId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT bookid FROM COPIES WHERE id = ?")) {
+            stmt.setInt(1, copyId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt("bookid") : -1;
+            }
+        }
+    }
+}
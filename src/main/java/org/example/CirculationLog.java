@@ -0,0 +1,534 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Append-only log of circulation events kept next to the database.
+//
+// Events are appended to an in-memory buffer; a flusher thread writes the
+// buffer to the current segment and fsyncs once per batch (group commit), so
+// appenders never wait on the disk unless they ask for durability with
+// awaitDurable(). Segments roll at SEGMENT_SIZE and are named after the
+// sequence number of their first event.
+//
+// Changes to BORROWINGS and COPIES append their events inside the
+// transaction, so the log keeps commit order. The caller waits for them to be
+// durable after the commit, once its locks are released (see Transaction);
+// a crash in those few milliseconds can cost the log the newest events. If
+// the commit fails, an ABORT event voids them and replay skips them.
+//
+// A new log starts with a snapshot of every copy's status and every open
+// loan, so replay never depends on history from before the log existed.
+// Only one process may write the directory at a time: the GUI and the server
+// both default to ./db/events, and the second one to start runs without a
+// log instead of interleaving its own sequence numbers into the segments.
+//
+// Record: length (int, payload only) | CRC32C of payload (int) | payload
+// Payload: sequence (long) | timestamp millis (long) | type (byte) | a, b, c (int) | text (UTF-8, rest)
+public class CirculationLog implements AutoCloseable {
+    public static final byte BORROW = 1;         // a = borrowing id, b = user id, c = copy id
+    public static final byte RETURN = 2;         // a = copy id, b = reservation id or -1, c = borrowing id
+    public static final byte STATUS_CHANGE = 3;  // a = copy id, text = new status
+    public static final byte USER_CREATE = 4;    // a = user id, text = email
+    public static final byte USER_DELETE = 5;    // a = user id
+    public static final byte ABORT = 6;          // text = comma-separated sequences of the voided events
+    public static final byte ARCHIVE = 7;        // a = borrowing id, b = user id, c = copy id
+
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int HEADER = 8;
+    private static final int FIXED_PAYLOAD = 8 + 8 + 1 + 12;
+    private static final long FLUSH_INTERVAL_MILLIS = 5;
+
+    private static volatile CirculationLog instance;
+
+    private final Path directory;
+    private final FileChannel lockChannel;
+    private final FileLock fileLock;
+    // Not a monitor: appenders on virtual threads wait for the flusher here
+    private final ReentrantLock mutex = new ReentrantLock();
+    private final Condition appended = mutex.newCondition();
+    private final Condition flushed = mutex.newCondition();
+    private FileChannel channel;
+    private long segmentBytes;
+    private ByteBuffer pending = ByteBuffer.allocate(1024 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(1024 * 1024);
+    private long nextSequence;
+    private long appendedSequence;
+    private long durableSequence;
+    private volatile boolean closed;
+    private IOException failure;
+    private final Thread flusher;
+
+    public record Event(long sequence, long timestamp, byte type, int a, int b, int c, String text) {
+    }
+
+    private CirculationLog(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve("events.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("Circulation log at " + directory + " is in use by another process");
+        }
+        fileLock = acquired;
+        long last;
+        try {
+            last = recover();
+        } catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+        nextSequence = last + 1;
+        appendedSequence = last;
+        durableSequence = last;
+
+        flusher = new Thread(this::flushLoop, "circulation-log");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Opens the segment to append to and returns the last sequence written
+    private long recover() throws IOException {
+        List<Path> segments = segments(directory);
+        if (segments.isEmpty()) {
+            openSegment(directory.resolve(segmentName(1)));
+            return 0;
+        }
+        // Drop a torn record left by a crash at the tail of the last segment
+        Path tail = segments.get(segments.size() - 1);
+        long[] end = scan(tail, Long.MAX_VALUE, null);
+        try (FileChannel file = FileChannel.open(tail, StandardOpenOption.WRITE)) {
+            file.truncate(end[0]);
+        }
+        openSegment(tail);
+        return end[1] > 0 ? end[1] : firstSequence(tail) - 1;
+    }
+
+    public static CirculationLog open(Path directory) throws IOException {
+        CirculationLog log = new CirculationLog(directory);
+        instance = log;
+        System.out.println("Circulation log opened at sequence " + log.nextSequence);
+        return log;
+    }
+
+    // Opens the log and, if it was just created, seeds it from the database
+    public static CirculationLog open(Path directory, Connection connection) throws IOException, SQLException {
+        CirculationLog log = new CirculationLog(directory);
+        try {
+            if (log.nextSequence == 1) log.writeSnapshot(connection);
+        } catch (IOException | SQLException e) {
+            log.close();
+            throw e;
+        }
+        instance = log;
+        System.out.println("Circulation log opened at sequence " + log.nextSequence);
+        return log;
+    }
+
+    // Current copy statuses and open loans as ordinary events
+    private void writeSnapshot(Connection connection) throws IOException, SQLException {
+        long last = 0;
+        ConnectionLock.lock(connection);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.setFetchSize(1000);
+            try (ResultSet rs = stmt.executeQuery("SELECT id, status FROM COPIES ORDER BY id")) {
+                while (rs.next()) last = append(STATUS_CHANGE, rs.getInt("id"), 0, 0, rs.getString("status"));
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT id, userid, copyid FROM BORROWINGS WHERE returndate IS NULL ORDER BY id")) {
+                while (rs.next()) last = append(BORROW, rs.getInt("id"), rs.getInt("userid"), rs.getInt("copyid"), null);
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        try {
+            awaitDurable(last);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the circulation log snapshot", e);
+        }
+    }
+
+    public static CirculationLog getInstance() {
+        return instance;
+    }
+
+    // Events of one database transaction. record() appends right away,
+    // abort() goes after a rollback and awaitDurable() after the commit, once
+    // every lock is released. Without a log every call does nothing.
+    public static final class Transaction {
+        private final CirculationLog log;
+        private final List<Long> sequences = new ArrayList<>();
+
+        private Transaction(CirculationLog log) {
+            this.log = log;
+        }
+
+        public void record(byte type, int a, int b, int c, String text) throws SQLException {
+            if (log == null) return;
+            try {
+                sequences.add(log.append(type, a, b, c, text));
+            } catch (IOException e) {
+                throw new SQLException("Circulation log not writable", e);
+            }
+        }
+
+        // The change is committed by now, so a log failure is reported
+        // rather than thrown
+        public void awaitDurable() {
+            if (log == null || sequences.isEmpty()) return;
+            try {
+                log.awaitDurable(sequences.get(sequences.size() - 1));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Error while writing the circulation log");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.out.println("Interrupted while writing the circulation log");
+            }
+        }
+
+        public void abort() {
+            if (log == null || sequences.isEmpty()) return;
+            StringJoiner voided = new StringJoiner(",");
+            for (long sequence : sequences) voided.add(Long.toString(sequence));
+            sequences.clear();
+            try {
+                // Durable before the failure surfaces, so a replay never sees the voided events alone
+                log.awaitDurable(log.append(ABORT, 0, 0, 0, voided.toString()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Error while voiding circulation events " + voided);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.out.println("Interrupted while voiding circulation events " + voided);
+            }
+        }
+    }
+
+    public static Transaction begin() {
+        return new Transaction(instance);
+    }
+
+    // Convenience for the circulation code paths; does nothing without a log
+    public static void record(byte type, int a, int b, int c, String text) {
+        CirculationLog log = instance;
+        if (log == null) return;
+        try {
+            log.append(type, a, b, c, text);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error while writing the circulation log");
+        }
+    }
+
+    public long append(byte type, int a, int b, int c, String text) throws IOException {
+        mutex.lock();
+        try {
+            return appendLocked(type, a, b, c, text);
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private long appendLocked(byte type, int a, int b, int c, String text) throws IOException {
+        if (closed) throw new IOException("Circulation log is closed");
+        if (failure != null) throw new IOException("Circulation log failed", failure);
+        byte[] bytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_PAYLOAD + bytes.length;
+        if (pending.remaining() < HEADER + length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + HEADER + length));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+
+        long sequence = nextSequence++;
+        int start = pending.position();
+        pending.putInt(length).putInt(0);
+        pending.putLong(sequence).putLong(System.currentTimeMillis()).put(type).putInt(a).putInt(b).putInt(c).put(bytes);
+        CRC32C crc = new CRC32C();
+        crc.update(pending.array(), start + HEADER, length);
+        pending.putInt(start + 4, (int) crc.getValue());
+
+        appendedSequence = sequence;
+        appended.signal();
+        return sequence;
+    }
+
+    // Blocks until the event with this sequence has been fsynced
+    public void awaitDurable(long sequence) throws IOException, InterruptedException {
+        mutex.lock();
+        try {
+            while (durableSequence < sequence) {
+                if (failure != null) throw new IOException("Circulation log failed", failure);
+                if (closed && !flusher.isAlive()) throw new IOException("Circulation log is closed");
+                flushed.await();
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            mutex.lock();
+            try {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        appended.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0 && closed) return;
+                // Swap buffers so appenders keep going while this batch is written
+                ByteBuffer batch = pending;
+                pending = writing;
+                writing = batch;
+                target = appendedSequence;
+            } finally {
+                mutex.unlock();
+            }
+            try {
+                writing.flip();
+                writeBatch(writing);
+                mutex.lock();
+                try {
+                    durableSequence = target;
+                    flushed.signalAll();
+                } finally {
+                    mutex.unlock();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Error while flushing the circulation log");
+                // The tail of the segment is unknown now; stop taking events
+                mutex.lock();
+                try {
+                    failure = e;
+                    flushed.signalAll();
+                } finally {
+                    mutex.unlock();
+                }
+                return;
+            } finally {
+                writing.clear();
+            }
+            try {
+                Thread.sleep(FLUSH_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void writeBatch(ByteBuffer batch) throws IOException {
+        while (batch.hasRemaining()) {
+            if (segmentBytes >= SEGMENT_SIZE) {
+                // Roll at a record boundary: the first record of the batch names the segment
+                channel.force(false);
+                channel.close();
+                long firstSequence = batch.getLong(batch.position() + HEADER);
+                openSegment(directory.resolve(segmentName(firstSequence)));
+            }
+            int end = batch.position();
+            // Write whole records up to the segment limit
+            while (end < batch.limit() && (end == batch.position() || segmentBytes + (end - batch.position()) < SEGMENT_SIZE)) {
+                end += HEADER + batch.getInt(end);
+            }
+            ByteBuffer slice = batch.slice(batch.position(), end - batch.position());
+            while (slice.hasRemaining()) segmentBytes += channel.write(slice);
+            batch.position(end);
+        }
+        channel.force(false);
+    }
+
+    private void openSegment(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentBytes = channel.size();
+    }
+
+    // Replays every event with a timestamp up to and including untilMillis, in
+    // order, leaving out ABORT events and the events they void. The log may be
+    // open for writing in the same or another process meanwhile.
+    public static void replay(Path directory, long untilMillis, Consumer<Event> consumer) throws IOException {
+        // An ABORT can follow its events by any distance, so collect them first
+        Set<Long> voided = new HashSet<>();
+        for (Path segment : segments(directory)) {
+            scan(segment, Long.MAX_VALUE, event -> {
+                if (event.type() != ABORT) return;
+                for (String sequence : event.text().split(",")) voided.add(Long.parseLong(sequence));
+            });
+        }
+        for (Path segment : segments(directory)) {
+            long[] end = scan(segment, untilMillis, event -> {
+                if (event.type() != ABORT && !voided.contains(event.sequence())) consumer.accept(event);
+            });
+            if (end[2] == 1) return;
+        }
+    }
+
+    // Sequential read of one segment in large chunks. Returns the end offset
+    // of the last valid record, its sequence, and 1 if untilMillis was passed.
+    private static long[] scan(Path segment, long untilMillis, Consumer<Event> consumer) throws IOException {
+        long validEnd = 0;
+        long lastSequence = 0;
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4 * 1024 * 1024);
+            CRC32C crc = new CRC32C();
+            while (true) {
+                int read = file.read(buffer);
+                buffer.flip();
+                while (buffer.remaining() >= HEADER) {
+                    int length = buffer.getInt(buffer.position());
+                    if (length < FIXED_PAYLOAD || length > SEGMENT_SIZE) return new long[]{validEnd, lastSequence, 0};
+                    if (buffer.remaining() < HEADER + length) break;
+                    int checksum = buffer.getInt(buffer.position() + 4);
+                    crc.reset();
+                    crc.update(buffer.array(), buffer.position() + HEADER, length);
+                    if ((int) crc.getValue() != checksum) return new long[]{validEnd, lastSequence, 0};
+
+                    buffer.position(buffer.position() + HEADER);
+                    long sequence = buffer.getLong();
+                    long timestamp = buffer.getLong();
+                    byte type = buffer.get();
+                    int a = buffer.getInt();
+                    int b = buffer.getInt();
+                    int c = buffer.getInt();
+                    String text = null;
+                    int textLength = length - FIXED_PAYLOAD;
+                    if (textLength > 0) {
+                        text = new String(buffer.array(), buffer.position(), textLength, StandardCharsets.UTF_8);
+                        buffer.position(buffer.position() + textLength);
+                    }
+                    if (timestamp > untilMillis) return new long[]{validEnd, lastSequence, 1};
+                    if (consumer != null) consumer.accept(new Event(sequence, timestamp, type, a, b, c, text));
+                    validEnd += HEADER + length;
+                    lastSequence = sequence;
+                }
+                buffer.compact();
+                if (read < 0) break;
+                if (!buffer.hasRemaining()) {
+                    // A record longer than the buffer
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            }
+        }
+        return new long[]{validEnd, lastSequence, 0};
+    }
+
+    // Copy id -> status as of the given time, rebuilt from the log alone
+    public static Map<Integer, String> copyStatusAsOf(Path directory, long untilMillis) throws IOException {
+        Map<Integer, String> statuses = new TreeMap<>();
+        replay(directory, untilMillis, event -> {
+            if (event.type() == STATUS_CHANGE) statuses.put(event.a(), event.text());
+        });
+        return statuses;
+    }
+
+    // User id -> number of open loans as of the given time
+    public static Map<Integer, Integer> openLoansAsOf(Path directory, long untilMillis) throws IOException {
+        Map<Integer, Integer> borrowerOfLoan = new HashMap<>();
+        Map<Integer, Integer> openLoans = new TreeMap<>();
+        replay(directory, untilMillis, event -> {
+            if (event.type() == BORROW) {
+                borrowerOfLoan.put(event.a(), event.b());
+                openLoans.merge(event.b(), 1, Integer::sum);
+            } else if (event.type() == RETURN) {
+                Integer user = borrowerOfLoan.remove(event.c());
+                if (user != null) openLoans.merge(user, -1, (x, y) -> x + y == 0 ? null : x + y);
+            }
+        });
+        return openLoans;
+    }
+
+    // --events copies|loans [yyyy-mm-ddThh:mm[:ss]]: copy statuses or open loans
+    // per user as of now or the given time, from ./db/events alone
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || !(args[0].equals("copies") || args[0].equals("loans"))) {
+            System.out.println("Usage: --events copies|loans [yyyy-mm-ddThh:mm[:ss]]");
+            return;
+        }
+        long until = args.length > 1
+                ? LocalDateTime.parse(args[1]).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+                : Long.MAX_VALUE;
+        Path directory = Paths.get("./db/events");
+        Map<Integer, ?> state = args[0].equals("copies") ? copyStatusAsOf(directory, until) : openLoansAsOf(directory, until);
+        String label = args[0].equals("copies") ? "copy" : "user";
+        for (Map.Entry<Integer, ?> entry : state.entrySet()) System.out.println(label + " " + entry.getKey() + ": " + entry.getValue());
+        System.out.println(state.size() + (args[0].equals("copies") ? " copies" : " users with open loans"));
+    }
+
+    @Override
+    public void close() throws IOException {
+        mutex.lock();
+        try {
+            closed = true;
+            appended.signal();
+        } finally {
+            mutex.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mutex.lock();
+        try {
+            // Wakes awaitDurable() callers whose events did not make it
+            flushed.signalAll();
+        } finally {
+            mutex.unlock();
+        }
+        channel.force(true);
+        channel.close();
+        fileLock.release();
+        lockChannel.close();
+        if (instance == this) instance = null;
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "events-*.log")) {
+            files.forEach(segments::add);
+        }
+        segments.sort(Comparator.comparing(path -> path.getFileName().toString()));
+        return segments;
+    }
+
+    private static String segmentName(long firstSequence) {
+        return String.format("events-%019d.log", firstSequence);
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring("events-".length(), name.length() - ".log".length()));
+    }
+}
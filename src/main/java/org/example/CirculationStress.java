@@ -0,0 +1,208 @@
+package org.example;
+
+import java.sql.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Stress harness for concurrent circulation. Many virtual threads run a random
+// mix of borrow, return, delete-user and add-copy operations through the same
+// code the desk uses (Circulation), then the database is checked for:
+//   - a copy with more than one open borrowing
+//   - a borrowing whose user no longer exists
+//   - a copy status that disagrees with its open borrowings
+// Usage: CirculationStress [threads] [seconds] [jdbc url]
+// Without a url a fresh in-memory database with the library schema is used.
+public class CirculationStress {
+    private static final String[] OPERATIONS = {"borrow", "return", "deleteUser", "addCopy", "addUser"};
+
+    private final String url;
+    private final BlockingQueue<Connection> pool;
+    private final Map<String, LongAdder> completed = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> rejected = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCopyNumber = new AtomicInteger(1_000_000);
+    private final AtomicInteger nextUser = new AtomicInteger();
+    private int maxUserId;
+    private int maxCopyId;
+    private int maxBookId;
+
+    public CirculationStress(String url, int connections) throws SQLException {
+        this.url = url;
+        this.pool = new ArrayBlockingQueue<>(connections);
+        for (int i = 0; i < connections; i++) pool.add(DriverManager.getConnection(url));
+        for (String operation : OPERATIONS) {
+            completed.put(operation, new LongAdder());
+            rejected.put(operation, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String url = args.length > 2 ? args[2] : "jdbc:h2:mem:stress;DB_CLOSE_DELAY=-1";
+
+        CirculationStress stress = new CirculationStress(url, 32);
+        if (args.length <= 2) stress.createSchema(500, 200, 2000);
+        List<String> violations = stress.run(threads, seconds);
+        System.exit(violations.isEmpty() ? 0 : 1);
+    }
+
+    // Same tables as ./db/database, filled with synthetic users, books and copies
+    public void createSchema(int users, int books, int copies) throws SQLException {
+        Connection connection = pool.peek();
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE PUBLISHERS(id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR, address VARCHAR, phonenumber VARCHAR)");
+            stmt.execute("CREATE TABLE BOOKS(id INT AUTO_INCREMENT PRIMARY KEY, title VARCHAR, author VARCHAR, " +
+                    "publisher VARCHAR REFERENCES PUBLISHERS(id), publicationyear INT, isbn VARCHAR UNIQUE)");
+            stmt.execute("CREATE TABLE USERS(id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR, email VARCHAR UNIQUE, phonenumber VARCHAR, address VARCHAR)");
+            stmt.execute("CREATE TABLE LIBRARIANS(id INT AUTO_INCREMENT PRIMARY KEY, userid INT NOT NULL REFERENCES USERS(id), employmentdate DATE, position VARCHAR)");
+            stmt.execute("CREATE TABLE COPIES(id INT AUTO_INCREMENT PRIMARY KEY, bookid INT REFERENCES BOOKS(id), copynumber INT NOT NULL UNIQUE, status VARCHAR)");
+            stmt.execute("CREATE TABLE BORROWINGS(id INT AUTO_INCREMENT PRIMARY KEY, userid INT NOT NULL REFERENCES USERS(id), " +
+                    "copyid INT NOT NULL REFERENCES COPIES(id), borrowdate DATE NOT NULL, returndate DATE)");
+            stmt.execute("INSERT INTO PUBLISHERS(name) VALUES ('Stress Press')");
+            stmt.execute("INSERT INTO USERS(name, email) SELECT 'user' || X, 'user' || X || '@stress' FROM SYSTEM_RANGE(1, " + users + ")");
+            stmt.execute("INSERT INTO LIBRARIANS(userid, position) VALUES (1, 'Librarian')");
+            stmt.execute("INSERT INTO BOOKS(title, author, publisher, publicationyear, isbn) " +
+                    "SELECT 'book' || X, 'author', 1, 2000, 'isbn' || X FROM SYSTEM_RANGE(1, " + books + ")");
+            stmt.execute("INSERT INTO COPIES(bookid, copynumber, status) " +
+                    "SELECT MOD(X, " + books + ") + 1, X, 'Available' FROM SYSTEM_RANGE(1, " + copies + ")");
+        }
+        ReservationQueue.createTable(connection);
+        BranchRouter.createTable(connection);
+        nextUser.set(users);
+    }
+
+    public List<String> run(int threads, int seconds) throws Exception {
+        Connection first = pool.peek();
+        maxUserId = maxId(first, "USERS");
+        maxCopyId = maxId(first, "COPIES");
+        maxBookId = maxId(first, "BOOKS");
+        if (nextUser.get() == 0) nextUser.set(maxUserId);
+
+        System.out.printf("Running %d virtual threads for %d s against %s%n", threads, seconds, url);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int t = 0; t < threads; t++) {
+                executor.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        String operation = pick(random);
+                        Connection connection = pool.take();
+                        try {
+                            if (perform(connection, operation, random)) completed.get(operation).increment();
+                            else rejected.get(operation).increment();
+                        } catch (SQLException e) {
+                            // Lock timeouts and constraint violations are legitimate refusals
+                            rejected.get(operation).increment();
+                        } finally {
+                            pool.add(connection);
+                        }
+                    }
+                    return null;
+                });
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long total = 0;
+        for (String operation : OPERATIONS) {
+            long done = completed.get(operation).sum();
+            long refused = rejected.get(operation).sum();
+            total += done + refused;
+            System.out.printf("%-10s %8d done %8d refused%n", operation, done, refused);
+        }
+        System.out.printf("throughput: %.0f ops/s%n", total / elapsed);
+
+        List<String> violations = checkInvariants(first);
+        if (violations.isEmpty()) System.out.println("No invariant violations");
+        else violations.forEach(v -> System.out.println("VIOLATION: " + v));
+        return violations;
+    }
+
+    private static String pick(ThreadLocalRandom random) {
+        int roll = random.nextInt(100);
+        if (roll < 45) return "borrow";
+        if (roll < 85) return "return";
+        if (roll < 93) return "deleteUser";
+        if (roll < 97) return "addCopy";
+        return "addUser";
+    }
+
+    private boolean perform(Connection connection, String operation, ThreadLocalRandom random) throws SQLException {
+        switch (operation) {
+            case "borrow" -> {
+                Circulation.borrowCopy(connection, 1 + random.nextInt(nextUser.get()), 1 + random.nextInt(maxCopyId));
+                return true;
+            }
+            case "return" -> {
+                int copyId = 1 + random.nextInt(maxCopyId);
+                if (!hasOpenLoan(connection, copyId)) return false;
+                Circulation.returnCopy(connection, copyId);
+                return true;
+            }
+            case "deleteUser" -> {
+                return Circulation.deleteUser(connection, 2 + random.nextInt(nextUser.get() - 1), null);
+            }
+            case "addCopy" -> {
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "INSERT INTO COPIES(bookid, copynumber, status) VALUES (?, ?, 'Available')")) {
+                    stmt.setInt(1, 1 + random.nextInt(maxBookId));
+                    stmt.setInt(2, nextCopyNumber.incrementAndGet());
+                    stmt.executeUpdate();
+                }
+                return true;
+            }
+            default -> {
+                int id = nextUser.incrementAndGet();
+                try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO USERS(name, email) VALUES (?, ?)")) {
+                    stmt.setString(1, "user" + id);
+                    stmt.setString(2, "user" + id + "-" + System.nanoTime() + "@stress");
+                    stmt.executeUpdate();
+                }
+                return true;
+            }
+        }
+    }
+
+    private static boolean hasOpenLoan(Connection connection, int copyId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT 1 FROM BORROWINGS WHERE copyid = ? AND returndate IS NULL")) {
+            stmt.setInt(1, copyId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    public static List<String> checkInvariants(Connection connection) throws SQLException {
+        List<String> violations = new ArrayList<>();
+        collect(connection, violations, "copy on loan twice",
+                "SELECT copyid, COUNT(*) FROM BORROWINGS WHERE returndate IS NULL GROUP BY copyid HAVING COUNT(*) > 1");
+        collect(connection, violations, "borrowing of a deleted user",
+                "SELECT b.id, b.userid FROM BORROWINGS b LEFT JOIN USERS u ON u.id = b.userid WHERE u.id IS NULL");
+        collect(connection, violations, "copy 'not Available' without an open loan",
+                "SELECT c.id, c.status FROM COPIES c WHERE c.status = 'not Available'\n" +
+                "AND NOT EXISTS (SELECT 1 FROM BORROWINGS b WHERE b.copyid = c.id AND b.returndate IS NULL)");
+        collect(connection, violations, "copy on loan but not marked 'not Available'",
+                "SELECT c.id, c.status FROM COPIES c WHERE c.status <> 'not Available'\n" +
+                "AND EXISTS (SELECT 1 FROM BORROWINGS b WHERE b.copyid = c.id AND b.returndate IS NULL)");
+        return violations;
+    }
+
+    private static void collect(Connection connection, List<String> violations, String label, String query) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            while (rs.next()) violations.add(label + ": " + rs.getString(1) + " / " + rs.getString(2));
+        }
+    }
+
+    private static int maxId(Connection connection, String table) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
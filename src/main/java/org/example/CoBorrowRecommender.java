@@ -0,0 +1,350 @@
+package org.example;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+// "Readers also borrowed" recommendations. Keeps, for every book, how often it
+// was borrowed by the same user as every other book (a sparse item-item matrix
+// of primitive maps), plus a precomputed top-K neighbour list per book that is
+// what recommend() actually reads.
+// The file remembers the last borrowing it covers; loans committed after the
+// last save are replayed from BORROWINGS on the next start.
+public class CoBorrowRecommender {
+    private static final int MAGIC = 0x4C524532; // "LRE2", with the last borrowing id
+    private static final int TOP_K = 20;
+    private static final int HISTORY_WINDOW = 30;
+
+    private static volatile CoBorrowRecommender instance;
+
+    // book -> (other book -> number of users who borrowed both)
+    private final Map<Integer, IntIntMap> coCounts = new HashMap<>();
+    // book -> {neighbour ids..., scores...}, replaced wholesale so reads need no lock
+    private final Map<Integer, int[]> topK = new ConcurrentHashMap<>();
+    // user -> distinct books borrowed, in borrow order
+    private final Map<Integer, int[]> histories = new ConcurrentHashMap<>();
+    // Highest BORROWINGS.id folded into the matrix
+    private volatile int lastBorrowingId;
+    private volatile boolean dirty;
+
+    public static CoBorrowRecommender getInstance() {
+        return instance;
+    }
+
+    // Restores the matrix from file when present and catches up with the loans
+    // made since it was saved, otherwise builds it from BORROWINGS. The file is
+    // then rewritten every saveMinutes while there are new loans, and on shutdown.
+    // Loans committed while this runs find no instance to feed; publish() picks
+    // them up from BORROWINGS once the instance is visible.
+    public static CoBorrowRecommender loadOrBuild(Connection connection, Path file, int saveMinutes) throws SQLException, IOException {
+        CoBorrowRecommender engine = null;
+        long start = System.nanoTime();
+        if (Files.exists(file)) {
+            try {
+                engine = restore(file);
+                int replayed = engine.catchUp(connection);
+                System.out.printf("Recommendations restored in %d ms, %d newer loans replayed%n",
+                        (System.nanoTime() - start) / 1_000_000, replayed);
+            } catch (IOException e) {
+                System.out.println("Rebuilding recommendations: " + e.getMessage());
+            }
+        }
+        if (engine == null) {
+            engine = build(connection);
+            engine.dirty = true;
+            System.out.printf("Recommendations built in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+        }
+        publish(engine, connection);
+        engine.saveIfDirty(file);
+
+        CoBorrowRecommender saved = engine;
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "recommendations-saver");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> saved.saveIfDirty(file), saveMinutes, saveMinutes, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> saved.saveIfDirty(file)));
+        return engine;
+    }
+
+    // Makes the engine the one Circulation feeds, then replays the loans above
+    // its high-water mark: those committed before this point were skipped while
+    // there was no instance, later ones reach onBorrow directly, and a loan
+    // seen both ways is counted once.
+    static void publish(CoBorrowRecommender engine, Connection connection) throws SQLException {
+        instance = engine;
+        int replayed = engine.catchUp(connection);
+        if (replayed > 0) System.out.println("Recommendations caught up with " + replayed + " loans made while loading");
+    }
+
+    private void saveIfDirty(Path file) {
+        if (!dirty) return;
+        try {
+            save(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error while saving recommendations");
+        }
+    }
+
+    // Folds in the loans with an id above the last one covered. onBorrow ignores
+    // books a user already has, so loans seen twice do not count twice.
+    int catchUp(Connection connection) throws SQLException {
+        String query = "SELECT BORROWINGS.id, BORROWINGS.userid, COPIES.bookid\n" +
+                       "FROM BORROWINGS\n" +
+                       "JOIN COPIES ON COPIES.id = BORROWINGS.copyid\n" +
+                       "WHERE BORROWINGS.id > ?\n" +
+                       "ORDER BY BORROWINGS.id";
+        int replayed = 0;
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                stmt.setInt(1, lastBorrowingId);
+                stmt.setFetchSize(1000);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        onBorrow(rs.getInt(1), rs.getInt(2), rs.getInt(3));
+                        replayed++;
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        return replayed;
+    }
+
+    public static CoBorrowRecommender build(Connection connection) throws SQLException {
+        String query = "SELECT BORROWINGS.userid, COPIES.bookid, BORROWINGS.id\n" +
+                       "FROM BORROWINGS\n" +
+                       "JOIN COPIES ON COPIES.id = BORROWINGS.copyid\n" +
+                       "ORDER BY BORROWINGS.userid, BORROWINGS.borrowdate, BORROWINGS.id";
+
+        CoBorrowRecommender engine = new CoBorrowRecommender();
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.setFetchSize(1000);
+                try (ResultSet rs = stmt.executeQuery(query)) {
+                    int currentUser = Integer.MIN_VALUE;
+                    int[] books = new int[8];
+                    int count = 0;
+                    while (rs.next()) {
+                        int userId = rs.getInt(1);
+                        int bookId = rs.getInt(2);
+                        engine.lastBorrowingId = Math.max(engine.lastBorrowingId, rs.getInt(3));
+                        if (userId != currentUser) {
+                            if (count > 0) engine.histories.put(currentUser, Arrays.copyOf(books, count));
+                            currentUser = userId;
+                            count = 0;
+                        }
+                        if (indexOf(books, count, bookId) < 0) {
+                            if (count == books.length) books = Arrays.copyOf(books, count * 2);
+                            books[count++] = bookId;
+                        }
+                    }
+                    if (count > 0) engine.histories.put(currentUser, Arrays.copyOf(books, count));
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+
+        // Users are split into chunks that count pairs independently, then merged
+        List<int[]> users = new ArrayList<>(engine.histories.values());
+        int chunks = Math.max(1, Math.min(users.size(), Runtime.getRuntime().availableProcessors() * 4));
+        Map<Integer, IntIntMap> merged = IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> {
+                    Map<Integer, IntIntMap> local = new HashMap<>();
+                    for (int u = chunk; u < users.size(); u += chunks) {
+                        int[] books = users.get(u);
+                        for (int i = 0; i < books.length; i++) {
+                            for (int j = 0; j < books.length; j++) {
+                                if (i != j) local.computeIfAbsent(books[i], b -> new IntIntMap()).addTo(books[j], 1);
+                            }
+                        }
+                    }
+                    return local;
+                })
+                .reduce(CoBorrowRecommender::merge)
+                .orElseGet(HashMap::new);
+        engine.coCounts.putAll(merged);
+
+        engine.coCounts.keySet().parallelStream().forEach(engine::refreshTopK);
+        return engine;
+    }
+
+    private static Map<Integer, IntIntMap> merge(Map<Integer, IntIntMap> into, Map<Integer, IntIntMap> from) {
+        for (Map.Entry<Integer, IntIntMap> entry : from.entrySet()) {
+            IntIntMap target = into.computeIfAbsent(entry.getKey(), b -> new IntIntMap());
+            IntIntMap source = entry.getValue();
+            for (int slot = 0; slot < source.capacity(); slot++) {
+                if (source.keyAt(slot) != IntIntMap.emptyKey()) target.addTo(source.keyAt(slot), source.valueAt(slot));
+            }
+        }
+        return into;
+    }
+
+    // Called after a loan commits; only the books the user borrowed before are touched
+    public synchronized void onBorrow(int borrowingId, int userId, int bookId) {
+        lastBorrowingId = Math.max(lastBorrowingId, borrowingId);
+        dirty = true;
+        int[] history = histories.getOrDefault(userId, new int[0]);
+        if (indexOf(history, history.length, bookId) >= 0) return;
+
+        for (int other : history) {
+            coCounts.computeIfAbsent(other, b -> new IntIntMap()).addTo(bookId, 1);
+            coCounts.computeIfAbsent(bookId, b -> new IntIntMap()).addTo(other, 1);
+            refreshTopK(other);
+        }
+        refreshTopK(bookId);
+
+        int[] updated = Arrays.copyOf(history, history.length + 1);
+        updated[history.length] = bookId;
+        histories.put(userId, updated);
+    }
+
+    private void refreshTopK(int bookId) {
+        IntIntMap counts = coCounts.get(bookId);
+        if (counts == null) return;
+        // Min-heap of the best K neighbours, packed as (count << 32 | id)
+        PriorityQueue<Long> best = new PriorityQueue<>(TOP_K + 1);
+        for (int slot = 0; slot < counts.capacity(); slot++) {
+            int other = counts.keyAt(slot);
+            if (other == IntIntMap.emptyKey()) continue;
+            best.add(((long) counts.valueAt(slot) << 32) | (other & 0xFFFFFFFFL));
+            if (best.size() > TOP_K) best.poll();
+        }
+        int k = best.size();
+        int[] packed = new int[k * 2];
+        for (int i = k - 1; i >= 0; i--) {
+            long entry = best.poll();
+            packed[i] = (int) entry;
+            packed[k + i] = (int) (entry >>> 32);
+        }
+        topK.put(bookId, packed);
+    }
+
+    // Books most often co-borrowed with the user's recent loans that they have not borrowed yet
+    public int[] recommend(int userId, int limit) {
+        int[] history = histories.get(userId);
+        if (history == null || history.length == 0) return new int[0];
+
+        IntIntMap scores = new IntIntMap(64);
+        int from = Math.max(0, history.length - HISTORY_WINDOW);
+        for (int i = from; i < history.length; i++) {
+            int[] neighbours = topK.get(history[i]);
+            if (neighbours == null) continue;
+            int k = neighbours.length / 2;
+            for (int n = 0; n < k; n++) scores.addTo(neighbours[n], neighbours[k + n]);
+        }
+
+        long[] ranked = new long[scores.size()];
+        int count = 0;
+        for (int slot = 0; slot < scores.capacity(); slot++) {
+            int bookId = scores.keyAt(slot);
+            if (bookId == IntIntMap.emptyKey() || indexOf(history, history.length, bookId) >= 0) continue;
+            ranked[count++] = ((long) scores.valueAt(slot) << 32) | (bookId & 0xFFFFFFFFL);
+        }
+        Arrays.sort(ranked, 0, count);
+        int[] result = new int[Math.min(limit, count)];
+        for (int i = 0; i < result.length; i++) result[i] = (int) ranked[count - 1 - i];
+        return result;
+    }
+
+    // Format: magic, last borrowing id, user count, users (id, book count, varint book ids), book
+    // count, books (id, neighbour count, varint neighbour id deltas and counts)
+    public synchronized void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(lastBorrowingId);
+            out.writeInt(histories.size());
+            for (Map.Entry<Integer, int[]> user : histories.entrySet()) {
+                out.writeInt(user.getKey());
+                writeVarInt(out, user.getValue().length);
+                for (int bookId : user.getValue()) writeVarInt(out, bookId);
+            }
+            out.writeInt(coCounts.size());
+            for (Map.Entry<Integer, IntIntMap> book : coCounts.entrySet()) {
+                IntIntMap counts = book.getValue();
+                int[] ids = new int[counts.size()];
+                int n = 0;
+                for (int slot = 0; slot < counts.capacity(); slot++) {
+                    if (counts.keyAt(slot) != IntIntMap.emptyKey()) ids[n++] = counts.keyAt(slot);
+                }
+                Arrays.sort(ids);
+                out.writeInt(book.getKey());
+                writeVarInt(out, n);
+                int previous = 0;
+                for (int id : ids) {
+                    writeVarInt(out, id - previous);
+                    writeVarInt(out, counts.get(id, 0));
+                    previous = id;
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    public static CoBorrowRecommender restore(Path file) throws IOException {
+        CoBorrowRecommender engine = new CoBorrowRecommender();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a recommendation file: " + file);
+            engine.lastBorrowingId = in.readInt();
+            int users = in.readInt();
+            for (int u = 0; u < users; u++) {
+                int userId = in.readInt();
+                int[] books = new int[readVarInt(in)];
+                for (int i = 0; i < books.length; i++) books[i] = readVarInt(in);
+                engine.histories.put(userId, books);
+            }
+            int books = in.readInt();
+            for (int b = 0; b < books; b++) {
+                int bookId = in.readInt();
+                int n = readVarInt(in);
+                IntIntMap counts = new IntIntMap(n);
+                int id = 0;
+                for (int i = 0; i < n; i++) {
+                    id += readVarInt(in);
+                    counts.put(id, readVarInt(in));
+                }
+                engine.coCounts.put(bookId, counts);
+            }
+        }
+        engine.coCounts.keySet().forEach(engine::refreshTopK);
+        return engine;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int indexOf(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) if (array[i] == value) return i;
+        return -1;
+    }
+}
@@ -0,0 +1,27 @@
+package org.example;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serializes the statements and transactions on a shared JDBC connection, in
+// place of synchronized (connection): the server runs every request on a
+// virtual thread, and one that blocks inside a monitor pins its carrier
+// thread while one that blocks holding a ReentrantLock does not.
+// Usage: ConnectionLock.lock(connection); try { ... } finally { ConnectionLock.unlock(connection); }
+final class ConnectionLock {
+    private static final Map<Connection, ReentrantLock> LOCKS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private ConnectionLock() {
+    }
+
+    static void lock(Connection connection) {
+        LOCKS.computeIfAbsent(connection, c -> new ReentrantLock()).lock();
+    }
+
+    static void unlock(Connection connection) {
+        LOCKS.get(connection).unlock();
+    }
+}
@@ -0,0 +1,141 @@
+package org.example;
+
+import java.sql.*;
+import java.util.Arrays;
+
+// In-memory index from COPIES.COPYNUMBER (the barcode on the copy) to the copy
+// id, book id and status. Entries live in parallel primitive arrays found
+// through IntIntMaps, so a scan is resolved without touching the database.
+//
+// The status kept here is only a hint for the desk; the conditional update in
+// Circulation.borrowCopy() stays authoritative, and the entry is reloaded from
+// COPIES whenever the two disagree. Circulation reports every status it
+// commits through copyStatusChanged().
+public class CopyBarcodeIndex {
+    public static final byte AVAILABLE = 0;
+    public static final byte ON_LOAN = 1;
+    public static final byte ON_HOLD = 2;
+    public static final byte OTHER = 3;
+
+    private static volatile CopyBarcodeIndex instance;
+
+    // barcode -> row and copy id -> row in the parallel arrays below
+    private final IntIntMap rowsByNumber;
+    private final IntIntMap rowsByCopyId;
+    private int[] copyIds;
+    private int[] bookIds;
+    private byte[] statuses;
+    private int size;
+
+    public record Entry(int copyNumber, int copyId, int bookId, byte status) {
+    }
+
+    private CopyBarcodeIndex(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        rowsByNumber = new IntIntMap(capacity);
+        rowsByCopyId = new IntIntMap(capacity);
+        copyIds = new int[capacity];
+        bookIds = new int[capacity];
+        statuses = new byte[capacity];
+    }
+
+    public static CopyBarcodeIndex getInstance() {
+        return instance;
+    }
+
+    public static CopyBarcodeIndex load(Connection connection) throws SQLException {
+        CopyBarcodeIndex index;
+        ConnectionLock.lock(connection);
+        try {
+            int rows;
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM COPIES")) {
+                rs.next();
+                rows = rs.getInt(1);
+            }
+            index = new CopyBarcodeIndex(rows);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.setFetchSize(1000);
+                try (ResultSet rs = stmt.executeQuery("SELECT id, bookid, copynumber, status FROM COPIES")) {
+                    while (rs.next()) {
+                        index.put(rs.getInt("copynumber"), rs.getInt("id"), rs.getInt("bookid"), statusCode(rs.getString("status")));
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        instance = index;
+        System.out.println("Barcode index loaded: " + index.size + " copies");
+        return index;
+    }
+
+    public static byte statusCode(String status) {
+        if ("Available".equals(status)) return AVAILABLE;
+        if ("not Available".equals(status)) return ON_LOAN;
+        if (ReservationQueue.STATUS_ON_HOLD.equals(status)) return ON_HOLD;
+        return OTHER;
+    }
+
+    // Returns null when the barcode is unknown, even after checking COPIES
+    public Entry lookup(Connection connection, int copyNumber) throws SQLException {
+        synchronized (this) {
+            int row = rowsByNumber.get(copyNumber, -1);
+            if (row >= 0) return new Entry(copyNumber, copyIds[row], bookIds[row], statuses[row]);
+        }
+        // Copy added since startup
+        return refresh(connection, copyNumber);
+    }
+
+    public Entry refresh(Connection connection, int copyNumber) throws SQLException {
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT id, bookid, status FROM COPIES WHERE copynumber = ?")) {
+                stmt.setInt(1, copyNumber);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) return null;
+                    Entry entry = new Entry(copyNumber, rs.getInt("id"), rs.getInt("bookid"), statusCode(rs.getString("status")));
+                    put(copyNumber, entry.copyId(), entry.bookId(), entry.status());
+                    return entry;
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+    }
+
+    // Called by Circulation after a status change of the copy commits; does
+    // nothing without an index
+    public static void copyStatusChanged(int copyId, String status) {
+        CopyBarcodeIndex index = instance;
+        if (index != null) index.setStatus(copyId, statusCode(status));
+    }
+
+    public synchronized void setStatus(int copyId, byte status) {
+        int row = rowsByCopyId.get(copyId, -1);
+        if (row >= 0) statuses[row] = status;
+    }
+
+    public synchronized void put(int copyNumber, int copyId, int bookId, byte status) {
+        int row = rowsByNumber.get(copyNumber, -1);
+        if (row < 0) {
+            if (size == copyIds.length) {
+                int capacity = size * 2;
+                copyIds = Arrays.copyOf(copyIds, capacity);
+                bookIds = Arrays.copyOf(bookIds, capacity);
+                statuses = Arrays.copyOf(statuses, capacity);
+            }
+            row = size++;
+            rowsByNumber.put(copyNumber, row);
+        }
+        rowsByCopyId.put(copyId, row);
+        copyIds[row] = copyId;
+        bookIds[row] = bookId;
+        statuses[row] = status;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
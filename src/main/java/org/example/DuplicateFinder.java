@@ -0,0 +1,497 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Near-duplicate detection for BOOKS and PUBLISHERS.
+//
+// Every row is reduced to a normalized text (books: title, author and
+// publisher name; publishers: name), cut into character 3-grams and
+// summarised by a MinHash signature of SIGNATURE_SIZE values. Signatures are
+// computed in parallel and kept in DEDUP_SIGNATURES together with a hash of
+// the text, so later runs only recompute rows that are new or changed.
+// Locality-sensitive hashing splits each signature into BANDS bands; rows
+// sharing any band land in the same bucket and become candidate pairs, which
+// avoids comparing every pair. Candidates whose estimated Jaccard similarity
+// reaches the threshold are joined into clusters with a union-find.
+//
+// Merging keeps one row of a cluster, re-points the foreign keys of the others
+// to it and deletes them, a batch of clusters per transaction. Similar text
+// alone does not make two books the same edition, so merge-all only merges a
+// book into the survivor when their ISBNs are at most MAX_ISBN_EDITS edits
+// apart (a typo); the rest of the cluster is listed for a manual merge.
+public class DuplicateFinder {
+    private static final int SIGNATURE_SIZE = 128;
+    private static final int BANDS = 16;
+    private static final int ROWS_PER_BAND = SIGNATURE_SIZE / BANDS;
+    private static final int MERGES_PER_TRANSACTION = 100;
+    private static final double DEFAULT_THRESHOLD = 0.7;
+    private static final int MAX_ISBN_EDITS = 1;
+
+    // Hash function i is (A[i] * x + B[i]) over the 64-bit shingle hash
+    private static final long[] A = new long[SIGNATURE_SIZE];
+    private static final long[] B = new long[SIGNATURE_SIZE];
+
+    static {
+        Random random = new Random(0x4C444450L); // fixed seed: stored signatures must stay comparable
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            A[i] = random.nextLong() | 1;
+            B[i] = random.nextLong();
+        }
+    }
+
+    public enum Kind {
+        BOOKS("SELECT b.id, b.title, b.author, p.name FROM BOOKS b " + CatalogueSnapshot.PUBLISHER_JOIN),
+        PUBLISHERS("SELECT id, name FROM PUBLISHERS");
+
+        final String query;
+
+        Kind(String query) {
+            this.query = query;
+        }
+    }
+
+    public record Row(int id, String text) {
+    }
+
+    public record Cluster(List<Row> rows) {
+    }
+
+    private final Connection connection;
+
+    public DuplicateFinder(Connection connection) throws SQLException {
+        this.connection = connection;
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS DEDUP_SIGNATURES (" +
+                        "kind VARCHAR(16) NOT NULL, " +
+                        "id INT NOT NULL, " +
+                        "texthash BIGINT NOT NULL, " +
+                        "signature VARBINARY(" + SIGNATURE_SIZE * 4 + ") NOT NULL, " +
+                        "PRIMARY KEY (kind, id))");
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+    }
+
+    // dedup books|publishers [threshold]              list candidate clusters
+    // dedup books|publishers merge <keep id> <id>...  merge rows into the first
+    // dedup books|publishers merge-all [threshold]    merge every cluster
+    public static void main(String[] args) throws Exception {
+        Kind kind = Kind.valueOf(args.length > 0 ? args[0].toUpperCase() : "BOOKS");
+        Connection connection = DriverManager.getConnection(BranchRouter.localUrl());
+        DuplicateFinder finder = new DuplicateFinder(connection);
+        String command = args.length > 1 ? args[1] : "";
+
+        if (command.equals("merge")) {
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) ids.add(Integer.parseInt(args[i]));
+            finder.merge(kind, List.of(ids));
+        } else {
+            double threshold = DEFAULT_THRESHOLD;
+            if (command.equals("merge-all") && args.length > 2) threshold = Double.parseDouble(args[2]);
+            else if (!command.isEmpty() && !command.equals("merge-all")) threshold = Double.parseDouble(command);
+
+            List<Cluster> clusters = finder.findClusters(kind, threshold);
+            for (Cluster cluster : clusters) {
+                System.out.println("Cluster:");
+                for (Row row : cluster.rows()) System.out.println("  " + row.id() + "  " + row.text());
+            }
+            if (command.equals("merge-all")) {
+                List<List<Integer>> groups = new ArrayList<>();
+                for (Cluster cluster : clusters) groups.add(finder.survivorFirst(kind, cluster));
+                if (kind == Kind.BOOKS) groups = finder.sameIsbn(groups);
+                finder.merge(kind, groups);
+            }
+        }
+        connection.close();
+    }
+
+    public List<Cluster> findClusters(Kind kind, double threshold) throws SQLException {
+        long start = System.nanoTime();
+        List<Row> rows = new ArrayList<>();
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.setFetchSize(1000);
+                try (ResultSet rs = stmt.executeQuery(kind.query)) {
+                    int columns = rs.getMetaData().getColumnCount();
+                    while (rs.next()) {
+                        StringBuilder text = new StringBuilder();
+                        for (int i = 2; i <= columns; i++) {
+                            if (i > 2) text.append(" | ");
+                            text.append(rs.getString(i) == null ? "" : rs.getString(i));
+                        }
+                        rows.add(new Row(rs.getInt(1), text.toString()));
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+
+        Map<Integer, int[]> signatures = signatures(kind, rows);
+
+        // LSH: one bucket map per band, rows sharing a bucket are candidates
+        int[] parent = new int[rows.size()];
+        for (int i = 0; i < parent.length; i++) parent[i] = i;
+        int[][] byIndex = new int[rows.size()][];
+        for (int i = 0; i < rows.size(); i++) byIndex[i] = signatures.get(rows.get(i).id());
+        long candidates = 0;
+        for (int band = 0; band < BANDS; band++) {
+            Map<Long, List<Integer>> buckets = new HashMap<>();
+            for (int i = 0; i < rows.size(); i++) {
+                buckets.computeIfAbsent(bandKey(byIndex[i], band), k -> new ArrayList<>(2)).add(i);
+            }
+            for (List<Integer> bucket : buckets.values()) {
+                for (int x = 1; x < bucket.size(); x++) {
+                    int i = bucket.get(0), j = bucket.get(x);
+                    candidates++;
+                    if (find(parent, i) != find(parent, j) && similarity(byIndex[i], byIndex[j]) >= threshold) {
+                        parent[find(parent, i)] = find(parent, j);
+                    }
+                }
+                // Members not similar to the first one can still match each other
+                if (bucket.size() > 2) {
+                    for (int x = 1; x < bucket.size(); x++) {
+                        for (int y = x + 1; y < bucket.size() && y - x < 8; y++) {
+                            int i = bucket.get(x), j = bucket.get(y);
+                            candidates++;
+                            if (find(parent, i) != find(parent, j) && similarity(byIndex[i], byIndex[j]) >= threshold) {
+                                parent[find(parent, i)] = find(parent, j);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<Integer, List<Row>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < rows.size(); i++) groups.computeIfAbsent(find(parent, i), k -> new ArrayList<>()).add(rows.get(i));
+        List<Cluster> clusters = new ArrayList<>();
+        for (List<Row> group : groups.values()) {
+            if (group.size() > 1) clusters.add(new Cluster(group));
+        }
+        System.out.printf("%s: %d rows, %d candidate pairs, %d clusters in %d ms%n",
+                kind, rows.size(), candidates, clusters.size(), (System.nanoTime() - start) / 1_000_000);
+        return clusters;
+    }
+
+    // Stored signatures where the text is unchanged, new ones computed in
+    // parallel and written back
+    private Map<Integer, int[]> signatures(Kind kind, List<Row> rows) throws SQLException {
+        Map<Integer, Long> storedHashes = new HashMap<>();
+        Map<Integer, int[]> signatures = new ConcurrentHashMap<>();
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT id, texthash, signature FROM DEDUP_SIGNATURES WHERE kind = ?")) {
+                stmt.setString(1, kind.name());
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        storedHashes.put(rs.getInt(1), rs.getLong(2));
+                        signatures.put(rs.getInt(1), decode(rs.getBytes(3)));
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+
+        Map<Integer, String> normalized = new ConcurrentHashMap<>();
+        List<Row> changed = rows.parallelStream()
+                .filter(row -> {
+                    String text = normalize(row.text());
+                    if (Objects.equals(storedHashes.get(row.id()), textHash(text))) return false;
+                    normalized.put(row.id(), text);
+                    return true;
+                })
+                .toList();
+        changed.parallelStream().forEach(row -> signatures.put(row.id(), minHash(normalized.get(row.id()))));
+
+        Set<Integer> live = new HashSet<>();
+        for (Row row : rows) live.add(row.id());
+        ConnectionLock.lock(connection);
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement merge = connection.prepareStatement(
+                    "MERGE INTO DEDUP_SIGNATURES(kind, id, texthash, signature) KEY(kind, id) VALUES (?, ?, ?, ?)");
+                 PreparedStatement delete = connection.prepareStatement("DELETE FROM DEDUP_SIGNATURES WHERE kind = ? AND id = ?")) {
+                for (Row row : changed) {
+                    merge.setString(1, kind.name());
+                    merge.setInt(2, row.id());
+                    merge.setLong(3, textHash(normalized.get(row.id())));
+                    merge.setBytes(4, encode(signatures.get(row.id())));
+                    merge.addBatch();
+                }
+                merge.executeBatch();
+                for (Integer id : storedHashes.keySet()) {
+                    if (live.contains(id)) continue;
+                    signatures.remove(id);
+                    delete.setString(1, kind.name());
+                    delete.setInt(2, id);
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        System.out.println(kind + ": " + changed.size() + " signatures computed, " + (rows.size() - changed.size()) + " reused");
+        return signatures;
+    }
+
+    // Orders a cluster so the row to keep comes first: for books the one with
+    // the most copies, for publishers the one with the most books; ties go to
+    // the oldest id
+    public List<Integer> survivorFirst(Kind kind, Cluster cluster) throws SQLException {
+        String query = kind == Kind.BOOKS
+                ? "SELECT COUNT(*) FROM COPIES WHERE bookid = ?"
+                : "SELECT COUNT(*) FROM BOOKS WHERE publisher = CAST(? AS VARCHAR)";
+        Map<Integer, Integer> references = new HashMap<>();
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                for (Row row : cluster.rows()) {
+                    stmt.setInt(1, row.id());
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        rs.next();
+                        references.put(row.id(), rs.getInt(1));
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        List<Integer> ids = new ArrayList<>(references.keySet());
+        ids.sort(Comparator.comparing((Integer id) -> -references.get(id)).thenComparing(id -> id));
+        return ids;
+    }
+
+    // Narrows every group to its first book and the books whose ISBN is within
+    // MAX_ISBN_EDITS of it; groups left with one book are dropped. Books
+    // without an ISBN are never merged automatically.
+    public List<List<Integer>> sameIsbn(List<List<Integer>> groups) throws SQLException {
+        Map<Integer, String> isbns = new HashMap<>();
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT isbn FROM BOOKS WHERE id = ?")) {
+                for (List<Integer> group : groups) {
+                    for (int id : group) {
+                        stmt.setInt(1, id);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            if (rs.next() && rs.getString(1) != null) isbns.put(id, normalizeIsbn(rs.getString(1)));
+                        }
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        List<List<Integer>> confirmed = new ArrayList<>();
+        for (List<Integer> group : groups) {
+            String keep = isbns.get(group.get(0));
+            List<Integer> same = new ArrayList<>(List.of(group.get(0)));
+            for (int id : group.subList(1, group.size())) {
+                String isbn = isbns.get(id);
+                if (keep != null && !keep.isEmpty() && isbn != null && !isbn.isEmpty()
+                        && editDistance(keep, isbn) <= MAX_ISBN_EDITS) {
+                    same.add(id);
+                } else {
+                    System.out.println("Not merging book " + id + " into " + group.get(0) + ": ISBN " +
+                            isbns.get(id) + " differs from " + keep);
+                }
+            }
+            if (same.size() > 1) confirmed.add(same);
+        }
+        return confirmed;
+    }
+
+    // Digits and the check character X only, so hyphenation does not count
+    static String normalizeIsbn(String isbn) {
+        StringBuilder result = new StringBuilder(isbn.length());
+        for (int i = 0; i < isbn.length(); i++) {
+            char ch = Character.toUpperCase(isbn.charAt(i));
+            if (Character.isDigit(ch) || ch == 'X') result.append(ch);
+        }
+        return result.toString();
+    }
+
+    // Levenshtein distance, two rows at a time
+    static int editDistance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) previous[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int substitute = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitute, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    // Merges every group into its first id. Each transaction covers up to
+    // MERGES_PER_TRANSACTION groups. Returns the number of rows removed.
+    public int merge(Kind kind, List<List<Integer>> groups) throws SQLException {
+        String[] repoint = kind == Kind.BOOKS
+                ? new String[]{"UPDATE COPIES SET bookid = ? WHERE bookid = ?",
+                               "UPDATE RESERVATIONS SET bookid = ? WHERE bookid = ?"}
+                // Bumps the version, so open edits of these books are reported as conflicts
+                : new String[]{"UPDATE BOOKS SET publisher = CAST(? AS VARCHAR), version = version + 1 WHERE publisher = CAST(? AS VARCHAR)"};
+        String delete = "DELETE FROM " + kind.name() + " WHERE id = ?";
+        if (kind == Kind.BOOKS) ReservationQueue.createTable(connection);
+        else WriteBehindBuffer.addVersionColumns(connection);
+
+        int removed = 0;
+        ConnectionLock.lock(connection);
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                for (int start = 0; start < groups.size(); start += MERGES_PER_TRANSACTION) {
+                    List<List<Integer>> chunk = groups.subList(start, Math.min(groups.size(), start + MERGES_PER_TRANSACTION));
+                    List<PreparedStatement> statements = new ArrayList<>();
+                    try {
+                        for (String sql : repoint) statements.add(connection.prepareStatement(sql));
+                        PreparedStatement deleteStmt = connection.prepareStatement(delete);
+                        statements.add(deleteStmt);
+                        int chunkRemoved = 0;
+                        for (List<Integer> group : chunk) {
+                            int keep = group.get(0);
+                            for (int duplicate : group.subList(1, group.size())) {
+                                for (int i = 0; i < repoint.length; i++) {
+                                    statements.get(i).setInt(1, keep);
+                                    statements.get(i).setInt(2, duplicate);
+                                    statements.get(i).addBatch();
+                                }
+                                deleteStmt.setInt(1, duplicate);
+                                deleteStmt.addBatch();
+                                chunkRemoved++;
+                            }
+                        }
+                        // Re-point first, the deletes would otherwise hit the foreign keys
+                        for (PreparedStatement stmt : statements) stmt.executeBatch();
+                        connection.commit();
+                        removed += chunkRemoved;
+                    } catch (SQLException e) {
+                        connection.rollback();
+                        throw e;
+                    } finally {
+                        for (PreparedStatement stmt : statements) stmt.close();
+                    }
+                    for (List<Integer> group : chunk) {
+                        AuditTrail.record("MERGE", kind.name(), group.get(0), "merged " + group.subList(1, group.size()));
+                    }
+                }
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        // Waiting reservations may now belong to another book
+        if (kind == Kind.BOOKS) ReservationQueue.getInstance().load(connection);
+        System.out.println(kind + ": " + removed + " duplicates merged");
+        return removed;
+    }
+
+    // Lower case without accents, runs of anything but letters and digits
+    // collapsed into one space; the field separator '|' is kept
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder result = new StringBuilder(decomposed.length());
+        boolean space = true;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char ch = decomposed.charAt(i);
+            if (Character.getType(ch) == Character.NON_SPACING_MARK) continue;
+            if (Character.isLetterOrDigit(ch) || ch == '|') {
+                result.append(Character.toLowerCase(ch));
+                space = false;
+            } else if (!space) {
+                result.append(' ');
+                space = true;
+            }
+        }
+        int end = result.length();
+        if (end > 0 && result.charAt(end - 1) == ' ') result.setLength(end - 1);
+        return result.toString();
+    }
+
+    static int[] minHash(String text) {
+        int[] signature = new int[SIGNATURE_SIZE];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        String padded = " " + text + " ";
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            long shingle = mix(padded.charAt(i) * 0x1F1F1FL + padded.charAt(i + 1) * 0x1F1FL + padded.charAt(i + 2));
+            for (int h = 0; h < SIGNATURE_SIZE; h++) {
+                int value = (int) ((A[h] * shingle + B[h]) >>> 33);
+                if (value < signature[h]) signature[h] = value;
+            }
+        }
+        return signature;
+    }
+
+    static double similarity(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < SIGNATURE_SIZE; i++) if (a[i] == b[i]) equal++;
+        return (double) equal / SIGNATURE_SIZE;
+    }
+
+    private static long bandKey(int[] signature, int band) {
+        long key = band;
+        for (int i = band * ROWS_PER_BAND; i < (band + 1) * ROWS_PER_BAND; i++) key = key * 0x9E3779B97F4A7C15L + signature[i];
+        return mix(key);
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static long textHash(String text) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < text.length(); i++) hash = (hash ^ text.charAt(i)) * 0x100000001B3L;
+        return hash;
+    }
+
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xFF51AFD7ED558CCDL;
+        x ^= x >>> 33;
+        x *= 0xC4CEB93FE51A85E3L;
+        return x ^ (x >>> 33);
+    }
+
+    private static byte[] encode(int[] signature) {
+        ByteBuffer buffer = ByteBuffer.allocate(signature.length * 4);
+        for (int value : signature) buffer.putInt(value);
+        return buffer.array();
+    }
+
+    private static int[] decode(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int[] signature = new int[bytes.length / 4];
+        for (int i = 0; i < signature.length; i++) signature[i] = buffer.getInt();
+        return signature;
+    }
+}
@@ -0,0 +1,218 @@
+package org.example;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableColumn;
+import javax.swing.table.TableModel;
+import java.awt.*;
+import java.awt.event.MouseWheelEvent;
+import java.io.Serial;
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// JTable tuned for very large read-mostly models.
+//
+// - Typed renderers per column that turn values into strings through small
+//   caches instead of formatting on every paint: dates and timestamps in the
+//   locale's medium style, decimals with grouping and two digits, whole
+//   numbers (ids, years) as they are, all numbers right-aligned.
+// - A fixed row height from the font metrics, and column widths measured once
+//   from the header and a prototype value taken from sampled rows, so
+//   layout never asks every cell for its preferred size.
+// - Mouse wheel scrolling is coalesced: wheel events only add to a pending
+//   distance that a 60 Hz timer applies, giving at most one scroll and one
+//   repaint per frame however fast the wheel spins.
+// - Every paint is timed; while scrolling, frame times are collected and a
+//   summary is printed when scrolling stops, and each paint is also a
+//   library.TablePaint JFR event.
+public final class FastTable extends JTable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+    private static final int SAMPLE_ROWS = 200;
+    private static final int FRAME_MILLIS = 16;
+    private static final int SCROLL_IDLE_MILLIS = 400;
+
+    private final String name;
+    private long[] frameNanos = new long[256];
+    private int frames;
+    private long lastScroll;
+    private Timer idleTimer;
+
+    public FastTable(TableModel model, String name) {
+        super(model);
+        this.name = name;
+        setRowHeight(getFontMetrics(getFont()).getHeight() + 4);
+        setAutoCreateRowSorter(false);
+        configureColumns();
+    }
+
+    // Wraps the table in a scroll pane with coalesced wheel scrolling
+    public JScrollPane scrollPane() {
+        JScrollPane scrollPane = new JScrollPane(this);
+        scrollPane.setWheelScrollingEnabled(false);
+        scrollPane.getViewport().setScrollMode(JViewport.BLIT_SCROLL_MODE);
+
+        int[] pendingPixels = new int[1];
+        Timer scrollTimer = new Timer(FRAME_MILLIS, null);
+        scrollTimer.addActionListener(e -> {
+            if (pendingPixels[0] == 0) {
+                scrollTimer.stop();
+                return;
+            }
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            bar.setValue(bar.getValue() + pendingPixels[0]);
+            pendingPixels[0] = 0;
+        });
+        scrollPane.addMouseWheelListener(e -> {
+            int units = e.getScrollType() == MouseWheelEvent.WHEEL_UNIT_SCROLL ? e.getUnitsToScroll() : e.getWheelRotation() * 10;
+            pendingPixels[0] += units * getRowHeight();
+            if (!scrollTimer.isRunning()) scrollTimer.start();
+        });
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> scrolled());
+        return scrollPane;
+    }
+
+    @Override
+    public void setModel(TableModel model) {
+        super.setModel(model);
+        // Called by the JTable constructor before this class is initialised
+        if (name != null) configureColumns();
+    }
+
+    private void scrolled() {
+        lastScroll = System.nanoTime();
+        if (idleTimer == null) {
+            idleTimer = new Timer(SCROLL_IDLE_MILLIS, e -> reportFrames());
+            idleTimer.setRepeats(false);
+        }
+        idleTimer.restart();
+    }
+
+    private boolean scrolling() {
+        return System.nanoTime() - lastScroll < SCROLL_IDLE_MILLIS * 1_000_000L;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        boolean scrolling = scrolling();
+        ScreenProfiler.Phase phase = ScreenProfiler.tablePaint(name, scrolling);
+        long start = System.nanoTime();
+        super.paintComponent(g);
+        long elapsed = System.nanoTime() - start;
+        Rectangle clip = g.getClipBounds();
+        phase.end(clip == null ? getRowCount() : clip.height / Math.max(1, getRowHeight()) + 1);
+        if (scrolling) {
+            if (frames == frameNanos.length) frameNanos = Arrays.copyOf(frameNanos, frames * 2);
+            frameNanos[frames++] = elapsed;
+        }
+    }
+
+    private void reportFrames() {
+        if (frames == 0) return;
+        long[] sorted = Arrays.copyOf(frameNanos, frames);
+        Arrays.sort(sorted);
+        System.out.printf("Scrolled %s (%d rows): %d frames, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                name, getRowCount(), frames, sorted[frames / 2] / 1e6,
+                sorted[Math.min(frames - 1, (int) (frames * 0.99))] / 1e6, sorted[frames - 1] / 1e6);
+        frames = 0;
+    }
+
+    // Picks a renderer per column from the first non-null value and sizes the
+    // column from its header and the widest sampled value
+    private void configureColumns() {
+        TableModel model = getModel();
+        FontMetrics metrics = getFontMetrics(getFont());
+        FontMetrics headerMetrics = getTableHeader() == null ? metrics : getTableHeader().getFontMetrics(getTableHeader().getFont());
+        // Rows from both ends, since ids and dates tend to grow towards the end
+        int rowCount = model.getRowCount();
+        int sample = Math.min(SAMPLE_ROWS, rowCount);
+
+        for (int column = 0; column < getColumnModel().getColumnCount(); column++) {
+            TableColumn tableColumn = getColumnModel().getColumn(column);
+            int modelColumn = tableColumn.getModelIndex();
+            Object firstValue = null;
+            String prototype = "";
+            CachedRenderer renderer = null;
+            for (int i = 0; i < sample; i++) {
+                int row = i < sample / 2 ? i : rowCount - sample + i;
+                Object value = model.getValueAt(row, modelColumn);
+                if (value == null) continue;
+                if (firstValue == null) {
+                    firstValue = value;
+                    renderer = CachedRenderer.forValue(value);
+                }
+                String text = renderer.text(value);
+                if (text.length() > prototype.length()) prototype = text;
+            }
+            if (renderer == null) renderer = new CachedRenderer();
+            tableColumn.setCellRenderer(renderer);
+
+            int width = Math.max(headerMetrics.stringWidth(String.valueOf(tableColumn.getHeaderValue())),
+                    metrics.stringWidth(prototype)) + 16;
+            tableColumn.setPreferredWidth(Math.min(width, 400));
+        }
+    }
+
+    static class CachedRenderer extends DefaultTableCellRenderer {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private static final int MAX_CACHED = 4096;
+        private static final DateTimeFormatter DATE = DateTimeFormatter.ofLocalizedDate(FormatStyle.MEDIUM);
+        private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM, FormatStyle.SHORT);
+        // Only ever touched on the event thread
+        private static final String[] smallInts = new String[65536];
+        private transient Map<Object, String> cache = new HashMap<>();
+        private transient NumberFormat decimals;
+
+        static CachedRenderer forValue(Object value) {
+            CachedRenderer renderer = new CachedRenderer();
+            if (value instanceof Number) renderer.setHorizontalAlignment(SwingConstants.RIGHT);
+            if (value instanceof BigDecimal || value instanceof Double || value instanceof Float) {
+                renderer.decimals = NumberFormat.getNumberInstance();
+                renderer.decimals.setMinimumFractionDigits(2);
+                renderer.decimals.setMaximumFractionDigits(2);
+            }
+            return renderer;
+        }
+
+        // Values of other types than the column's first one fall back to toString()
+        private String format(Object value) {
+            if (value instanceof java.sql.Timestamp timestamp) return TIMESTAMP.format(timestamp.toLocalDateTime());
+            if (value instanceof java.sql.Date date) return DATE.format(date.toLocalDate());
+            if (value instanceof LocalDateTime dateTime) return TIMESTAMP.format(dateTime);
+            if (value instanceof LocalDate date) return DATE.format(date);
+            if (decimals != null && value instanceof Number number) return decimals.format(number);
+            return value.toString();
+        }
+
+        String text(Object value) {
+            if (value == null) return "";
+            if (value instanceof String string) return string;
+            if (value instanceof Integer number && number >= 0 && number < smallInts.length) {
+                String text = smallInts[number];
+                if (text == null) smallInts[number] = text = number.toString();
+                return text;
+            }
+            // Dates and other values repeat a lot within a column
+            String text = cache.get(value);
+            if (text == null) {
+                if (cache.size() >= MAX_CACHED) cache.clear();
+                text = format(value);
+                cache.put(value, text);
+            }
+            return text;
+        }
+
+        @Override
+        protected void setValue(Object value) {
+            setText(text(value));
+        }
+    }
+}
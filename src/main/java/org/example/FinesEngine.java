@@ -0,0 +1,372 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serial;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Nightly late fees for every open loan.
+//
+// The id span of the open loans is cut into fixed ranges that a fork-join
+// pool works through in parallel, each worker with its own connection for
+// the length of the run (idle pool threads die between nights). A
+// range is read with one query, priced in memory and written back to
+// LOAN_FINES with a batched MERGE in a single transaction. Ranges finish out
+// of order, so the checkpoint is the end of the longest completed run of
+// ranges from the start; a run interrupted the same day resumes after it.
+// The same rules price the fine charged when the loan is returned, see
+// LoanCounters.persistReturn().
+public class FinesEngine {
+    private static final String JOB = "nightly-fines";
+    private static final int RANGE_SIZE = 10_000;
+    private static final Path RULES_FILE = Paths.get("./db/fines.properties");
+
+    private static volatile FineRules configuredRules;
+
+    private final String url;
+    private final FineRules rules;
+    private final ForkJoinPool pool;
+    private ScheduledExecutorService scheduler;
+
+    // Pricing for one kind of user: rate per day late, cap per loan, days of
+    // grace after the due date. Amounts are in cents.
+    public record FineRule(long centsPerDay, long capCents, int graceDays) {
+        long fine(int daysLate) {
+            if (daysLate <= graceDays) return 0;
+            long fine = daysLate * centsPerDay;
+            return capCents > 0 ? Math.min(fine, capCents) : fine;
+        }
+    }
+
+    // Loan period plus the default rule and the per-user-type overrides.
+    // Read from ./db/fines.properties, e.g.
+    //   loan.days=14
+    //   rate=10
+    //   cap=2000
+    //   grace=2
+    //   librarian.rate=0
+    // Without a file the loan period and rate come from -Dlibrary.loan.days
+    // and -Dlibrary.fine.cents.
+    public record FineRules(int loanDays, FineRule reader, FineRule librarian) {
+        public static FineRules load(Path file) throws IOException {
+            Properties properties = new Properties();
+            if (Files.exists(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    properties.load(in);
+                }
+            }
+            return from(properties);
+        }
+
+        private static FineRules from(Properties properties) {
+            int loanDays = Integer.parseInt(properties.getProperty("loan.days",
+                    String.valueOf(Integer.getInteger("library.loan.days", 14))));
+            FineRule reader = rule(properties, "", new FineRule(Integer.getInteger("library.fine.cents", 10), 0, 0));
+            return new FineRules(loanDays, reader, rule(properties, "librarian.", reader));
+        }
+
+        private static FineRule rule(Properties properties, String prefix, FineRule defaults) {
+            return new FineRule(
+                    Long.parseLong(properties.getProperty(prefix + "rate", String.valueOf(defaults.centsPerDay()))),
+                    Long.parseLong(properties.getProperty(prefix + "cap", String.valueOf(defaults.capCents()))),
+                    Integer.parseInt(properties.getProperty(prefix + "grace", String.valueOf(defaults.graceDays()))));
+        }
+
+        long fine(int daysBorrowed, boolean librarian) {
+            return (librarian ? this.librarian : reader).fine(daysBorrowed - loanDays);
+        }
+    }
+
+    // The rules of ./db/fines.properties, read once
+    public static FineRules configuredRules() {
+        FineRules rules = configuredRules;
+        if (rules == null) {
+            try {
+                rules = FineRules.load(RULES_FILE);
+            } catch (IOException | NumberFormatException e) {
+                e.printStackTrace();
+                System.out.println("Error while reading " + RULES_FILE + ", using the default fines");
+                rules = FineRules.from(new Properties());
+            }
+            configuredRules = rules;
+        }
+        return rules;
+    }
+
+    private record Fined(int borrowingId, int daysLate, long cents) {
+    }
+
+    public record RunReport(long loans, long fined, long fineCents, long millis, boolean resumed) {
+        @Override
+        public String toString() {
+            return String.format("Fines: %d open loans, %d fined, %.2f total, %d ms, %.0f rows/s%s",
+                    loans, fined, fineCents / 100.0, millis, loans * 1000.0 / Math.max(1, millis), resumed ? " (resumed)" : "");
+        }
+    }
+
+    public FinesEngine(String url, FineRules rules, int parallelism) throws SQLException {
+        this.url = url;
+        this.rules = rules;
+        this.pool = new ForkJoinPool(parallelism);
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS LOAN_FINES (" +
+                    "borrowingid INT PRIMARY KEY, " +
+                    "userid INT NOT NULL, " +
+                    "dayslate INT NOT NULL, " +
+                    "amountcents BIGINT NOT NULL, " +
+                    "computedon DATE NOT NULL)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS MAINTENANCE_CHECKPOINTS (job VARCHAR(64) PRIMARY KEY, lastid INT NOT NULL, updatedat TIMESTAMP)");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = BranchRouter.localUrl();
+        int parallelism = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        FinesEngine engine = new FinesEngine(url, configuredRules(), parallelism);
+        System.out.println(engine.run());
+        engine.close();
+    }
+
+    // Runs the engine every night at 02:00
+    public void startNightly() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "fines-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime next = now.toLocalDate().atTime(2, 0);
+        if (!next.isAfter(now)) next = next.plusDays(1);
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                System.out.println(run());
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Error while calculating fines");
+            }
+        }, Duration.between(now, next).toMinutes(), 24 * 60, TimeUnit.MINUTES);
+    }
+
+    public void close() {
+        if (scheduler != null) scheduler.shutdown();
+        pool.shutdown();
+    }
+
+    public synchronized RunReport run() throws SQLException {
+        long started = System.nanoTime();
+        int minId, maxId;
+        int resumeAfter;
+        try (Connection connection = DriverManager.getConnection(url)) {
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT MIN(id), MAX(id) FROM BORROWINGS WHERE returndate IS NULL")) {
+                rs.next();
+                minId = rs.getInt(1);
+                maxId = rs.getInt(2);
+            }
+            resumeAfter = loadCheckpoint(connection);
+        }
+        boolean resumed = resumeAfter >= minId;
+        int from = Math.max(minId, resumeAfter + 1);
+        if (maxId == 0 || from > maxId) return finish(new RunReport(0, 0, 0, 0, resumed));
+
+        int ranges = (maxId - from) / RANGE_SIZE + 1;
+        Progress progress = new Progress(from, ranges);
+        try {
+            pool.submit(new RangeTask(from, 0, ranges, progress)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Fines run interrupted", e);
+        } catch (ExecutionException e) {
+            throw new SQLException("Fines run failed, will resume after id " + progress.watermark, e.getCause());
+        } finally {
+            // A failed range does not wait for its siblings; let them finish first
+            pool.awaitQuiescence(1, TimeUnit.MINUTES);
+            progress.closeConnections();
+        }
+
+        long millis = (System.nanoTime() - started) / 1_000_000;
+        return finish(new RunReport(progress.loans.get(), progress.fined.get(), progress.cents.get(), millis, resumed));
+    }
+
+    private RunReport finish(RunReport report) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement stmt = connection.prepareStatement("DELETE FROM MAINTENANCE_CHECKPOINTS WHERE job = ?")) {
+            stmt.setString(1, JOB);
+            stmt.executeUpdate();
+        }
+        return report;
+    }
+
+    // Completed ranges and the contiguous watermark that is checkpointed
+    private class Progress {
+        final int from;
+        final boolean[] done;
+        int contiguous;
+        volatile int watermark;
+        final AtomicLong loans = new AtomicLong();
+        final AtomicLong fined = new AtomicLong();
+        final AtomicLong cents = new AtomicLong();
+        long lastReport = System.nanoTime();
+        final long start = System.nanoTime();
+        // Worker thread -> its connection for this run
+        final Map<Thread, Connection> connections = new ConcurrentHashMap<>();
+        boolean closed;
+
+        Progress(int from, int ranges) {
+            this.from = from;
+            this.done = new boolean[ranges];
+            this.watermark = from - 1;
+        }
+
+        // Called once the range is committed. Saving under the lock keeps the
+        // stored watermark from ever moving backwards.
+        synchronized void complete(int range, Connection connection) throws SQLException {
+            done[range] = true;
+            int before = contiguous;
+            while (contiguous < done.length && done[contiguous]) contiguous++;
+            if (System.nanoTime() - lastReport > 5_000_000_000L) {
+                lastReport = System.nanoTime();
+                System.out.printf("Fines: %d/%d ranges, %.0f rows/s%n", contiguous, done.length,
+                        loans.get() / ((System.nanoTime() - start) / 1e9));
+            }
+            if (contiguous == before) return;
+            watermark = from + contiguous * RANGE_SIZE - 1;
+            saveCheckpoint(connection, watermark);
+            connection.commit();
+        }
+
+        Connection connection() throws SQLException {
+            Connection connection = connections.get(Thread.currentThread());
+            if (connection != null) return connection;
+            synchronized (connections) {
+                if (closed) throw new SQLException("Fines run is over");
+                connection = DriverManager.getConnection(url);
+                connection.setAutoCommit(false);
+                connections.put(Thread.currentThread(), connection);
+                return connection;
+            }
+        }
+
+        void closeConnections() {
+            synchronized (connections) {
+                closed = true;
+                for (Connection connection : connections.values()) {
+                    try {
+                        connection.close();
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
+                }
+                connections.clear();
+            }
+        }
+    }
+
+    // Never serialized; RecursiveAction is Serializable only by inheritance
+    private class RangeTask extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        final int from;
+        final int firstRange;
+        final int lastRange;
+        final transient Progress progress;
+
+        RangeTask(int from, int firstRange, int lastRange, Progress progress) {
+            this.from = from;
+            this.firstRange = firstRange;
+            this.lastRange = lastRange;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastRange - firstRange > 1) {
+                int mid = (firstRange + lastRange) >>> 1;
+                invokeAll(new RangeTask(from, firstRange, mid, progress), new RangeTask(from, mid, lastRange, progress));
+                return;
+            }
+            try {
+                priceRange(firstRange, progress);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+
+    private void priceRange(int range, Progress progress) throws SQLException {
+        int low = progress.from + range * RANGE_SIZE;
+        int high = low + RANGE_SIZE - 1;
+        String query = "SELECT b.id, b.userid, DATEDIFF(DAY, b.borrowdate, CURRENT_DATE) AS days,\n" +
+                       "EXISTS (SELECT 1 FROM LIBRARIANS l WHERE l.userid = b.userid) AS librarian\n" +
+                       "FROM BORROWINGS b\n" +
+                       "WHERE b.id BETWEEN ? AND ? AND b.returndate IS NULL";
+
+        Connection connection = progress.connection();
+        long loans = 0, cents = 0;
+        List<Fined> fined = new ArrayList<>();
+        try (PreparedStatement select = connection.prepareStatement(query);
+             PreparedStatement merge = connection.prepareStatement(
+                     "MERGE INTO LOAN_FINES(borrowingid, userid, dayslate, amountcents, computedon) KEY(borrowingid) " +
+                     "VALUES (?, ?, ?, ?, CURRENT_DATE)")) {
+            select.setInt(1, low);
+            select.setInt(2, high);
+            select.setFetchSize(1000);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    loans++;
+                    int days = rs.getInt("days");
+                    long fine = rules.fine(days, rs.getBoolean("librarian"));
+                    if (fine == 0) continue;
+                    merge.setInt(1, rs.getInt("id"));
+                    merge.setInt(2, rs.getInt("userid"));
+                    merge.setInt(3, days - rules.loanDays());
+                    merge.setLong(4, fine);
+                    merge.addBatch();
+                    fined.add(new Fined(rs.getInt("id"), days - rules.loanDays(), fine));
+                    cents += fine;
+                }
+            }
+            merge.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        for (Fined row : fined) {
+            AuditTrail.record("MERGE", "LOAN_FINES", row.borrowingId(), row.daysLate() + " days late, " + row.cents() + " cents");
+        }
+        progress.loans.addAndGet(loans);
+        progress.fined.addAndGet(fined.size());
+        progress.cents.addAndGet(cents);
+        progress.complete(range, connection);
+    }
+
+    private static int loadCheckpoint(Connection connection) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT lastid FROM MAINTENANCE_CHECKPOINTS WHERE job = ? AND CAST(updatedat AS DATE) = CURRENT_DATE")) {
+            stmt.setString(1, JOB);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : Integer.MIN_VALUE;
+            }
+        }
+    }
+
+    private static void saveCheckpoint(Connection connection, int lastId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "MERGE INTO MAINTENANCE_CHECKPOINTS(job, lastid, updatedat) KEY(job) VALUES (?, ?, CURRENT_TIMESTAMP)")) {
+            stmt.setString(1, JOB);
+            stmt.setInt(2, lastId);
+            stmt.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.example;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Yearly clean-up of accounts that never borrowed anything and are not librarians.
+//
+// Candidates come from one anti-join, walked in id order in chunks. Each chunk
+// is deleted in its own short transaction with the conditions re-checked in
+// the DELETE itself, so a user who borrows in the meantime is kept. The last
+// id of every committed chunk is stored in MAINTENANCE_CHECKPOINTS, which lets
+// an interrupted purge resume where it stopped.
+public class InactiveUserPurge {
+    private static final String JOB = "inactive-user-purge";
+
+    private static final String ELIGIBLE =
+            "FROM USERS u\n" +
+            "WHERE NOT EXISTS (SELECT 1 FROM BORROWINGS b WHERE b.userid = u.id)\n" +
+            "AND NOT EXISTS (SELECT 1 FROM LIBRARIANS l WHERE l.userid = u.id)\n" +
+            "AND NOT EXISTS (SELECT 1 FROM RESERVATIONS r WHERE r.userid = u.id)\n" +
+            "AND NOT EXISTS (SELECT 1 FROM BRANCH_LOANS bl WHERE bl.userid = u.id)";
+
+    private final Connection connection;
+    private final int chunkSize;
+    private final long pauseMillis;
+    private final BorrowingArchive archive;
+
+    public record Progress(int deleted, int skipped, int lastId, long eligible, double usersPerSecond) {
+    }
+
+    public InactiveUserPurge(Connection connection, int chunkSize, long pauseMillis, BorrowingArchive archive) throws SQLException {
+        this.connection = connection;
+        this.chunkSize = chunkSize;
+        this.pauseMillis = pauseMillis;
+        this.archive = archive;
+        ReservationQueue.createTable(connection);
+        BranchRouter.createTable(connection);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS MAINTENANCE_CHECKPOINTS (job VARCHAR(64) PRIMARY KEY, lastid INT NOT NULL, updatedat TIMESTAMP)");
+        }
+    }
+
+    // purge [--dry-run] [--restart] [chunk size] [pause ms]
+    public static void main(String[] args) throws Exception {
+        boolean dryRun = false;
+        boolean restart = false;
+        List<Integer> numbers = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--dry-run")) dryRun = true;
+            else if (arg.equals("--restart")) restart = true;
+            else numbers.add(Integer.parseInt(arg));
+        }
+        Connection connection = DriverManager.getConnection(BranchRouter.localUrl());
+        InactiveUserPurge purge = new InactiveUserPurge(connection, numbers.size() > 0 ? numbers.get(0) : 500,
+                numbers.size() > 1 ? numbers.get(1) : 50, BorrowingArchive.open(java.nio.file.Paths.get("./db/archive")));
+        if (dryRun) purge.dryRun();
+        else purge.run(restart);
+        connection.close();
+    }
+
+    public long countEligible() throws SQLException {
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) " + ELIGIBLE)) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+    }
+
+    // Reports what would be deleted without touching anything
+    public long dryRun() throws SQLException {
+        long eligible = countEligible();
+        System.out.println("Dry run: " + eligible + " inactive users would be deleted");
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT u.id, u.name, u.email " + ELIGIBLE + "\nORDER BY u.id LIMIT 20")) {
+                while (rs.next()) System.out.println("  " + rs.getInt("id") + " " + rs.getString("name") + " " + rs.getString("email"));
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        return eligible;
+    }
+
+    public Progress run(boolean restart) throws SQLException {
+        int lastId = restart ? 0 : loadCheckpoint();
+        if (lastId > 0) System.out.println("Resuming purge after user " + lastId);
+        long eligible = countEligible();
+        int deleted = 0;
+        int skipped = 0;
+        long start = System.nanoTime();
+
+        String candidates = "SELECT u.id " + ELIGIBLE + "\nAND u.id > ?\nORDER BY u.id\nLIMIT ?";
+        String delete = "DELETE FROM USERS u WHERE u.id = ?\n" +
+                        "AND NOT EXISTS (SELECT 1 FROM BORROWINGS b WHERE b.userid = u.id)\n" +
+                        "AND NOT EXISTS (SELECT 1 FROM LIBRARIANS l WHERE l.userid = u.id)\n" +
+                        "AND NOT EXISTS (SELECT 1 FROM RESERVATIONS r WHERE r.userid = u.id)\n" +
+                        "AND NOT EXISTS (SELECT 1 FROM BRANCH_LOANS bl WHERE bl.userid = u.id)";
+
+        while (true) {
+            List<Integer> chunk = new ArrayList<>(chunkSize);
+            ConnectionLock.lock(connection);
+            try {
+                try (PreparedStatement stmt = connection.prepareStatement(candidates)) {
+                    stmt.setInt(1, lastId);
+                    stmt.setInt(2, chunkSize);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) chunk.add(rs.getInt(1));
+                    }
+                }
+            } finally {
+                ConnectionLock.unlock(connection);
+            }
+            if (chunk.isEmpty()) break;
+
+            List<Integer> deletedIds = new ArrayList<>();
+            ConnectionLock.lock(connection);
+            try {
+                boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try (PreparedStatement stmt = connection.prepareStatement(delete)) {
+                    List<Integer> batched = new ArrayList<>();
+                    for (int userId : chunk) {
+                        // Loans moved to the archive still count as activity
+                        if (archive != null && archive.hasHistory(userId)) {
+                            skipped++;
+                            continue;
+                        }
+                        stmt.setInt(1, userId);
+                        stmt.addBatch();
+                        batched.add(userId);
+                    }
+                    int[] counts = stmt.executeBatch();
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] > 0) deletedIds.add(batched.get(i));
+                        else skipped++;
+                    }
+                    lastId = chunk.get(chunk.size() - 1);
+                    saveCheckpoint(lastId);
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            } finally {
+                ConnectionLock.unlock(connection);
+            }
+            for (int userId : deletedIds) {
+                CirculationLog.record(CirculationLog.USER_DELETE, userId, 0, 0, null);
+                AuditTrail.record("DELETE", "USERS", userId, "inactive user purge");
+            }
+            deleted += deletedIds.size();
+
+            double rate = deleted / Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+            System.out.printf("Purge: %d/%d deleted, %d skipped, last id %d, %.0f users/s%n", deleted, eligible, skipped, lastId, rate);
+
+            // Let desk transactions in between chunks
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.out.println("Purge interrupted, resume from user " + lastId);
+                return new Progress(deleted, skipped, lastId, eligible, rate);
+            }
+        }
+
+        clearCheckpoint();
+        double rate = deleted / Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        System.out.println("Purge finished: " + deleted + " users deleted, " + skipped + " skipped");
+        return new Progress(deleted, skipped, lastId, eligible, rate);
+    }
+
+    private int loadCheckpoint() throws SQLException {
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT lastid FROM MAINTENANCE_CHECKPOINTS WHERE job = ?")) {
+                stmt.setString(1, JOB);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+    }
+
+    // Runs inside the chunk transaction so the checkpoint and the deletes commit together
+    private void saveCheckpoint(int lastId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "MERGE INTO MAINTENANCE_CHECKPOINTS(job, lastid, updatedat) KEY(job) VALUES (?, ?, CURRENT_TIMESTAMP)")) {
+            stmt.setString(1, JOB);
+            stmt.setInt(2, lastId);
+            stmt.executeUpdate();
+        }
+    }
+
+    private void clearCheckpoint() throws SQLException {
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM MAINTENANCE_CHECKPOINTS WHERE job = ?")) {
+                stmt.setString(1, JOB);
+                stmt.executeUpdate();
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+    }
+}
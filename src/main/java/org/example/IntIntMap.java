@@ -0,0 +1,103 @@
+package org.example;
+
+import java.util.Arrays;
+
+// Open-addressing int -> int hash map with linear probing. Keys are stored
+// unboxed; Integer.MIN_VALUE is reserved as the empty marker.
+public class IntIntMap {
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    public IntIntMap() {
+        this(8);
+    }
+
+    public IntIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+    }
+
+    public int get(int key, int defaultValue) {
+        int slot = find(key);
+        return keys[slot] == EMPTY ? defaultValue : values[slot];
+    }
+
+    public boolean containsKey(int key) {
+        return keys[find(key)] != EMPTY;
+    }
+
+    public void put(int key, int value) {
+        if (key == EMPTY) throw new IllegalArgumentException("Reserved key");
+        int slot = find(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            if (++size * 4 > keys.length * 3) {
+                values[slot] = value;
+                rehash(keys.length * 2);
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    public int addTo(int key, int delta) {
+        int value = get(key, 0) + delta;
+        put(key, value);
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Raw slot access for allocation-free iteration: for (i < capacity()) if (keyAt(i) != emptyKey())
+    public int capacity() {
+        return keys.length;
+    }
+
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int valueAt(int slot) {
+        return values[slot];
+    }
+
+    public static int emptyKey() {
+        return EMPTY;
+    }
+
+    private int find(int key) {
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
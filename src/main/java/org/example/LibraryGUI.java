@@ -5,14 +5,29 @@ import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LibraryGUI {
     static Connection connection;
     static Boolean statusAdmin;
+    static BorrowingArchive borrowingArchive;
+    static WriteBehindBuffer editBuffer;
+    private static final Connection[] loaderConnections = new Connection[2];
+    private static final int CATALOGUE_LOADER = 0;
+    private static final int HISTORY_LOADER = 1;
+
+    private static final String[] CATALOGUE_COLUMNS = {"title", "Author", "publisher_year"};
+    private static final String[] BORROWED_COLUMNS = {"Title", "Borrow Date", "Return Date"};
+    private static final String[] RECOMMENDED_COLUMNS = {"Title", "Author"};
+    private static final String[] RESERVATION_COLUMNS = {"Reservation", "Title", "Status"};
 
     static {
         try {
@@ -24,39 +39,153 @@ public class LibraryGUI {
     }
     public static void main(String[] args) throws SQLException {
 
-        connection = DriverManager.getConnection("jdbc:h2:./db/database");
+        connection = DriverManager.getConnection(BranchRouter.localUrl());
+
+        ReservationQueue.createTable(connection);
+        ReservationQueue.getInstance().load(connection);
+        BranchRouter.createTable(connection);
+        String jfrFile = System.getProperty("library.jfr");
+        if (jfrFile != null) {
+            try {
+                ScreenProfiler.startRecording(Paths.get(jfrFile));
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("JFR recording not started");
+            }
+        }
+
+        try {
+            AuditTrail.Sink sink = "files".equals(System.getProperty("library.audit.sink"))
+                    ? new AuditTrail.RollingFileSink(Paths.get("./db/audit"), 64L * 1024 * 1024)
+                    : new AuditTrail.TableSink(BranchRouter.localUrl());
+            AuditTrail audit = AuditTrail.start(Integer.getInteger("library.audit.capacity", 16384),
+                    AuditTrail.FullPolicy.valueOf(System.getProperty("library.audit.policy", "BLOCK")), sink);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    audit.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Audit trail not available");
+        }
+
+        UniqueKeyIndex.load(connection);
+        CopyBarcodeIndex.load(connection);
+        PrefixIndex.loadAllInBackground(BranchRouter.localUrl());
+        LoanCounters.load(connection).startReconciler(BranchRouter.localUrl(), Integer.getInteger("library.loans.reconcile.minutes", 60));
+
+        try {
+            CirculationLog log = CirculationLog.open(Paths.get("./db/events"), connection);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+            System.out.println("Circulation log not available");
+        }
+
+        if (Boolean.getBoolean("library.backups")) {
+            try {
+                BackupManager backups = new BackupManager(BranchRouter.localUrl(),
+                        Paths.get(System.getProperty("library.backup.dir", "./db/backups")),
+                        Long.getLong("library.backup.rate", 20L * 1024 * 1024));
+                backups.startSchedule(Integer.getInteger("library.backup.hours", 24), BackupManager.configuredKeep());
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Backups not available");
+            }
+        }
+
+        if (Boolean.getBoolean("library.fines")) {
+            try {
+                FinesEngine fines = new FinesEngine(BranchRouter.localUrl(), FinesEngine.configuredRules(),
+                        Runtime.getRuntime().availableProcessors());
+                fines.startNightly();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                System.out.println("Fines engine not available");
+            }
+        }
+
+        if (Boolean.getBoolean("library.reminders")) {
+            try {
+                // Own connection, so deliveries never hold or join the desk's transactions
+                ReminderOutbox reminders = new ReminderOutbox(DriverManager.getConnection(BranchRouter.localUrl()),
+                        new ReminderOutbox.SpoolSender(Paths.get("./db/outbox")), 500);
+                reminders.start(Integer.getInteger("library.reminders.days", 2));
+            } catch (IOException | SQLException e) {
+                e.printStackTrace();
+                System.out.println("Reminders not available");
+            }
+        }
+
+        BorrowingReports.install(connection);
+
+        if (Boolean.getBoolean("library.snapshots")) {
+            CatalogueSnapshot.startBuilder(BranchRouter.localUrl(), Paths.get("./db/snapshots"),
+                    Integer.getInteger("library.snapshots.minutes", 5));
+        }
+
+        WriteBehindBuffer.addVersionColumns(connection);
+        editBuffer = new WriteBehindBuffer(connection);
+
+        new Thread(() -> {
+            // Own connection, so the build does not hold up the screens
+            try (Connection loader = DriverManager.getConnection(BranchRouter.localUrl())) {
+                CoBorrowRecommender.loadOrBuild(loader, Paths.get("./db/recommendations.bin"), 10);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Recommendations not available");
+            }
+        }, "recommendations-loader").start();
+
+        try {
+            borrowingArchive = BorrowingArchive.open(Paths.get("./db/archive"));
+            borrowingArchive.startJob(BranchRouter.localUrl());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Borrowing archive not available");
+        }
 
         SwingUtilities.invokeLater(LibraryGUI::createPopupWindow);
 
     }
 
     private static void createMainWindowAdmin() {
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("createMainWindowAdmin");
         JFrame dbFrame = new JFrame("Library Management");
         dbFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         dbFrame.setSize(1000, 800);
         dbFrame.setLayout(new BorderLayout());
 
         // Panel to hold the navigation buttons (Add, Edit, Delete)
-        JPanel navigationPanel = new JPanel(new GridLayout(3, 3));
+        JPanel navigationPanel = new JPanel(new GridLayout(4, 3));
         JButton addUserButton = new JButton("Add User");
         JButton addBookButton = new JButton("Add Book");
         JButton addBorrowingButton = new JButton("Add Borrowing");
         JButton editUserButton = new JButton("Edit User");
         JButton editBookButton = new JButton("Edit Book");
-        JButton editBorrowingButton = new JButton("Edit Borrowing");
         JButton deleteUserButton = new JButton("Delete User");
         JButton deleteBookButton = new JButton("Delete Book");
         JButton deleteBorrowingButton = new JButton("Delete Borrowing");
+        JButton scanCheckoutButton = new JButton("Scan Checkout");
 
         navigationPanel.add(addUserButton);
         navigationPanel.add(addBookButton);
         navigationPanel.add(addBorrowingButton);
         navigationPanel.add(editUserButton);
         navigationPanel.add(editBookButton);
-        navigationPanel.add(editBorrowingButton);
         navigationPanel.add(deleteUserButton);
         navigationPanel.add(deleteBookButton);
         navigationPanel.add(deleteBorrowingButton);
+        navigationPanel.add(scanCheckoutButton);
 
         dbFrame.add(navigationPanel, BorderLayout.NORTH);
 
@@ -66,15 +195,18 @@ public class LibraryGUI {
         // Create tables for Users, Books, and Borrowings
 
         // Populate tables with data from the database
-        JTable userTable = new JTable(populateUserTable());
-        JTable bookTable = new JTable(populateBookTable());
-        JTable borrowingTable = new JTable(populateBorrowingTable());
+        FastTable userTable = new FastTable(buildEditableTableModel(populateUserTable(), "USERS",
+                new String[]{"id", "name", "email", "phonenumber", "address"}), "users");
+        FastTable bookTable = new FastTable(buildEditableTableModel(populateBookTable(), "BOOKS",
+                new String[]{"id", "title", "author", "publisher", "publicationyear", "isbn"}), "books");
+        // Loans only change through the borrowing form and the desk
+        FastTable borrowingTable = new FastTable(populateBorrowingTable(), "borrowings");
 
 
         // Add the tables to the table panel
-        JScrollPane userScrollPane = new JScrollPane(userTable);
-        JScrollPane bookScrollPane = new JScrollPane(bookTable);
-        JScrollPane borrowingScrollPane = new JScrollPane(borrowingTable);
+        JScrollPane userScrollPane = userTable.scrollPane();
+        JScrollPane bookScrollPane = bookTable.scrollPane();
+        JScrollPane borrowingScrollPane = borrowingTable.scrollPane();
 
         tablePanel.add(userScrollPane);
         tablePanel.add(bookScrollPane);
@@ -85,51 +217,147 @@ public class LibraryGUI {
         addBookButton.addActionListener(e -> {dbFrame.dispose();createBookForm();});
         addBorrowingButton.addActionListener(e -> {dbFrame.dispose();createBorrowingForm();});
         deleteUserButton.addActionListener(e -> {dbFrame.dispose();deleteUserForm();});
+        editUserButton.addActionListener(e -> saveEdits(dbFrame, "USERS"));
+        editBookButton.addActionListener(e -> saveEdits(dbFrame, "BOOKS"));
+        scanCheckoutButton.addActionListener(e -> {dbFrame.dispose();createScanCheckoutForm();});
 
 
         dbFrame.add(tablePanel, BorderLayout.CENTER);
 
+        ScreenProfiler.trackFirstPaint(dbFrame);
         dbFrame.setVisible(true);
+        framePhase.end();
     }
 
     private static void createMainWindowUser(int userID){
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("createMainWindowUser");
+        ScreenProfiler.Phase readyPhase = ScreenProfiler.screenReady();
         JFrame dbFrame = new JFrame("Library interface");
         dbFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         dbFrame.setSize(1000, 800);
         dbFrame.setLayout(new BorderLayout());
 
         // Panel to display tables
-        JPanel tablePanel = new JPanel(new GridLayout(1, 3));
+        JPanel tablePanel = new JPanel(new GridLayout(1, 5));
 
 
-        // Populate tables with data from the database
-        JTable bookTable = new JTable(populateBookTable());
-        JTable availableTable = new JTable(populateAvailableBooksTable());
-        JTable borrowedTable = new JTable(populateBorrowedBooksTable(userID));
+        // Tables start empty and are filled as each dataset arrives
+        FastTable bookTable = new FastTable(buildTableModel(new ArrayList<>(), CATALOGUE_COLUMNS), "books");
+        FastTable availableTable = new FastTable(buildTableModel(new ArrayList<>(), CATALOGUE_COLUMNS), "availableBooks");
+        FastTable borrowedTable = new FastTable(buildTableModel(new ArrayList<>(), BORROWED_COLUMNS), "borrowedBooks");
+        FastTable recommendedTable = new FastTable(buildTableModel(new ArrayList<>(), RECOMMENDED_COLUMNS), "recommendedBooks");
+        FastTable reservationTable = new FastTable(buildTableModel(new ArrayList<>(), RESERVATION_COLUMNS), "reservations");
 
 
-        JPanel textPanel = new JPanel(new GridLayout(1, 3));
+        JPanel textPanel = new JPanel(new GridLayout(1, 5));
         JLabel bookTitleLabel = new JLabel("Books");
         JLabel availableTitleLabel = new JLabel("Available Books");
         JLabel borrowedTitleLabel = new JLabel("Borrowed Books");
+        JLabel recommendedTitleLabel = new JLabel("Readers Also Borrowed");
+        JLabel reservationTitleLabel = new JLabel("My Reservations");
         textPanel.add(bookTitleLabel);
         textPanel.add(availableTitleLabel);
         textPanel.add(borrowedTitleLabel);
+        textPanel.add(recommendedTitleLabel);
+        textPanel.add(reservationTitleLabel);
 
 
         // Add the tables to the table panel
-        JScrollPane bookScrollPane = new JScrollPane(bookTable);
-        JScrollPane availableScrollPane = new JScrollPane(availableTable);
-        JScrollPane borrowedScrollPane = new JScrollPane(borrowedTable);
+        JScrollPane bookScrollPane = bookTable.scrollPane();
+        JScrollPane availableScrollPane = availableTable.scrollPane();
+        JScrollPane borrowedScrollPane = borrowedTable.scrollPane();
+        JScrollPane recommendedScrollPane = recommendedTable.scrollPane();
+        JScrollPane reservationScrollPane = reservationTable.scrollPane();
 
         tablePanel.add(bookScrollPane);
         tablePanel.add(availableScrollPane);
         tablePanel.add(borrowedScrollPane);
+        tablePanel.add(recommendedScrollPane);
+        tablePanel.add(reservationScrollPane);
+
+        // Reserve and cancel buttons under the tables
+        JPanel reservationPanel = new JPanel(new FlowLayout());
+        JButton reserveButton = new JButton("Reserve a Book");
+        JButton cancelReservationButton = new JButton("Cancel Reservation");
+        reservationPanel.add(reserveButton);
+        reservationPanel.add(cancelReservationButton);
+
+        reserveButton.addActionListener(e -> createReservationForm(userID,
+                () -> reservationTable.setModel(populateReservationsTable(connection, userID))));
+        cancelReservationButton.addActionListener(e -> {
+            int row = reservationTable.getSelectedRow();
+            if (row < 0) {
+                JOptionPane.showMessageDialog(dbFrame, "Select a reservation to cancel.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            int reservationId = (Integer) reservationTable.getModel().getValueAt(reservationTable.convertRowIndexToModel(row), 0);
+            try {
+                if (Circulation.cancelReservation(connection, reservationId)) {
+                    JOptionPane.showMessageDialog(dbFrame, "Reservation cancelled.", "Success", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(dbFrame, "The reservation was already picked up or cancelled.", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            } catch (SQLException exception) {
+                exception.printStackTrace();
+                System.out.println("Error while cancelling the reservation");
+            }
+            reservationTable.setModel(populateReservationsTable(connection, userID));
+        });
 
         dbFrame.add(textPanel, BorderLayout.NORTH);
         dbFrame.add(tablePanel, BorderLayout.CENTER);
+        dbFrame.add(reservationPanel, BorderLayout.SOUTH);
 
+        ScreenProfiler.trackFirstPaint(dbFrame);
         dbFrame.setVisible(true);
+        framePhase.end();
+
+        // The catalogue and the user's history are fetched at the same time on
+        // their own connections, each panel is filled as soon as its data is in.
+        // The screen is ready once the last panel is filled.
+        AtomicInteger loading = new AtomicInteger(2);
+        Runnable loaded = () -> {
+            if (loading.decrementAndGet() == 0) readyPhase.end();
+        };
+        ExecutorService loader = Executors.newVirtualThreadPerTaskExecutor();
+        loader.submit(ScreenProfiler.onScreen(() -> {
+            Connection catalogueConnection = loaderConnection(CATALOGUE_LOADER);
+            TableModel[] catalogue = populateCatalogueTables(catalogueConnection);
+            SwingUtilities.invokeLater(() -> {
+                bookTable.setModel(catalogue[0]);
+                availableTable.setModel(catalogue[1]);
+            });
+            TableModel recommended = populateRecommendedBooksTable(catalogueConnection, userID);
+            SwingUtilities.invokeLater(() -> {
+                recommendedTable.setModel(recommended);
+                loaded.run();
+            });
+        }));
+        loader.submit(ScreenProfiler.onScreen(() -> {
+            Connection historyConnection = loaderConnection(HISTORY_LOADER);
+            TableModel borrowed = populateBorrowedBooksTable(historyConnection, userID);
+            SwingUtilities.invokeLater(() -> borrowedTable.setModel(borrowed));
+            TableModel reservations = populateReservationsTable(historyConnection, userID);
+            SwingUtilities.invokeLater(() -> {
+                reservationTable.setModel(reservations);
+                loaded.run();
+            });
+        }));
+        loader.shutdown();
+    }
+
+    // Connections of the user home screen loaders, kept apart from the shared
+    // one so a load never interleaves with circulation on the event thread
+    private static synchronized Connection loaderConnection(int loader) {
+        try {
+            if (loaderConnections[loader] == null || loaderConnections[loader].isClosed()) {
+                loaderConnections[loader] = DriverManager.getConnection(BranchRouter.localUrl());
+            }
+            return loaderConnections[loader];
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return connection;
+        }
     }
 
     // Method to populate the User table
@@ -138,11 +366,15 @@ public class LibraryGUI {
         List<List<Object>> rows = new ArrayList<>();
 
         try {
-            String query = "SELECT id, name, email, phonenumber, address FROM USERS";
+            String query = "SELECT id, name, email, phonenumber, address, version FROM USERS";
+            ScreenProfiler.Phase queryPhase = ScreenProfiler.query(query);
             PreparedStatement stmt = connection.prepareStatement(query);
             ResultSet rs = stmt.executeQuery();
+            queryPhase.end();
 
+            ScreenProfiler.Phase fetchPhase = ScreenProfiler.fetch();
             while (rs.next()) {
+                editBuffer.rememberVersion("USERS", rs.getInt("id"), rs.getInt("version"));
                 List<Object> row = new ArrayList<>();
                 row.add(rs.getInt("id"));
                 row.add(rs.getString("name"));
@@ -151,6 +383,7 @@ public class LibraryGUI {
                 row.add(rs.getString("address"));
                 rows.add(row);
             }
+            fetchPhase.end(rows.size());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -165,12 +398,20 @@ public class LibraryGUI {
         else columnNames = new String[]{"title", "Author", "publisher_year"};
         List<List<Object>> rows = new ArrayList<>();
 
+        // Browse sessions read the catalogue snapshot instead of the database
+        CatalogueSnapshot snapshot = CatalogueSnapshot.current();
+        if (!statusAdmin && snapshot != null) return buildTableModel(snapshot.bookRows(false), columnNames);
+
         try {
-            String query = "SELECT id, title, author, publisher, publicationyear, isbn FROM BOOKS";
+            String query = "SELECT id, title, author, publisher, publicationyear, isbn, version FROM BOOKS";
+            ScreenProfiler.Phase queryPhase = ScreenProfiler.query(query);
             PreparedStatement stmt = connection.prepareStatement(query);
             ResultSet rs = stmt.executeQuery();
+            queryPhase.end();
 
+            ScreenProfiler.Phase fetchPhase = ScreenProfiler.fetch();
             while (rs.next()) {
+                if(statusAdmin) editBuffer.rememberVersion("BOOKS", rs.getInt("id"), rs.getInt("version"));
                 List<Object> row = new ArrayList<>();
                 if(statusAdmin) row.add(rs.getInt("id"));
                 row.add(rs.getString("title"));
@@ -180,6 +421,7 @@ public class LibraryGUI {
                 if(statusAdmin) row.add(rs.getString("isbn"));
                 rows.add(row);
             }
+            fetchPhase.end(rows.size());
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -187,30 +429,45 @@ public class LibraryGUI {
         return buildTableModel(rows, columnNames);
     }
 
-    private static TableModel populateAvailableBooksTable(){
-        String[] columnNames = {"title", "Author", "publisher_year"};
+    // "Books" and "Available Books" of the user home screen from one pass over
+    // BOOKS: every row carries whether the book has an available copy, and the
+    // available list is the de-duplicated subset of the same rows.
+    private static TableModel[] populateCatalogueTables(Connection connection) {
         List<List<Object>> rows = new ArrayList<>();
+        Set<List<Object>> available = new LinkedHashSet<>();
+
+        // Browse sessions read the catalogue snapshot instead of the database
+        CatalogueSnapshot snapshot = CatalogueSnapshot.current();
+        if (snapshot != null) {
+            return new TableModel[]{buildTableModel(snapshot.bookRows(false), CATALOGUE_COLUMNS),
+                                    buildTableModel(snapshot.bookRows(true), CATALOGUE_COLUMNS)};
+        }
 
         try {
-            String query =  "SELECT DISTINCT b.title, b.author, b.publicationyear\n" +
-                            "FROM books b\n" +
-                            "JOIN copies c ON b.id = c.bookid\n" +
-                            "WHERE c.status = 'Available'";
+            String query =  "SELECT b.title, b.author, b.publicationyear,\n" +
+                            "EXISTS (SELECT 1 FROM copies c WHERE c.bookid = b.id AND c.status = 'Available') AS available\n" +
+                            "FROM books b";
+            ScreenProfiler.Phase queryPhase = ScreenProfiler.query(query);
             PreparedStatement stmt = connection.prepareStatement(query);
             ResultSet rs = stmt.executeQuery();
+            queryPhase.end();
 
+            ScreenProfiler.Phase fetchPhase = ScreenProfiler.fetch();
             while (rs.next()) {
                 List<Object> row = new ArrayList<>();
                 row.add(rs.getString("title"));
                 row.add(rs.getString("author"));
                 row.add(rs.getInt("publicationyear"));
                 rows.add(row);
+                if (rs.getBoolean("available")) available.add(row);
             }
+            fetchPhase.end(rows.size());
         } catch (SQLException e) {
             e.printStackTrace();
         }
 
-        return buildTableModel(rows, columnNames);
+        return new TableModel[]{buildTableModel(rows, CATALOGUE_COLUMNS),
+                                buildTableModel(new ArrayList<>(available), CATALOGUE_COLUMNS)};
     }
 
     // Method to populate the Borrowing table
@@ -221,9 +478,12 @@ public class LibraryGUI {
 
         try {
             String query = "SELECT id, userid, copyid, borrowdate, returndate FROM BORROWINGS";
+            ScreenProfiler.Phase queryPhase = ScreenProfiler.query(query);
             PreparedStatement stmt = connection.prepareStatement(query);
             ResultSet rs = stmt.executeQuery();
+            queryPhase.end();
 
+            ScreenProfiler.Phase fetchPhase = ScreenProfiler.fetch();
             while (rs.next()) {
                 List<Object> row = new ArrayList<>();
                 row.add(rs.getInt("id"));
@@ -233,17 +493,31 @@ public class LibraryGUI {
                 row.add(rs.getDate("returndate"));
                 rows.add(row);
             }
+            fetchPhase.end(rows.size());
         } catch (SQLException e) {
             e.printStackTrace();
         }
 
         return buildTableModel(rows, columnNames);
     }
-    private static TableModel populateBorrowedBooksTable(int userID) {
+    private static TableModel populateBorrowedBooksTable(Connection connection, int userID) {
 
-        String[] columnNames = {"Title", "Borrow Date", "Return Date"};
+        String[] columnNames = BORROWED_COLUMNS;
         List<List<Object>> rows = new ArrayList<>();
 
+        if (borrowingArchive != null) {
+            // Merges the hot BORROWINGS rows with the archived ones
+            ScreenProfiler.Phase queryPhase = ScreenProfiler.query("BorrowingArchive.history");
+            try {
+                rows = borrowingArchive.history(connection, userID);
+                queryPhase.end(rows.size());
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            addBranchLoans(rows, connection, userID);
+            return buildTableModel(rows, columnNames);
+        }
+
         String query =  "SELECT BOOKS.title, BORROWINGS.borrowdate, BORROWINGS.returndate\n" +
                         "FROM BOOKS\n" +
                         "JOIN COPIES ON BOOKS.id = COPIES.bookid\n" +
@@ -253,7 +527,10 @@ public class LibraryGUI {
         try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
             preparedStatement.setInt(1, userID);
 
+            ScreenProfiler.Phase queryPhase = ScreenProfiler.query(query);
             try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                queryPhase.end();
+                ScreenProfiler.Phase fetchPhase = ScreenProfiler.fetch();
                 while (resultSet.next()) {
                     List<Object> row = new ArrayList<>();
                     row.add(resultSet.getString("title"));
@@ -261,15 +538,81 @@ public class LibraryGUI {
                     row.add(resultSet.getDate("returndate"));
                     rows.add(row);
                 }
+                fetchPhase.end(rows.size());
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
 
+        addBranchLoans(rows, connection, userID);
         return buildTableModel(rows, columnNames);
     }
 
+    // Loans the user took at other branches, the branch after the title
+    private static void addBranchLoans(List<List<Object>> rows, Connection connection, int userID) {
+        ScreenProfiler.Phase queryPhase = ScreenProfiler.query("BranchRouter.branchLoans");
+        try {
+            List<BranchRouter.BranchLoan> loans = BranchRouter.branchLoans(connection, userID);
+            for (BranchRouter.BranchLoan loan : loans) {
+                List<Object> row = new ArrayList<>();
+                row.add(loan.title() + " (" + loan.branch() + ")");
+                row.add(loan.borrowDate());
+                row.add(loan.returnDate());
+                rows.add(row);
+            }
+            queryPhase.end(loans.size());
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static TableModel populateRecommendedBooksTable(Connection connection, int userID) {
+
+        String[] columnNames = RECOMMENDED_COLUMNS;
+        List<List<Object>> rows = new ArrayList<>();
+
+        CoBorrowRecommender recommender = CoBorrowRecommender.getInstance();
+        if (recommender == null) return buildTableModel(rows, columnNames);
+
+        int[] bookIds = recommender.recommend(userID, 10);
+        if (bookIds.length == 0) return buildTableModel(rows, columnNames);
+
+        Map<Integer, List<Object>> byId = new HashMap<>();
+        String query = "SELECT id, title, author FROM BOOKS WHERE id IN (" +
+                       String.join(", ", Collections.nCopies(bookIds.length, "?")) + ")";
+        try (PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+            for (int i = 0; i < bookIds.length; i++) preparedStatement.setInt(i + 1, bookIds[i]);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    List<Object> row = new ArrayList<>();
+                    row.add(resultSet.getString("title"));
+                    row.add(resultSet.getString("author"));
+                    byId.put(resultSet.getInt("id"), row);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        // Keep the recommender's ranking
+        for (int bookId : bookIds) {
+            if (byId.containsKey(bookId)) rows.add(byId.get(bookId));
+        }
+
+        return buildTableModel(rows, columnNames);
+    }
+
+    private static TableModel populateReservationsTable(Connection connection, int userID) {
+        List<List<Object>> rows = new ArrayList<>();
+        try {
+            rows = ReservationQueue.reservationsOf(connection, userID);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return buildTableModel(rows, RESERVATION_COLUMNS);
+    }
+
     private static TableModel buildTableModel(List<List<Object>> rows, String[] columnNames) {
+        ScreenProfiler.Phase modelPhase = ScreenProfiler.modelBuild();
         Object[][] dataArray = new Object[rows.size()][columnNames.length];
         for (int i = 0; i < rows.size(); i++) {
             for (int j = 0; j < rows.get(i).size(); j++) {
@@ -277,8 +620,56 @@ public class LibraryGUI {
             }
         }
 
-        // Create and return a DefaultTableModel
-        return new DefaultTableModel(dataArray, columnNames);
+        // Create and return a read-only DefaultTableModel
+        TableModel model = new DefaultTableModel(dataArray, columnNames) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        modelPhase.end(rows.size());
+        return model;
+    }
+
+    // Editable copy of a populated model; every cell edit goes to the
+    // write-behind buffer keyed by the row id in column 0
+    private static TableModel buildEditableTableModel(TableModel source, String table, String[] dbColumns) {
+        Object[][] dataArray = new Object[source.getRowCount()][source.getColumnCount()];
+        String[] columnNames = new String[source.getColumnCount()];
+        for (int j = 0; j < columnNames.length; j++) columnNames[j] = source.getColumnName(j);
+        for (int i = 0; i < dataArray.length; i++) {
+            for (int j = 0; j < columnNames.length; j++) {
+                dataArray[i][j] = source.getValueAt(i, j);
+            }
+        }
+
+        DefaultTableModel model = new DefaultTableModel(dataArray, columnNames) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return column > 0;
+            }
+        };
+        model.addTableModelListener(e -> {
+            if (e.getType() != javax.swing.event.TableModelEvent.UPDATE || e.getColumn() <= 0) return;
+            for (int row = e.getFirstRow(); row <= e.getLastRow(); row++) {
+                int id = Integer.parseInt(model.getValueAt(row, 0).toString());
+                editBuffer.edit(table, id, dbColumns[e.getColumn()], model.getValueAt(row, e.getColumn()));
+            }
+        });
+        return model;
+    }
+
+    // Commits the buffered edits of one table right away and reloads the window
+    private static void saveEdits(JFrame dbFrame, String table) {
+        WriteBehindBuffer.FlushResult result = editBuffer.flush(table);
+        if (result.conflicts().isEmpty()) {
+            JOptionPane.showMessageDialog(dbFrame, result.updated() + " rows saved.", "Success", JOptionPane.INFORMATION_MESSAGE);
+        } else {
+            JOptionPane.showMessageDialog(dbFrame, result.updated() + " rows saved.\n" + String.join("\n", result.conflicts()),
+                    "Conflicts", JOptionPane.WARNING_MESSAGE);
+        }
+        dbFrame.dispose();
+        createMainWindowAdmin();
     }
 
 
@@ -286,6 +677,7 @@ public class LibraryGUI {
 
     private static void createUserForm() {
 
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("createUserForm");
         JFrame registerFrame = new JFrame("Add user");
         registerFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         registerFrame.addWindowListener(new WindowAdapter() {
@@ -323,12 +715,27 @@ public class LibraryGUI {
         registerFrame.add(regButton);
 
         regButton.addActionListener(e ->  {
-            try (PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO USERS(name, email, phonenumber, address) VALUES (?, ?, ?, ?)")) {
+            try (PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO USERS(name, email, phonenumber, address) VALUES (?, ?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS)) {
+                if (UniqueKeyIndex.getInstance().emailExists(connection, emailField.getText())) {
+                    JOptionPane.showMessageDialog(registerFrame, "A user with this email already exists.", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
                 preparedStatement.setString(1, nameField.getText());
                 preparedStatement.setString(2, emailField.getText());
                 preparedStatement.setString(3, phoneField.getText());
                 preparedStatement.setString(4, addressField.getText());
                 preparedStatement.executeUpdate();
+                UniqueKeyIndex.getInstance().emailAdded(emailField.getText());
+                try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
+                    if (generatedKeys.next()) {
+                        int userId = generatedKeys.getInt(1);
+                        CirculationLog.record(CirculationLog.USER_CREATE, userId, 0, 0, emailField.getText());
+                        AuditTrail.record("INSERT", "USERS", userId, emailField.getText());
+                        PrefixIndex.USERS.add(userId, userId + " " + nameField.getText() + " <" + emailField.getText() + ">",
+                                nameField.getText(), emailField.getText());
+                    }
+                }
                 System.out.println("User added");
 
                 registerFrame.dispose();
@@ -338,11 +745,14 @@ public class LibraryGUI {
                 System.out.println("Error while adding the user");
             }
         });
+        ScreenProfiler.trackFirstPaint(registerFrame);
         registerFrame.setVisible(true);
+        framePhase.end();
     }
 
 
     private static void createBookForm() {
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("createBookForm");
         JFrame registerFrame = new JFrame("Add book");
         registerFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         registerFrame.addWindowListener(new WindowAdapter() {
@@ -362,8 +772,9 @@ public class LibraryGUI {
         JLabel authorLabel = new JLabel("Enter author's name:");
         JTextField authorField = new JTextField();
 
-        JLabel publisherLabel = new JLabel("Enter publisher's id:");
+        JLabel publisherLabel = new JLabel("Enter publisher's name and choose it:");
         JTextField publisherField = new JTextField();
+        AutocompletePopup.attach(publisherField, PrefixIndex.PUBLISHERS);
 
         JLabel publicationYLabel = new JLabel("Enter publication year:");
         JTextField publicationYField = new JTextField();
@@ -386,28 +797,52 @@ public class LibraryGUI {
         registerFrame.add(regButton);
 
         regButton.addActionListener(e ->  {
-            try (PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO BOOKS(title, author, publisher, publisheryear, isbn) VALUES (?, ?, ?, ?, ?)")) {
+            Integer publisherId = AutocompletePopup.selectedId(publisherField);
+            if (publisherId == null) {
+                JOptionPane.showMessageDialog(registerFrame, "Choose a publisher from the suggestions.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            try (PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO BOOKS(title, author, publisher, publicationyear, isbn) VALUES (?, ?, ?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS)) {
+                if (UniqueKeyIndex.getInstance().isbnExists(connection, isbnField.getText())) {
+                    JOptionPane.showMessageDialog(registerFrame, "A book with this ISBN already exists.", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
                 preparedStatement.setString(1, titleField.getText());
                 preparedStatement.setString(2, authorField.getText());
-                preparedStatement.setString(3, publisherField.getText());
-                preparedStatement.setString(4, publicationYField.getText());
+                preparedStatement.setString(3, String.valueOf(publisherId));
+                preparedStatement.setInt(4, Integer.parseInt(publicationYField.getText().trim()));
                 preparedStatement.setString(5, isbnField.getText());
                 preparedStatement.executeUpdate();
+                UniqueKeyIndex.getInstance().isbnAdded(isbnField.getText());
+                try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
+                    if (generatedKeys.next()) {
+                        int bookId = generatedKeys.getInt(1);
+                        AuditTrail.record("INSERT", "BOOKS", bookId, "isbn " + isbnField.getText() + ", " + titleField.getText());
+                        PrefixIndex.BOOKS.add(bookId, bookId + " " + titleField.getText() + " - " + authorField.getText(),
+                                titleField.getText(), isbnField.getText());
+                    }
+                }
                 System.out.println("Book is added");
 
 
                 registerFrame.dispose();
                 createMainWindowAdmin();
+            } catch (NumberFormatException exception) {
+                JOptionPane.showMessageDialog(registerFrame, "Publication year must be a number.", "Error", JOptionPane.ERROR_MESSAGE);
             } catch (SQLException exception) {
                 exception.printStackTrace();
                 System.out.println("Error while adding the book");
             }
         });
+        ScreenProfiler.trackFirstPaint(registerFrame);
         registerFrame.setVisible(true);
+        framePhase.end();
     }
 
 
     private static void createBorrowingForm() {
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("createBorrowingForm");
         JFrame registerFrame = new JFrame("Add Borrowing");
         registerFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         registerFrame.addWindowListener(new WindowAdapter() {
@@ -421,16 +856,18 @@ public class LibraryGUI {
         registerFrame.setSize(500, 400);
         registerFrame.setLayout(new GridLayout(7, 1, 10, 10));
 
-        JLabel useridLabel = new JLabel("Enter a user id:");
+        JLabel useridLabel = new JLabel("Enter a user name or email and choose the user:");
         JTextField useridField = new JTextField();
+        AutocompletePopup.attach(useridField, PrefixIndex.USERS);
 
-        JLabel copyIdLabel = new JLabel("Enter copy id:");
+        JLabel copyIdLabel = new JLabel("Enter copy number or title and choose the copy:");
         JTextField copyIdField = new JTextField();
+        AutocompletePopup.attach(copyIdField, PrefixIndex.COPIES);
 
-        JLabel borrowDateLabel = new JLabel("Enter borrow date:");
+        JLabel borrowDateLabel = new JLabel("Enter borrow date (yyyy-mm-dd, empty for today):");
         JTextField borrowDateField = new JTextField();
 
-        JLabel returnDateLabel = new JLabel("Enter return date:");
+        JLabel returnDateLabel = new JLabel("Enter return date (yyyy-mm-dd, empty if not returned):");
         JTextField returnDateField = new JTextField();
 
         registerFrame.add(useridLabel);
@@ -445,27 +882,180 @@ public class LibraryGUI {
         JButton regButton = new JButton("add borrowing");
         registerFrame.add(regButton);
 
+        // Open loans go through the desk checkout, so the copy status, the
+        // double-lend guard and the borrowing limit apply; loans that already
+        // have a return date are history being entered after the fact
         regButton.addActionListener(e ->  {
-            try (PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO BOOKS(userid, copyid, borrowdate, returndate) VALUES (?, ?, ?, ?)")) {
-                preparedStatement.setString(1, useridField.getText());
-                preparedStatement.setString(2, copyIdField.getText());
-                preparedStatement.setString(3, borrowDateField.getText());
-                preparedStatement.setString(4, returnDateField.getText());
-                preparedStatement.executeUpdate();
+            Integer userId = AutocompletePopup.selectedId(useridField);
+            Integer copyId = AutocompletePopup.selectedId(copyIdField);
+            if (userId == null || copyId == null) {
+                JOptionPane.showMessageDialog(registerFrame, "Choose the user and the copy from the suggestions.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            java.time.LocalDate borrowDate;
+            java.time.LocalDate returnDate;
+            try {
+                borrowDate = borrowDateField.getText().isBlank() ? java.time.LocalDate.now()
+                        : java.time.LocalDate.parse(borrowDateField.getText().trim());
+                returnDate = returnDateField.getText().isBlank() ? null : java.time.LocalDate.parse(returnDateField.getText().trim());
+            } catch (java.time.format.DateTimeParseException exception) {
+                JOptionPane.showMessageDialog(registerFrame, "Dates must be in yyyy-mm-dd format.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            try {
+                if (returnDate == null) {
+                    Circulation.borrowCopy(connection, userId, copyId, borrowDate);
+                } else {
+                    Circulation.recordPastLoan(connection, userId, copyId, borrowDate, returnDate);
+                }
                 System.out.println("borrow is added");
 
-
                 registerFrame.dispose();
-                createMainWindowAdmin();
             } catch (SQLException exception) {
                 exception.printStackTrace();
-                System.out.println("Error while adding the borrow");
+                JOptionPane.showMessageDialog(registerFrame, "Borrowing not added: " + exception.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
         });
+        ScreenProfiler.trackFirstPaint(registerFrame);
         registerFrame.setVisible(true);
+        framePhase.end();
+    }
+
+    // Puts the user in the hold queue of a book; the copy goes on hold for them
+    // when it is returned and they pick it up at the desk
+    private static void createReservationForm(int userID, Runnable onReserved) {
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("createReservationForm");
+        JFrame reserveFrame = new JFrame("Reserve a Book");
+        reserveFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        reserveFrame.setSize(500, 150);
+        reserveFrame.setLayout(new GridLayout(3, 1, 10, 10));
+
+        JLabel bookLabel = new JLabel("Enter the title or ISBN of the book:");
+        JTextField bookField = new JTextField();
+        AutocompletePopup.attach(bookField, PrefixIndex.BOOKS);
+
+        reserveFrame.add(bookLabel);
+        reserveFrame.add(bookField);
+
+        JButton reserveButton = new JButton("reserve");
+        reserveFrame.add(reserveButton);
+
+        reserveButton.addActionListener(e -> {
+            Integer bookId = AutocompletePopup.selectedId(bookField);
+            if (bookId == null) {
+                JOptionPane.showMessageDialog(reserveFrame, "Choose a book from the suggestions.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            try {
+                int reservationId = ReservationQueue.getInstance().reserve(connection, userID, bookId, 0);
+                System.out.println("Reservation " + reservationId + " added");
+                reserveFrame.dispose();
+                onReserved.run();
+            } catch (SQLException exception) {
+                exception.printStackTrace();
+                System.out.println("Error while reserving the book");
+            }
+        });
+        ScreenProfiler.trackFirstPaint(reserveFrame);
+        reserveFrame.setVisible(true);
+        framePhase.end();
+    }
+
+    // Circulation desk mode for barcode scanners. Scanners act as a keyboard
+    // ending every code with Enter, so each scan arrives as one action event;
+    // "U<id>" selects the borrower, anything else is a copy number to lend.
+    private static void createScanCheckoutForm() {
+        ExecutorService deskExecutor = Executors.newSingleThreadExecutor();
+
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("createScanCheckoutForm");
+        JFrame deskFrame = new JFrame("Scan Checkout");
+        deskFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        deskFrame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                deskExecutor.shutdown();
+                // Open the main window after the deskFrame is closed
+                createMainWindowAdmin();
+            }
+        });
+        deskFrame.setSize(500, 400);
+        deskFrame.setLayout(new BorderLayout());
+
+        JPanel inputPanel = new JPanel(new GridLayout(2, 2, 10, 10));
+        JLabel userLabel = new JLabel("Borrower (user id or U-card):");
+        JTextField userField = new JTextField();
+        JLabel scanLabel = new JLabel("Scan copy barcode:");
+        JTextField scanField = new JTextField();
+        inputPanel.add(userLabel);
+        inputPanel.add(userField);
+        inputPanel.add(scanLabel);
+        inputPanel.add(scanField);
+
+        DefaultListModel<String> log = new DefaultListModel<>();
+        JList<String> logList = new JList<>(log);
+
+        deskFrame.add(inputPanel, BorderLayout.NORTH);
+        deskFrame.add(new JScrollPane(logList), BorderLayout.CENTER);
+
+        userField.addActionListener(e -> scanField.requestFocusInWindow());
+        scanField.addActionListener(e -> {
+            String code = scanField.getText().trim();
+            // Clear right away so the next scan can start while this one is processed
+            scanField.setText("");
+            if (code.isEmpty()) return;
+            if (code.startsWith("U") || code.startsWith("u")) {
+                userField.setText(code.substring(1));
+                log.add(0, "Borrower " + code.substring(1));
+                return;
+            }
+
+            String user = userField.getText().trim();
+            deskExecutor.submit(() -> {
+                String message = scanCheckout(user, code);
+                SwingUtilities.invokeLater(() -> log.add(0, message));
+            });
+        });
+
+        ScreenProfiler.trackFirstPaint(deskFrame);
+        deskFrame.setVisible(true);
+        framePhase.end();
+        userField.requestFocusInWindow();
+    }
+
+    private static String scanCheckout(String user, String code) {
+        try {
+            int userId = Integer.parseInt(user);
+            int copyNumber = Integer.parseInt(code);
+            CopyBarcodeIndex index = CopyBarcodeIndex.getInstance();
+
+            CopyBarcodeIndex.Entry copy = index.lookup(connection, copyNumber);
+            if (copy == null) return "Unknown barcode " + copyNumber;
+            // The hint may be stale, confirm with the database before refusing. Copies
+            // on hold go through, borrowCopy lends them only to their reservation holder.
+            if (copy.status() != CopyBarcodeIndex.AVAILABLE) copy = index.refresh(connection, copyNumber);
+            // Deleted since it was indexed
+            if (copy == null) return "Unknown barcode " + copyNumber;
+            if (copy.status() != CopyBarcodeIndex.AVAILABLE && copy.status() != CopyBarcodeIndex.ON_HOLD) {
+                return "Copy " + copyNumber + " is not available";
+            }
+
+            try {
+                int borrowingId = Circulation.borrowCopy(connection, userId, copy.copyId());
+                return "Copy " + copyNumber + " lent to user " + userId + " (borrowing " + borrowingId + ")";
+            } catch (SQLException exception) {
+                index.refresh(connection, copyNumber);
+                return "Copy " + copyNumber + " not lent: " + exception.getMessage();
+            }
+        } catch (NumberFormatException exception) {
+            return "Invalid user id or barcode: " + user + " / " + code;
+        } catch (SQLException exception) {
+            exception.printStackTrace();
+            return "Error while lending copy " + code;
+        }
     }
 
     private static void deleteUserForm(){
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("deleteUserForm");
         JFrame deleteFrame = new JFrame("Delete User");
         deleteFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         deleteFrame.addWindowListener(new WindowAdapter() {
@@ -494,36 +1084,25 @@ public class LibraryGUI {
             try {
                 int userId = Integer.parseInt(userIdField.getText());
 
-                // Delete query with conditions
-                String deleteQuery = "DELETE FROM USERS\n" +
-                        "WHERE id = ?\n" +
-                        "AND NOT EXISTS (SELECT 1 FROM BORROWINGS WHERE userid = ?)\n" +
-                        "AND NOT EXISTS (SELECT 1 FROM USERS u left join LIBRARIANS l WHERE u.id = ? and l.userid = ?)";
-
-                try (PreparedStatement deleteStmt = connection.prepareStatement(deleteQuery)) {
-                    deleteStmt.setInt(1, userId);
-                    deleteStmt.setInt(2, userId);
-                    deleteStmt.setInt(3, userId);
-                    deleteStmt.setInt(4, userId);
-
-                    int rowsAffected = deleteStmt.executeUpdate();
-
-                    if (rowsAffected > 0) {
-                        JOptionPane.showMessageDialog(deleteFrame, "User deleted successfully.", "Success", JOptionPane.INFORMATION_MESSAGE);
-                    } else {
-                        JOptionPane.showMessageDialog(deleteFrame, "User cannot be deleted (either a librarian or has borrowings).", "Error", JOptionPane.ERROR_MESSAGE);
-                    }
+                if (Circulation.deleteUser(connection, userId, borrowingArchive)) {
+                    PrefixIndex.USERS.remove(userId);
+                    JOptionPane.showMessageDialog(deleteFrame, "User deleted successfully.", "Success", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(deleteFrame, "User cannot be deleted (either a librarian or has borrowings, current or archived).", "Error", JOptionPane.ERROR_MESSAGE);
                 }
             } catch (Exception ex) {
                 JOptionPane.showMessageDialog(deleteFrame, "Please enter a valid user ID. or User has borrowings/ is a librarian", "Error", JOptionPane.ERROR_MESSAGE);
             }
         });
+        ScreenProfiler.trackFirstPaint(deleteFrame);
         deleteFrame.setVisible(true);
+        framePhase.end();
     }
 
 
     public static void createPopupWindow() {
         // Popup Window
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("createPopupWindow");
         JFrame popupFrame = new JFrame("Welcome");
         popupFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         popupFrame.setSize(300, 150);
@@ -546,11 +1125,14 @@ public class LibraryGUI {
         popupFrame.add(loginButton);
         popupFrame.add(registerButton);
 
+        ScreenProfiler.trackFirstPaint(popupFrame);
         popupFrame.setVisible(true);
+        framePhase.end();
     }
 
     private static void createLoginForm() {
         // Log In Form
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("createLoginForm");
         JFrame loginFrame = new JFrame("Log In");
         loginFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         loginFrame.setSize(500, 400);
@@ -596,6 +1178,7 @@ public class LibraryGUI {
                             }
                         }
 
+                        AuditTrail.setActor((statusAdmin ? "librarian " : "user ") + userId);
                         if(statusAdmin) createMainWindowAdmin();
                         else createMainWindowUser(userId);
                         loginFrame.dispose();
@@ -608,11 +1191,14 @@ public class LibraryGUI {
             }
         });
 
+        ScreenProfiler.trackFirstPaint(loginFrame);
         loginFrame.setVisible(true);
+        framePhase.end();
     }
 
     private static void createRegisterForm() {
         // Register Form
+        ScreenProfiler.Phase framePhase = ScreenProfiler.frame("createRegisterForm");
         JFrame registerFrame = new JFrame("Register");
         registerFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         registerFrame.setSize(500, 400);
@@ -647,16 +1233,26 @@ public class LibraryGUI {
                     "INSERT INTO USERS(name, email, phonenumber, address) VALUES ( ?, ?, ?, ?)",
                     Statement.RETURN_GENERATED_KEYS)) {
 
+                if (UniqueKeyIndex.getInstance().emailExists(connection, emailField.getText())) {
+                    JOptionPane.showMessageDialog(registerFrame, "This email is already registered.", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
                 preparedStatement.setString(1, nameField.getText());
                 preparedStatement.setString(2, emailField.getText());
                 preparedStatement.setString(3, phoneField.getText());
                 preparedStatement.setString(4, addressField.getText());
                 preparedStatement.executeUpdate();
+                UniqueKeyIndex.getInstance().emailAdded(emailField.getText());
 
                 try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
                     if (generatedKeys.next()) {
                     int userID = generatedKeys.getInt(1);
                     System.out.println("User added with ID: " + userID);
+                    CirculationLog.record(CirculationLog.USER_CREATE, userID, 0, 0, emailField.getText());
+                    AuditTrail.setActor("user " + userID);
+                    AuditTrail.record("INSERT", "USERS", userID, "self-registration " + emailField.getText());
+                    PrefixIndex.USERS.add(userID, userID + " " + nameField.getText() + " <" + emailField.getText() + ">",
+                            nameField.getText(), emailField.getText());
 
                     statusAdmin = false;
                     createMainWindowUser(userID);
@@ -668,6 +1264,8 @@ public class LibraryGUI {
                 System.out.println("Error while adding the user");
             }
         });
+        ScreenProfiler.trackFirstPaint(registerFrame);
         registerFrame.setVisible(true);
+        framePhase.end();
     }
 }
\ No newline at end of file
@@ -0,0 +1,642 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+
+// Headless JSON API over the library database for kiosks and the web catalogue.
+//
+//   GET  /books?q=<title prefix>&after=<id>&limit=<n>   catalogue page (keyset on id)
+//   GET  /books/<id>                                    one book
+//   GET  /books/<id>/availability                       copies and their status
+//   GET  /users/<id>/history?after=<id>&limit=<n>       borrowings of a user, archived ones included
+//   GET  /loans?from=<yyyy-mm-dd>&to=<yyyy-mm-dd>       loans borrowed in a date range
+//   POST /loans?userId=<id>&copyId=<id>                 borrow a copy
+//   POST /returns?copyId=<id>                           return a copy
+//   POST /reservations?userId=<id>&bookId=<id>          reserve a book (optional priority=<0-2>)
+//   DELETE /reservations/<id>                           cancel a reservation
+//   GET  /branches/books?q=<title prefix>&offset=<n>&limit=<n>   catalogue search over every branch
+//   POST /branches/loans?userId=<id>&branch=<name>&copyId=<id>   borrow a copy of another branch
+//
+// The first history page also lists the loans the user took at other branches.
+//
+// Catalogue responses carry an ETag computed from BOOKS and COPIES themselves,
+// so clients can revalidate with If-None-Match and a change made at the desk
+// or by a nightly job is seen as well as one made through this server.
+public class LibraryServer {
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 1000;
+
+    private final HttpServer server;
+    private final BlockingQueue<Connection> pool;
+    private final BorrowingArchive archive;
+
+    // archive may be null, history is then read from BORROWINGS only
+    public LibraryServer(String url, int port, int connections, BorrowingArchive archive) throws IOException, SQLException {
+        this.archive = archive;
+        pool = new ArrayBlockingQueue<>(connections);
+        for (int i = 0; i < connections; i++) pool.add(DriverManager.getConnection(url));
+
+        Connection first = pool.peek();
+        ReservationQueue.createTable(first);
+        ReservationQueue.getInstance().load(first);
+        BranchRouter.createTable(first);
+        WriteBehindBuffer.addVersionColumns(first);
+        BorrowingReports.install(first);
+        LoanCounters.load(first).startReconciler(url, Integer.getInteger("library.loans.reconcile.minutes", 60));
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/books", this::handleBooks);
+        server.createContext("/users", this::handleUsers);
+        server.createContext("/loans", this::handleLoans);
+        server.createContext("/returns", this::handleReturns);
+        server.createContext("/reservations", this::handleReservations);
+        server.createContext("/branches", this::handleBranches);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        // Small chunked responses otherwise stall on Nagle + delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        String url = BranchRouter.localUrl();
+        AuditTrail.setActor("server");
+        AuditTrail audit = AuditTrail.start(Integer.getInteger("library.audit.capacity", 16384),
+                AuditTrail.FullPolicy.valueOf(System.getProperty("library.audit.policy", "BLOCK")), new AuditTrail.TableSink(url));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                audit.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        try (Connection connection = DriverManager.getConnection(url)) {
+            CirculationLog log = CirculationLog.open(Paths.get("./db/events"), connection);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+            System.out.println("Circulation log not available");
+        }
+        BorrowingArchive archive = null;
+        try {
+            archive = BorrowingArchive.open(Paths.get("./db/archive"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Borrowing archive not available");
+        }
+        LibraryServer libraryServer = new LibraryServer(url, port, Integer.getInteger("library.server.connections", 8), archive);
+        libraryServer.start();
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Library server listening on port " + server.getAddress().getPort());
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        BranchRouter.closeConnections();
+        for (Connection connection : pool) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ConnectionTask<T> {
+        T run(Connection connection) throws SQLException, IOException;
+    }
+
+    private <T> T withConnection(ConnectionTask<T> task) throws SQLException, IOException {
+        Connection connection;
+        try {
+            connection = pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            return task.run(connection);
+        } finally {
+            pool.add(connection);
+        }
+    }
+
+    private void handleBooks(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "method not allowed");
+                return;
+            }
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            Map<String, String> params = queryParams(exchange);
+
+            // Every catalogue resource shares the catalogue tag, the URI keeps the tags distinct
+            String etag = "\"" + withConnection(LibraryServer::catalogueTag) + "-" +
+                    Integer.toHexString(exchange.getRequestURI().toString().hashCode()) + "\"";
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("ETag", etag);
+
+            if (path.length == 2) {
+                listBooks(exchange, params.getOrDefault("q", ""), intParam(params, "after", 0), limit(params));
+            } else if (path.length == 3) {
+                getBook(exchange, Integer.parseInt(path[2]));
+            } else if (path.length == 4 && path[3].equals("availability")) {
+                getAvailability(exchange, Integer.parseInt(path[2]));
+            } else {
+                sendError(exchange, 404, "not found");
+            }
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "invalid number");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            sendError(exchange, 500, e.getMessage());
+        }
+    }
+
+    // Changes whenever the catalogue does: row counts and highest ids catch
+    // inserts and deletes, the BOOKS versions every edit (each writer of BOOKS
+    // bumps VERSION), and a hash over the copies their status changes.
+    private static String catalogueTag(Connection connection) throws SQLException {
+        String query = "SELECT (SELECT COUNT(*) FROM BOOKS), (SELECT COALESCE(MAX(id), 0) FROM BOOKS),\n" +
+                       "(SELECT COALESCE(SUM(version), 0) FROM BOOKS),\n" +
+                       "(SELECT COUNT(*) FROM COPIES), (SELECT COALESCE(MAX(id), 0) FROM COPIES),\n" +
+                       "(SELECT COALESCE(BIT_XOR_AGG(ORA_HASH(id || ':' || COALESCE(bookid, 0) || ':' || COALESCE(status, ''))), 0) FROM COPIES)";
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+            rs.next();
+            StringJoiner tag = new StringJoiner(".");
+            for (int i = 1; i <= 6; i++) tag.add(Long.toHexString(rs.getLong(i)));
+            return tag.toString();
+        }
+    }
+
+    private void listBooks(HttpExchange exchange, String prefix, int after, int limit) throws SQLException, IOException {
+        String query = "SELECT id, title, author, publisher, publicationyear, isbn FROM BOOKS\n" +
+                       "WHERE id > ? AND LOWER(title) LIKE ?\n" +
+                       "ORDER BY id\n" +
+                       "LIMIT ?";
+        withConnection(connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                stmt.setInt(1, after);
+                stmt.setString(2, prefix.toLowerCase().replace("%", "\\%").replace("_", "\\_") + "%");
+                stmt.setInt(3, limit);
+                try (ResultSet rs = stmt.executeQuery(); JsonWriter out = streamJson(exchange, 200)) {
+                    out.raw("{\"items\":[");
+                    int lastId = -1;
+                    int count = 0;
+                    while (rs.next()) {
+                        if (count++ > 0) out.raw(",");
+                        lastId = rs.getInt("id");
+                        writeBook(out, rs);
+                    }
+                    out.raw("],\"next\":").raw(count == limit ? String.valueOf(lastId) : "null").raw("}");
+                }
+            }
+            return null;
+        });
+    }
+
+    private void getBook(HttpExchange exchange, int bookId) throws SQLException, IOException {
+        withConnection(connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT id, title, author, publisher, publicationyear, isbn FROM BOOKS WHERE id = ?")) {
+                stmt.setInt(1, bookId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        sendError(exchange, 404, "no book " + bookId);
+                        return null;
+                    }
+                    try (JsonWriter out = streamJson(exchange, 200)) {
+                        writeBook(out, rs);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    private void getAvailability(HttpExchange exchange, int bookId) throws SQLException, IOException {
+        withConnection(connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT id, copynumber, status FROM COPIES WHERE bookid = ? ORDER BY copynumber")) {
+                stmt.setInt(1, bookId);
+                try (ResultSet rs = stmt.executeQuery(); JsonWriter out = streamJson(exchange, 200)) {
+                    out.raw("{\"bookId\":").raw(String.valueOf(bookId)).raw(",\"copies\":[");
+                    int available = 0;
+                    int count = 0;
+                    while (rs.next()) {
+                        if (count++ > 0) out.raw(",");
+                        String status = rs.getString("status");
+                        if ("Available".equals(status)) available++;
+                        out.raw("{\"id\":").raw(String.valueOf(rs.getInt("id")))
+                           .raw(",\"copyNumber\":").raw(String.valueOf(rs.getInt("copynumber")))
+                           .raw(",\"status\":").string(status).raw("}");
+                    }
+                    out.raw("],\"available\":").raw(String.valueOf(available)).raw("}");
+                }
+            }
+            return null;
+        });
+    }
+
+    private void handleUsers(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            if (!"GET".equals(exchange.getRequestMethod()) || path.length != 4 || !path[3].equals("history")) {
+                sendError(exchange, 404, "not found");
+                return;
+            }
+            int userId = Integer.parseInt(path[2]);
+            Map<String, String> params = queryParams(exchange);
+            int after = intParam(params, "after", 0);
+            int limit = limit(params);
+
+            String query = "SELECT BORROWINGS.id, BORROWINGS.copyid, BOOKS.title, BORROWINGS.borrowdate, BORROWINGS.returndate\n" +
+                           "FROM BORROWINGS\n" +
+                           "JOIN COPIES ON COPIES.id = BORROWINGS.copyid\n" +
+                           "JOIN BOOKS ON BOOKS.id = COPIES.bookid\n" +
+                           "WHERE BORROWINGS.userid = ? AND BORROWINGS.id > ?\n" +
+                           "ORDER BY BORROWINGS.id\n" +
+                           "LIMIT ?";
+            // Archived and live loans merged on the borrowing id, which is also the page key
+            TreeMap<Integer, BorrowingArchive.ArchivedBorrowing> page = new TreeMap<>();
+            if (archive != null) {
+                try {
+                    for (BorrowingArchive.ArchivedBorrowing row : archive.archived(userId)) {
+                        if (row.id() > after) page.put(row.id(), row);
+                        if (page.size() == limit) break;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println("Error while reading the borrowing archive");
+                }
+            }
+            withConnection(connection -> {
+                try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                    stmt.setInt(1, userId);
+                    stmt.setInt(2, after);
+                    stmt.setInt(3, limit);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            page.put(rs.getInt("id"), new BorrowingArchive.ArchivedBorrowing(rs.getInt("id"), userId,
+                                    rs.getInt("copyid"), rs.getString("title"), rs.getDate("borrowdate"), rs.getDate("returndate")));
+                        }
+                    }
+                }
+                return null;
+            });
+
+            List<BranchRouter.BranchLoan> branchLoans = after == 0
+                    ? withConnection(connection -> BranchRouter.branchLoans(connection, userId))
+                    : List.of();
+
+            try (JsonWriter out = streamJson(exchange, 200)) {
+                out.raw("{\"items\":[");
+                int lastId = -1;
+                int count = 0;
+                for (BorrowingArchive.ArchivedBorrowing row : page.values()) {
+                    if (count == limit) break;
+                    if (count++ > 0) out.raw(",");
+                    lastId = row.id();
+                    out.raw("{\"id\":").raw(String.valueOf(lastId))
+                       .raw(",\"copyId\":").raw(String.valueOf(row.copyId()))
+                       .raw(",\"title\":").string(row.title())
+                       .raw(",\"borrowDate\":").string(String.valueOf(row.borrowDate()))
+                       .raw(",\"returnDate\":").string(row.returnDate() == null ? null : row.returnDate().toString())
+                       .raw("}");
+                }
+                out.raw("],\"next\":").raw(count == limit ? String.valueOf(lastId) : "null");
+                if (after == 0) {
+                    out.raw(",\"otherBranches\":[");
+                    for (int i = 0; i < branchLoans.size(); i++) {
+                        BranchRouter.BranchLoan loan = branchLoans.get(i);
+                        if (i > 0) out.raw(",");
+                        out.raw("{\"branch\":").string(loan.branch())
+                           .raw(",\"borrowingId\":").raw(String.valueOf(loan.borrowingId()))
+                           .raw(",\"copyId\":").raw(String.valueOf(loan.copyId()))
+                           .raw(",\"title\":").string(loan.title())
+                           .raw(",\"borrowDate\":").string(String.valueOf(loan.borrowDate()))
+                           .raw(",\"returnDate\":").string(loan.returnDate() == null ? null : loan.returnDate().toString())
+                           .raw("}");
+                    }
+                    out.raw("]");
+                }
+                out.raw("}");
+            }
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "invalid number");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            sendError(exchange, 500, e.getMessage());
+        }
+    }
+
+    private void handleLoans(HttpExchange exchange) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod())) {
+            handleLoanReport(exchange);
+            return;
+        }
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "method not allowed");
+                return;
+            }
+            Map<String, String> params = requestParams(exchange);
+            int userId = Integer.parseInt(params.get("userId"));
+            int copyId = Integer.parseInt(params.get("copyId"));
+            int borrowingId;
+            try {
+                borrowingId = withConnection(connection -> Circulation.borrowCopy(connection, userId, copyId));
+            } catch (SQLException e) {
+                sendError(exchange, 409, e.getMessage());
+                return;
+            }
+            try (JsonWriter out = streamJson(exchange, 201)) {
+                out.raw("{\"borrowingId\":").raw(String.valueOf(borrowingId)).raw("}");
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+            sendError(exchange, 400, "userId and copyId are required");
+        }
+    }
+
+    // GET /loans?from=yyyy-mm-dd&to=yyyy-mm-dd
+    private void handleLoanReport(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Map<String, String> params = queryParams(exchange);
+            LocalDate from = LocalDate.parse(params.get("from"));
+            LocalDate to = LocalDate.parse(params.get("to"));
+            withConnection(connection -> {
+                try (PreparedStatement stmt = BorrowingReports.prepareRange(connection, from, to);
+                     ResultSet rs = stmt.executeQuery(); JsonWriter out = streamJson(exchange, 200)) {
+                    out.raw("{\"items\":[");
+                    int count = 0;
+                    while (rs.next()) {
+                        if (count++ > 0) out.raw(",");
+                        out.raw("{\"id\":").raw(String.valueOf(rs.getInt("id")))
+                           .raw(",\"userId\":").raw(String.valueOf(rs.getInt("userid")))
+                           .raw(",\"copyId\":").raw(String.valueOf(rs.getInt("copyid")))
+                           .raw(",\"borrowDate\":").string(String.valueOf(rs.getDate("borrowdate")))
+                           .raw(",\"returnDate\":").string(rs.getDate("returndate") == null ? null : rs.getDate("returndate").toString())
+                           .raw("}");
+                    }
+                    out.raw("],\"count\":").raw(String.valueOf(count)).raw("}");
+                }
+                return null;
+            });
+        } catch (DateTimeParseException | NullPointerException e) {
+            sendError(exchange, 400, "from and to dates are required (yyyy-mm-dd)");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            sendError(exchange, 500, e.getMessage());
+        }
+    }
+
+    private void handleReturns(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "method not allowed");
+                return;
+            }
+            int copyId = Integer.parseInt(requestParams(exchange).get("copyId"));
+            int reservationId;
+            try {
+                reservationId = withConnection(connection -> Circulation.returnCopy(connection, copyId));
+            } catch (SQLException e) {
+                sendError(exchange, 409, e.getMessage());
+                return;
+            }
+            try (JsonWriter out = streamJson(exchange, 200)) {
+                out.raw("{\"copyId\":").raw(String.valueOf(copyId))
+                   .raw(",\"reservationId\":").raw(reservationId > 0 ? String.valueOf(reservationId) : "null").raw("}");
+            }
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "copyId is required");
+        }
+    }
+
+    private void handleReservations(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            if ("POST".equals(exchange.getRequestMethod()) && path.length == 2) {
+                Map<String, String> params = requestParams(exchange);
+                int userId = Integer.parseInt(params.get("userId"));
+                int bookId = Integer.parseInt(params.get("bookId"));
+                int priority = intParam(params, "priority", 0);
+                int reservationId;
+                try {
+                    reservationId = withConnection(connection ->
+                            ReservationQueue.getInstance().reserve(connection, userId, bookId, priority));
+                } catch (SQLException e) {
+                    sendError(exchange, 409, e.getMessage());
+                    return;
+                }
+                try (JsonWriter out = streamJson(exchange, 201)) {
+                    out.raw("{\"reservationId\":").raw(String.valueOf(reservationId)).raw("}");
+                }
+            } else if ("DELETE".equals(exchange.getRequestMethod()) && path.length == 3) {
+                int reservationId = Integer.parseInt(path[2]);
+                boolean cancelled = withConnection(connection -> Circulation.cancelReservation(connection, reservationId));
+                if (!cancelled) {
+                    sendError(exchange, 409, "reservation " + reservationId + " is not waiting or on hold");
+                    return;
+                }
+                try (JsonWriter out = streamJson(exchange, 200)) {
+                    out.raw("{\"reservationId\":").raw(String.valueOf(reservationId)).raw(",\"cancelled\":true}");
+                }
+            } else {
+                sendError(exchange, 404, "not found");
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+            sendError(exchange, 400, "userId and bookId are required");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            sendError(exchange, 500, e.getMessage());
+        }
+    }
+
+    private void handleBranches(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            if ("GET".equals(exchange.getRequestMethod()) && path.length == 3 && path[2].equals("books")) {
+                Map<String, String> params = queryParams(exchange);
+                List<BranchRouter.BookHit> hits = BranchRouter.searchBooks(params.getOrDefault("q", ""),
+                        Math.max(0, intParam(params, "offset", 0)), limit(params));
+                try (JsonWriter out = streamJson(exchange, 200)) {
+                    out.raw("{\"items\":[");
+                    for (int i = 0; i < hits.size(); i++) {
+                        BranchRouter.BookHit hit = hits.get(i);
+                        if (i > 0) out.raw(",");
+                        out.raw("{\"branch\":").string(hit.branch())
+                           .raw(",\"id\":").raw(String.valueOf(hit.id()))
+                           .raw(",\"title\":").string(hit.title())
+                           .raw(",\"author\":").string(hit.author())
+                           .raw(",\"publicationYear\":").raw(String.valueOf(hit.publicationYear()))
+                           .raw(",\"isbn\":").string(hit.isbn())
+                           .raw(",\"available\":").raw(String.valueOf(hit.availableCopies()))
+                           .raw("}");
+                    }
+                    out.raw("]}");
+                }
+            } else if ("POST".equals(exchange.getRequestMethod()) && path.length == 3 && path[2].equals("loans")) {
+                Map<String, String> params = requestParams(exchange);
+                int userId = Integer.parseInt(params.get("userId"));
+                int copyId = Integer.parseInt(params.get("copyId"));
+                String branch = params.get("branch");
+                if (branch == null || !BranchRouter.branches().containsKey(branch)) {
+                    sendError(exchange, 400, "unknown branch " + branch);
+                    return;
+                }
+                int borrowingId;
+                try {
+                    borrowingId = withConnection(connection -> BranchRouter.borrowAcrossBranches(connection, userId, branch, copyId));
+                } catch (SQLException e) {
+                    sendError(exchange, 409, e.getMessage());
+                    return;
+                }
+                try (JsonWriter out = streamJson(exchange, 201)) {
+                    out.raw("{\"branch\":").string(branch)
+                       .raw(",\"borrowingId\":").raw(String.valueOf(borrowingId)).raw("}");
+                }
+            } else {
+                sendError(exchange, 404, "not found");
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+            sendError(exchange, 400, "userId and copyId are required");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            sendError(exchange, 500, e.getMessage());
+        }
+    }
+
+    private static void writeBook(JsonWriter out, ResultSet rs) throws SQLException, IOException {
+        out.raw("{\"id\":").raw(String.valueOf(rs.getInt("id")))
+           .raw(",\"title\":").string(rs.getString("title"))
+           .raw(",\"author\":").string(rs.getString("author"))
+           .raw(",\"publisher\":").string(rs.getString("publisher"))
+           .raw(",\"publicationYear\":").raw(String.valueOf(rs.getInt("publicationyear")))
+           .raw(",\"isbn\":").string(rs.getString("isbn"))
+           .raw("}");
+    }
+
+    // Chunked response: rows are written while the ResultSet is still being read
+    private static JsonWriter streamJson(HttpExchange exchange, int status) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, 0);
+        return new JsonWriter(new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 16 * 1024));
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        // Headers already went out with a streamed response: all that can be done
+        // is to cut it short, which the try-with-resources around the handler does
+        if (exchange.getResponseCode() != -1) return;
+        byte[] body = ("{\"error\":" + JsonWriter.quote(message) + "}").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static Map<String, String> queryParams(HttpExchange exchange) {
+        return parseForm(exchange.getRequestURI().getRawQuery());
+    }
+
+    // Parameters from the query string and a form-encoded body
+    private static Map<String, String> requestParams(HttpExchange exchange) throws IOException {
+        Map<String, String> params = queryParams(exchange);
+        params.putAll(parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)));
+        return params;
+    }
+
+    private static Map<String, String> parseForm(String form) {
+        Map<String, String> params = new HashMap<>();
+        if (form == null || form.isEmpty()) return params;
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static int limit(Map<String, String> params) {
+        return Math.max(1, Math.min(MAX_LIMIT, intParam(params, "limit", DEFAULT_LIMIT)));
+    }
+
+    static class JsonWriter implements Closeable {
+        private final Writer writer;
+
+        JsonWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        JsonWriter raw(String text) throws IOException {
+            writer.write(text);
+            return this;
+        }
+
+        JsonWriter string(String value) throws IOException {
+            writer.write(quote(value));
+            return this;
+        }
+
+        static String quote(String value) {
+            if (value == null) return "null";
+            StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"' -> sb.append("\\\"");
+                    case '\\' -> sb.append("\\\\");
+                    case '\n' -> sb.append("\\n");
+                    case '\r' -> sb.append("\\r");
+                    case '\t' -> sb.append("\\t");
+                    default -> {
+                        if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                        else sb.append(c);
+                    }
+                }
+            }
+            return sb.append('"').toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Closed-loop load generator for LibraryServer.
+// Usage: LoadGenerator <base url> <clients> <seconds> <max book id>
+// Every client loops over catalogue pages, book lookups revalidated with
+// If-None-Match, and availability checks, then requests/s and latency
+// percentiles are printed.
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int maxBookId = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        HttpClient client = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long[][] latencies = new long[clients][];
+        int[] counts = new int[clients];
+        AtomicLong errors = new AtomicLong();
+        AtomicLong notModified = new AtomicLong();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                int clientIndex = c;
+                executor.submit(() -> {
+                    long[] samples = new long[1024];
+                    int n = 0;
+                    // The server's tags are per resource, so they are remembered per url
+                    Map<String, String> etags = new HashMap<>();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        int bookId = 1 + random.nextInt(maxBookId);
+                        String url = switch (n % 3) {
+                            case 0 -> baseUrl + "/books?limit=50";
+                            case 1 -> baseUrl + "/books/" + bookId;
+                            default -> baseUrl + "/books/" + bookId + "/availability";
+                        };
+                        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url));
+                        String etag = etags.get(url);
+                        if (n % 3 == 1 && etag != null) request.header("If-None-Match", etag);
+                        long start = System.nanoTime();
+                        try {
+                            HttpResponse<byte[]> response = client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+                            if (response.statusCode() >= 400) errors.incrementAndGet();
+                            if (response.statusCode() == 304) notModified.incrementAndGet();
+                            if (n % 3 == 1) response.headers().firstValue("ETag").ifPresent(tag -> etags.put(url, tag));
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        if (n == samples.length) samples = Arrays.copyOf(samples, n * 2);
+                        samples[n++] = System.nanoTime() - start;
+                    }
+                    latencies[clientIndex] = samples;
+                    counts[clientIndex] = n;
+                    return null;
+                });
+            }
+        }
+
+        int total = Arrays.stream(counts).sum();
+        long[] all = new long[total];
+        int position = 0;
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c], 0, all, position, counts[c]);
+            position += counts[c];
+        }
+        Arrays.sort(all);
+
+        System.out.printf("requests: %d, errors: %d, not modified: %d, throughput: %.1f req/s%n",
+                total, errors.get(), notModified.get(), total / (double) seconds);
+        System.out.printf("latency ms  p50: %.2f  p90: %.2f  p99: %.2f  p99.9: %.2f  max: %.2f%n",
+                percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), percentile(all, 0.999),
+                total == 0 ? 0 : all[total - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
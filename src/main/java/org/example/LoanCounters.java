@@ -0,0 +1,381 @@
+package org.example;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Per-user open loan, overdue loan and outstanding fine counters, so the
+// borrowing limit can be checked without counting BORROWINGS on every checkout.
+//
+// The counters live in USER_LOAN_COUNTERS and are changed in the same
+// transaction as the loan itself. In memory they are split over a fixed number
+// of stripes, each a plain map behind its own lock, so checkouts of different
+// users rarely wait on each other. A periodic reconcile() recounts open and
+// overdue loans from BORROWINGS and repairs any drift. Loans may commit on any
+// connection to the database, so every borrow and return holds the change
+// lock shared until its counters are final. reconcile() takes it exclusively
+// only twice, briefly: to copy the counters and pin a database snapshot, and
+// later to apply the difference between that copy and the recount, so the
+// loans made while it counts are kept. A loan counts as overdue from the
+// reconcile that marked it, by borrowing id; a return lowers the overdue count
+// only for such a loan. The loan period and the fine charged on return follow the same
+// FineRules as the nightly FinesEngine.
+public class LoanCounters {
+    private static final int STRIPES = 64;
+
+    private static volatile LoanCounters instance;
+
+    private final String url;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final FinesEngine.FineRules rules;
+    private final int maxLoans;
+    private final long maxFineCents;
+    private final ReentrantReadWriteLock changeLock = new ReentrantReadWriteLock();
+    private final ReentrantLock reconcileLock = new ReentrantLock();
+    // Borrowing ids the last reconcile counted overdue; replaced under the write lock
+    private Set<Integer> markedOverdue = new HashSet<>();
+    // Loans returned while reconcile() counts, or null
+    private volatile Set<Integer> returnedWhileCounting;
+    private ScheduledExecutorService reconciler;
+
+    // {open loans, overdue loans, fine cents}
+    private static class Stripe {
+        final Map<Integer, long[]> counters = new HashMap<>();
+    }
+
+    public record Counts(int openLoans, int overdueLoans, long fineCents) {
+    }
+
+    private LoanCounters(String url, FinesEngine.FineRules rules) {
+        this.url = url;
+        this.rules = rules;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+        maxLoans = Integer.getInteger("library.loans.max", 5);
+        maxFineCents = Long.getLong("library.fines.block", 1000);
+    }
+
+    public static LoanCounters getInstance() {
+        return instance;
+    }
+
+    // Loans older than this many days count as overdue
+    public static int loanDays() {
+        LoanCounters counters = instance;
+        return counters != null ? counters.rules.loanDays() : FinesEngine.configuredRules().loanDays();
+    }
+
+    public static LoanCounters load(Connection connection) throws SQLException {
+        return load(connection, FinesEngine.configuredRules());
+    }
+
+    public static LoanCounters load(Connection connection, FinesEngine.FineRules rules) throws SQLException {
+        LoanCounters counters = new LoanCounters(connection.getMetaData().getURL(), rules);
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS USER_LOAN_COUNTERS (" +
+                        "userid INT PRIMARY KEY, " +
+                        "openloans INT NOT NULL DEFAULT 0, " +
+                        "overdueloans INT NOT NULL DEFAULT 0, " +
+                        "finecents BIGINT NOT NULL DEFAULT 0)");
+                try (ResultSet rs = stmt.executeQuery("SELECT userid, openloans, overdueloans, finecents FROM USER_LOAN_COUNTERS")) {
+                    while (rs.next()) {
+                        counters.stripe(rs.getInt(1)).counters.put(rs.getInt(1),
+                                new long[]{rs.getInt(2), rs.getInt(3), rs.getLong(4)});
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        instance = counters;
+        // First start, or counters written by an older version: rebuild from BORROWINGS
+        counters.reconcile(connection);
+        return counters;
+    }
+
+    // Counters only track the database they were loaded from, not other branches
+    public boolean covers(Connection connection) throws SQLException {
+        return url.equals(connection.getMetaData().getURL());
+    }
+
+    private Stripe stripe(int userId) {
+        return stripes[(userId * 0x9E3779B9 >>> 16) & (STRIPES - 1)];
+    }
+
+    // Around a whole borrow or return, on the thread that runs it
+    public void lockForChange() {
+        changeLock.readLock().lock();
+    }
+
+    public void unlockForChange() {
+        changeLock.readLock().unlock();
+    }
+
+    public Counts get(int userId) {
+        Stripe stripe = stripe(userId);
+        synchronized (stripe) {
+            long[] c = stripe.counters.get(userId);
+            return c == null ? new Counts(0, 0, 0) : new Counts((int) c[0], (int) c[1], c[2]);
+        }
+    }
+
+    // Checks the limits and takes a loan slot in one step, so two concurrent
+    // checkouts of the same user cannot both pass. Must be followed by
+    // persistBorrow() in the loan transaction, or by releaseLoan() if it fails.
+    public void reserveLoan(int userId) throws SQLException {
+        Stripe stripe = stripe(userId);
+        synchronized (stripe) {
+            long[] c = stripe.counters.computeIfAbsent(userId, id -> new long[3]);
+            if (c[0] >= maxLoans) throw new SQLException("User " + userId + " already has " + c[0] + " books borrowed");
+            if (c[2] > maxFineCents) throw new SQLException("User " + userId + " has unpaid fines of " + c[2] / 100.0);
+            c[0]++;
+        }
+    }
+
+    public void releaseLoan(int userId) {
+        Stripe stripe = stripe(userId);
+        synchronized (stripe) {
+            long[] c = stripe.counters.get(userId);
+            if (c != null && c[0] > 0) c[0]--;
+        }
+    }
+
+    public void persistBorrow(Connection connection, int userId) throws SQLException {
+        update(connection, userId, 1, 0, 0);
+    }
+
+    // Called inside the return transaction; takes the loan off the counters and
+    // charges the fine the rules give for a loan of that many days, the same
+    // amount the nightly run puts in LOAN_FINES. Returns the fine in cents.
+    public long persistReturn(Connection connection, int userId, int daysBorrowed, int borrowingId) throws SQLException {
+        long fine = rules.fine(daysBorrowed, isLibrarian(connection, userId));
+        update(connection, userId, -1, markedOverdue.contains(borrowingId) ? -1 : 0, fine);
+        return fine;
+    }
+
+    private static boolean isLibrarian(Connection connection, int userId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT 1 FROM LIBRARIANS WHERE userid = ?")) {
+            stmt.setInt(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    // Applies the changes persistReturn() wrote once the transaction committed
+    public void returned(int userId, int borrowingId, long fineCents) {
+        boolean overdue = markedOverdue.contains(borrowingId);
+        Set<Integer> counting = returnedWhileCounting;
+        if (counting != null) counting.add(borrowingId);
+        Stripe stripe = stripe(userId);
+        synchronized (stripe) {
+            long[] c = stripe.counters.computeIfAbsent(userId, id -> new long[3]);
+            c[0] = Math.max(0, c[0] - 1);
+            if (overdue) c[1] = Math.max(0, c[1] - 1);
+            c[2] += fineCents;
+        }
+    }
+
+    public void payFine(Connection connection, int userId, long cents) throws SQLException {
+        ConnectionLock.lock(connection);
+        try {
+            update(connection, userId, 0, 0, -cents);
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        Stripe stripe = stripe(userId);
+        synchronized (stripe) {
+            long[] c = stripe.counters.computeIfAbsent(userId, id -> new long[3]);
+            c[2] = Math.max(0, c[2] - cents);
+        }
+    }
+
+    private static void update(Connection connection, int userId, int open, int overdue, long fine) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "UPDATE USER_LOAN_COUNTERS SET openloans = GREATEST(0, openloans + ?), " +
+                "overdueloans = GREATEST(0, overdueloans + ?), finecents = GREATEST(0, finecents + ?) WHERE userid = ?")) {
+            stmt.setInt(1, open);
+            stmt.setInt(2, overdue);
+            stmt.setLong(3, fine);
+            stmt.setInt(4, userId);
+            if (stmt.executeUpdate() > 0) return;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "INSERT INTO USER_LOAN_COUNTERS(userid, openloans, overdueloans, finecents) VALUES (?, ?, ?, ?)")) {
+            stmt.setInt(1, userId);
+            stmt.setInt(2, Math.max(0, open));
+            stmt.setInt(3, Math.max(0, overdue));
+            stmt.setLong(4, Math.max(0, fine));
+            stmt.executeUpdate();
+        }
+    }
+
+    // Recounts open and overdue loans from BORROWINGS and fixes every user whose
+    // counters drifted. Fines have no other source of truth and are kept as they are.
+    // Returns the number of users corrected.
+    public int reconcile(Connection connection) throws SQLException {
+        // One recount at a time: each tracks the returns made while it counts
+        reconcileLock.lock();
+        try {
+            return recount(connection);
+        } finally {
+            reconcileLock.unlock();
+        }
+    }
+
+    private int recount(Connection connection) throws SQLException {
+        String query = "SELECT userid, COUNT(*) FROM BORROWINGS WHERE returndate IS NULL GROUP BY userid";
+        String overdueQuery = "SELECT id, userid FROM BORROWINGS WHERE returndate IS NULL AND borrowdate < ?";
+
+        Map<Integer, int[]> counted = new HashMap<>();
+        Map<Integer, int[]> actual = new HashMap<>();
+        Map<Integer, Integer> overdue = new HashMap<>();
+        LocalDate cutoff = LocalDate.now().minusDays(rules.loanDays());
+        changeLock.writeLock().lock();
+        boolean writeLocked = true;
+        try {
+            ConnectionLock.lock(connection);
+            try {
+                boolean autoCommit = connection.getAutoCommit();
+                int isolation = connection.getTransactionIsolation();
+                connection.setAutoCommit(false);
+                connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+                try {
+                    // The first read pins the snapshot the recount below sees: no
+                    // loan is half done while the write lock is held
+                    try (Statement stmt = connection.createStatement()) {
+                        stmt.executeQuery("SELECT COUNT(*) FROM BORROWINGS WHERE id = -1").close();
+                    }
+                    for (Stripe stripe : stripes) {
+                        synchronized (stripe) {
+                            for (Map.Entry<Integer, long[]> entry : stripe.counters.entrySet()) {
+                                long[] c = entry.getValue();
+                                if (c[0] != 0 || c[1] != 0) counted.put(entry.getKey(), new int[]{(int) c[0], (int) c[1]});
+                            }
+                        }
+                    }
+                    returnedWhileCounting = ConcurrentHashMap.newKeySet();
+                    changeLock.writeLock().unlock();
+                    writeLocked = false;
+
+                    try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next()) actual.put(rs.getInt(1), new int[]{rs.getInt(2), 0});
+                        }
+                    }
+                    try (PreparedStatement stmt = connection.prepareStatement(overdueQuery)) {
+                        stmt.setDate(1, Date.valueOf(cutoff));
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next()) {
+                                overdue.put(rs.getInt(1), rs.getInt(2));
+                                actual.get(rs.getInt(2))[1]++;
+                            }
+                        }
+                    }
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setTransactionIsolation(isolation);
+                    connection.setAutoCommit(autoCommit);
+                }
+            } finally {
+                ConnectionLock.unlock(connection);
+            }
+        } catch (SQLException e) {
+            returnedWhileCounting = null;
+            throw e;
+        } finally {
+            if (writeLocked) changeLock.writeLock().unlock();
+        }
+
+        Set<Integer> users = new HashSet<>(counted.keySet());
+        users.addAll(actual.keySet());
+        int fixed = 0;
+        changeLock.writeLock().lock();
+        try {
+            // A loan returned meanwhile was counted overdue above, but its return
+            // only lowered the counter if an earlier reconcile had marked it
+            for (int borrowingId : returnedWhileCounting) {
+                Integer userId = overdue.remove(borrowingId);
+                if (userId != null && !markedOverdue.contains(borrowingId)) actual.get(userId)[1]--;
+            }
+            returnedWhileCounting = null;
+            markedOverdue = new HashSet<>(overdue.keySet());
+            ConnectionLock.lock(connection);
+            try {
+                boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "MERGE INTO USER_LOAN_COUNTERS(userid, openloans, overdueloans) KEY(userid) VALUES (?, ?, ?)")) {
+                    for (int userId : users) {
+                        int[] was = counted.getOrDefault(userId, new int[2]);
+                        int[] is = actual.getOrDefault(userId, new int[2]);
+                        if (was[0] == is[0] && was[1] == is[1]) continue;
+                        // Loans made since the snapshot moved both sides alike; only the drift goes
+                        Stripe stripe = stripe(userId);
+                        synchronized (stripe) {
+                            long[] c = stripe.counters.computeIfAbsent(userId, id -> new long[3]);
+                            c[0] = Math.max(0, c[0] - was[0] + is[0]);
+                            c[1] = Math.max(0, c[1] - was[1] + is[1]);
+                            addFix(stmt, userId, (int) c[0], (int) c[1]);
+                        }
+                        fixed++;
+                    }
+                    stmt.executeBatch();
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            } finally {
+                ConnectionLock.unlock(connection);
+            }
+        } finally {
+            changeLock.writeLock().unlock();
+        }
+        if (fixed > 0) System.out.println("Loan counters: corrected " + fixed + " users");
+        return fixed;
+    }
+
+    private static void addFix(PreparedStatement stmt, int userId, int open, int overdue) throws SQLException {
+        stmt.setInt(1, userId);
+        stmt.setInt(2, open);
+        stmt.setInt(3, overdue);
+        stmt.addBatch();
+    }
+
+    // Runs reconcile() every intervalMinutes on a background thread with its own connection
+    public void startReconciler(String url, int intervalMinutes) {
+        reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "loan-counter-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reconciler.scheduleWithFixedDelay(() -> {
+            try (Connection connection = DriverManager.getConnection(url)) {
+                reconcile(connection);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Error while reconciling loan counters");
+            }
+        }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    public void stopReconciler() {
+        if (reconciler != null) reconciler.shutdown();
+    }
+}
@@ -2,11 +2,40 @@ package org.example;
 
 import javax.swing.*;
 import java.sql.*;
+import java.util.Arrays;
 
 public class Main {
 
 
-    public static void main(String[] args) throws SQLException {
-
+    // --server [port]  starts the headless HTTP/JSON service
+    // --load [url clients seconds maxBookId]  runs the load generator against it
+    // --backup [backup | verify <manifest> | restore <manifest> <target>]
+    // --purge [--dry-run] [--restart] [chunk size] [pause ms]
+    // --fines [parallelism]  runs the nightly fines calculation once
+    // --dedup books|publishers [threshold | merge <keep> <id>... | merge-all [threshold]]
+    // --events copies|loans [yyyy-mm-ddThh:mm]  state rebuilt from the circulation log
+    // --kiosk [snapshot directory]  title search on the catalogue snapshot, no database
+    // anything else opens the Swing application
+    public static void main(String[] args) throws Exception {
+        String[] rest = args.length > 0 ? Arrays.copyOfRange(args, 1, args.length) : args;
+        if (args.length > 0 && args[0].equals("--server")) {
+            LibraryServer.main(rest);
+        } else if (args.length > 0 && args[0].equals("--load")) {
+            LoadGenerator.main(rest);
+        } else if (args.length > 0 && args[0].equals("--backup")) {
+            BackupManager.main(rest);
+        } else if (args.length > 0 && args[0].equals("--purge")) {
+            InactiveUserPurge.main(rest);
+        } else if (args.length > 0 && args[0].equals("--fines")) {
+            FinesEngine.main(rest);
+        } else if (args.length > 0 && args[0].equals("--dedup")) {
+            DuplicateFinder.main(rest);
+        } else if (args.length > 0 && args[0].equals("--events")) {
+            CirculationLog.main(rest);
+        } else if (args.length > 0 && args[0].equals("--kiosk")) {
+            CatalogueSnapshot.main(rest);
+        } else {
+            LibraryGUI.main(args);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,300 @@
+package org.example;
+
+import java.sql.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// In-memory prefix index for the type-ahead fields of the forms.
+//
+// The bulk of the entries sit in sorted parallel arrays (lower-cased key, id,
+// label), so a lookup is one binary search plus a short forward scan. Entries
+// added after the load go to a small skip-list that is merged into every
+// lookup and folded into the arrays once it grows past COMPACT_THRESHOLD.
+// One id can be reachable through several keys, e.g. a user's name and email.
+// Adding or removing an id replaces all of its entries: its array entries are
+// ignored from then on, keyed by a per-id change count, until a compaction
+// that saw the latest change drops them.
+public class PrefixIndex {
+    private static final int COMPACT_THRESHOLD = 10_000;
+
+    public static final PrefixIndex USERS = new PrefixIndex("users");
+    public static final PrefixIndex COPIES = new PrefixIndex("copies");
+    public static final PrefixIndex PUBLISHERS = new PrefixIndex("publishers");
+    public static final PrefixIndex BOOKS = new PrefixIndex("books");
+
+    private final String name;
+    private volatile Sorted sorted = new Sorted(new String[0], new int[0], new String[0]);
+    // "key\0id" -> label
+    private final ConcurrentSkipListMap<String, String> added = new ConcurrentSkipListMap<>();
+    // id -> its keys in added; also the lock for changes to added and changed
+    private final Map<Integer, List<String>> addedKeys = new HashMap<>();
+    // Ids added or removed since the arrays were built -> number of changes
+    private final ConcurrentHashMap<Integer, Integer> changed = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    public record Suggestion(int id, String label) {
+    }
+
+    private record Sorted(String[] keys, int[] ids, String[] labels) {
+    }
+
+    private record Entry(String key, int id, String label) {
+    }
+
+    private static final LabelReader USER_LABEL =
+            rs -> rs.getInt("id") + " " + rs.getString("name") + " <" + rs.getString("email") + ">";
+    private static final LabelReader COPY_LABEL =
+            rs -> rs.getInt("id") + " #" + rs.getInt("copynumber") + " " + rs.getString("title");
+    private static final LabelReader BOOK_LABEL =
+            rs -> rs.getInt("id") + " " + rs.getString("title") + " - " + rs.getString("author");
+
+    private PrefixIndex(String name) {
+        this.name = name;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // Loads the indexes on a background thread over its own connection; fields
+    // simply show no suggestions until their index is ready
+    public static void loadAllInBackground(String url) {
+        Thread loader = new Thread(() -> {
+            try (Connection connection = DriverManager.getConnection(url)) {
+                loadAll(connection);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                System.out.println("Autocomplete not available");
+            }
+        }, "autocomplete-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    static void loadAll(Connection connection) throws SQLException {
+        long start = System.nanoTime();
+        USERS.load(connection, "SELECT id, name, email FROM USERS", USER_LABEL, "name", "email");
+        COPIES.load(connection, "SELECT c.id, c.copynumber, b.title FROM COPIES c JOIN BOOKS b ON b.id = c.bookid",
+                COPY_LABEL, "copynumber", "title");
+        PUBLISHERS.load(connection, "SELECT id, name FROM PUBLISHERS",
+                rs -> rs.getInt("id") + " " + rs.getString("name"),
+                "name");
+        BOOKS.load(connection, "SELECT id, title, author, isbn FROM BOOKS", BOOK_LABEL, "title", "isbn");
+        System.out.printf("Autocomplete indexes loaded in %d ms (%d users, %d copies, %d publishers, %d books)%n",
+                (System.nanoTime() - start) / 1_000_000, USERS.size(), COPIES.size(), PUBLISHERS.size(), BOOKS.size());
+    }
+
+    private interface LabelReader {
+        String read(ResultSet rs) throws SQLException;
+    }
+
+    private void load(Connection connection, String query, LabelReader labels, String... keyColumns) throws SQLException {
+        List<Entry> entries = new ArrayList<>();
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.setFetchSize(1000);
+                try (ResultSet rs = stmt.executeQuery(query)) {
+                    while (rs.next()) {
+                        int id = rs.getInt("id");
+                        String label = labels.read(rs);
+                        for (String column : keyColumns) {
+                            String key = rs.getString(column);
+                            if (key != null && !key.isEmpty()) entries.add(new Entry(normalize(key), id, label));
+                        }
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        Entry[] array = entries.toArray(new Entry[0]);
+        Arrays.parallelSort(array, Comparator.comparing(Entry::key));
+        String[] keys = new String[array.length];
+        int[] ids = new int[array.length];
+        String[] labelArray = new String[array.length];
+        for (int i = 0; i < array.length; i++) {
+            keys[i] = array[i].key();
+            ids[i] = array[i].id();
+            labelArray[i] = array[i].label();
+        }
+        synchronized (this) {
+            sorted = new Sorted(keys, ids, labelArray);
+            loaded = true;
+        }
+    }
+
+    // Re-reads a user or book that was edited and adds it again under its
+    // current keys; a book's copies follow, their labels carry its title.
+    // Part of the caller's work on the connection, which it holds.
+    public static void refresh(Connection connection, String table, int id) throws SQLException {
+        if (table.equals("USERS")) {
+            USERS.reload(connection, "SELECT id, name, email FROM USERS WHERE id = ?", id, USER_LABEL, "name", "email");
+        } else if (table.equals("BOOKS")) {
+            BOOKS.reload(connection, "SELECT id, title, author, isbn FROM BOOKS WHERE id = ?", id, BOOK_LABEL, "title", "isbn");
+            COPIES.reload(connection, "SELECT c.id, c.copynumber, b.title FROM COPIES c JOIN BOOKS b ON b.id = c.bookid WHERE b.id = ?",
+                    id, COPY_LABEL, "copynumber", "title");
+        }
+    }
+
+    private void reload(Connection connection, String query, int id, LabelReader labels, String... keyColumns) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+            stmt.setInt(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String[] keys = new String[keyColumns.length];
+                    for (int i = 0; i < keys.length; i++) keys[i] = rs.getString(keyColumns[i]);
+                    add(rs.getInt("id"), labels.read(rs), keys);
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return sorted.keys().length + added.size();
+    }
+
+    // Adds an entity under each of its keys, replacing whatever it was added
+    // or loaded under before
+    public void add(int id, String label, String... keys) {
+        List<String> entries = new ArrayList<>();
+        for (String key : keys) {
+            if (key != null && !key.isEmpty()) entries.add(normalize(key) + '\0' + id);
+        }
+        synchronized (addedKeys) {
+            changed.merge(id, 1, Integer::sum);
+            List<String> previous = addedKeys.put(id, entries);
+            if (previous != null) {
+                for (String entry : previous) added.remove(entry);
+            }
+            for (String entry : entries) added.put(entry, label);
+        }
+        // Adds come from the event thread, so the merge runs elsewhere
+        if (changed.size() > COMPACT_THRESHOLD && compacting.compareAndSet(false, true)) {
+            Thread compactor = new Thread(() -> {
+                try {
+                    compact();
+                } finally {
+                    compacting.set(false);
+                }
+            }, "autocomplete-compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    public void remove(int id) {
+        synchronized (addedKeys) {
+            changed.merge(id, 1, Integer::sum);
+            List<String> previous = addedKeys.remove(id);
+            if (previous != null) {
+                for (String entry : previous) added.remove(entry);
+            }
+        }
+    }
+
+    // Up to limit distinct entities with a key starting with prefix, in key order
+    public List<Suggestion> suggest(String prefix, int limit) {
+        String p = normalize(prefix);
+        Map<Integer, String> found = new LinkedHashMap<>();
+        if (p.isEmpty()) return new ArrayList<>();
+
+        Sorted s = sorted;
+        String[] keys = s.keys();
+        int low = 0, high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(p) < 0) low = mid + 1;
+            else high = mid;
+        }
+        Iterator<Map.Entry<String, String>> recent = added.subMap(p, true, p + '\uffff', true).entrySet().iterator();
+        Map.Entry<String, String> next = recent.hasNext() ? recent.next() : null;
+
+        // Two-way merge of the sorted arrays and the recent additions
+        int i = low;
+        while (found.size() < limit) {
+            boolean fromArray = i < keys.length && keys[i].startsWith(p);
+            if (!fromArray && next == null) break;
+            if (fromArray && (next == null || keys[i].compareTo(next.getKey()) <= 0)) {
+                // An id added or removed since keeps only its recent entries
+                if (!changed.containsKey(s.ids()[i])) found.putIfAbsent(s.ids()[i], s.labels()[i]);
+                i++;
+            } else {
+                String key = next.getKey();
+                int id = Integer.parseInt(key.substring(key.lastIndexOf('\0') + 1));
+                found.putIfAbsent(id, next.getValue());
+                next = recent.hasNext() ? recent.next() : null;
+            }
+        }
+
+        List<Suggestion> suggestions = new ArrayList<>(found.size());
+        for (Map.Entry<Integer, String> entry : found.entrySet()) {
+            suggestions.add(new Suggestion(entry.getKey(), entry.getValue()));
+        }
+        return suggestions;
+    }
+
+    // Folds the recent additions into the sorted arrays and drops the entries
+    // of changed ids. An id changed again meanwhile stays marked, so what was
+    // folded for it keeps being ignored.
+    private synchronized void compact() {
+        if (changed.size() <= COMPACT_THRESHOLD) return;
+        long start = System.nanoTime();
+        Sorted s = sorted;
+        List<Map.Entry<String, String>> recent;
+        Map<Integer, Integer> gone;
+        synchronized (addedKeys) {
+            recent = new ArrayList<>(added.entrySet());
+            gone = new HashMap<>(changed);
+        }
+
+        int capacity = s.keys().length + recent.size();
+        String[] keys = new String[capacity];
+        int[] ids = new int[capacity];
+        String[] labels = new String[capacity];
+        int n = 0, i = 0, j = 0;
+        while (i < s.keys().length || j < recent.size()) {
+            String recentKey = null;
+            int recentId = 0;
+            if (j < recent.size()) {
+                String key = recent.get(j).getKey();
+                int split = key.lastIndexOf('\0');
+                recentKey = key.substring(0, split);
+                recentId = Integer.parseInt(key.substring(split + 1));
+            }
+            if (i < s.keys().length && (recentKey == null || s.keys()[i].compareTo(recentKey) <= 0)) {
+                if (!gone.containsKey(s.ids()[i])) {
+                    keys[n] = s.keys()[i];
+                    ids[n] = s.ids()[i];
+                    labels[n++] = s.labels()[i];
+                }
+                i++;
+            } else {
+                keys[n] = recentKey;
+                ids[n] = recentId;
+                labels[n++] = recent.get(j).getValue();
+                j++;
+            }
+        }
+        synchronized (addedKeys) {
+            sorted = new Sorted(Arrays.copyOf(keys, n), Arrays.copyOf(ids, n), Arrays.copyOf(labels, n));
+            for (Map.Entry<Integer, Integer> entry : gone.entrySet()) {
+                int id = entry.getKey();
+                if (!changed.remove(id, entry.getValue())) continue;
+                List<String> folded = addedKeys.remove(id);
+                if (folded != null) {
+                    for (String key : folded) added.remove(key);
+                }
+            }
+        }
+        System.out.printf("Autocomplete index %s compacted to %d keys in %d ms%n", name, n, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static String normalize(String key) {
+        return key.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,258 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Due-date reminders, kept out of the checkout path.
+//
+// An enqueue cycle picks the open loans falling due within the next few days
+// (an index on BORROWINGS(returndate, borrowdate) makes this a range scan)
+// and inserts one row per loan and due date into REMINDER_OUTBOX in a single
+// statement; the unique key on (borrowingid, duedate) means running the cycle
+// again never queues a reminder twice. A separate delivery loop takes pending
+// rows in batches, hands them to the Sender and marks them sent, or schedules
+// a retry with exponential backoff. Senders get the outbox id with every
+// reminder and can use it to drop duplicates after a crash between sending
+// and marking.
+public class ReminderOutbox {
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long BASE_BACKOFF_SECONDS = 30;
+
+    private final Connection connection;
+    private final Sender sender;
+    private final int batchSize;
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final long startedAt = System.nanoTime();
+
+    public record Reminder(long id, int borrowingId, int userId, String name, String email, String title, LocalDate dueDate) {
+    }
+
+    // Delivery channel. Throwing fails the whole batch, which is retried later.
+    public interface Sender {
+        void send(List<Reminder> batch) throws IOException;
+    }
+
+    // Appends reminders as lines to a daily spool file, for testing and for
+    // a mail gateway that picks the files up
+    public static class SpoolSender implements Sender {
+        private final Path directory;
+
+        public SpoolSender(Path directory) throws IOException {
+            this.directory = Files.createDirectories(directory);
+        }
+
+        @Override
+        public void send(List<Reminder> batch) throws IOException {
+            Path file = directory.resolve("reminders-" + LocalDate.now() + ".spool");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                 Writer writer = java.nio.channels.Channels.newWriter(channel, StandardCharsets.UTF_8)) {
+                for (Reminder reminder : batch) {
+                    writer.write(reminder.id() + "\t" + reminder.email() + "\t" + reminder.name() + "\t" +
+                            reminder.title() + "\tdue " + reminder.dueDate() + "\n");
+                }
+                writer.flush();
+                channel.force(false);
+            }
+        }
+    }
+
+    public ReminderOutbox(Connection connection, Sender sender, int batchSize) throws SQLException {
+        this.connection = connection;
+        this.sender = sender;
+        this.batchSize = batchSize;
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE INDEX IF NOT EXISTS IDX_BORROWINGS_DUE ON BORROWINGS(returndate, borrowdate)");
+                stmt.execute("CREATE TABLE IF NOT EXISTS REMINDER_OUTBOX (" +
+                        "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                        "borrowingid INT NOT NULL, " +
+                        "userid INT NOT NULL, " +
+                        "duedate DATE NOT NULL, " +
+                        "status VARCHAR(16) NOT NULL DEFAULT 'Pending', " +
+                        "attempts INT NOT NULL DEFAULT 0, " +
+                        "nextattempt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                        "createdat TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                        "sentat TIMESTAMP, " +
+                        "UNIQUE (borrowingid, duedate))");
+                stmt.execute("CREATE INDEX IF NOT EXISTS IDX_REMINDER_OUTBOX_PENDING ON REMINDER_OUTBOX(status, nextattempt)");
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+    }
+
+    // Enqueues every hour and delivers every few seconds
+    public void start(int daysAhead) {
+        scheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "reminder-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                enqueueDue(daysAhead);
+                System.out.println(report());
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Error while queueing reminders");
+            }
+        }, 0, 60, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                while (deliverBatch() == batchSize) {
+                    // Keep draining while full batches come back
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("Error while delivering reminders");
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) scheduler.shutdown();
+    }
+
+    // Queues reminders for open loans due between today and daysAhead days
+    // from now. Returns the number of new reminders.
+    public int enqueueDue(int daysAhead) throws SQLException {
+        int loanDays = LoanCounters.loanDays();
+        String insert = "INSERT INTO REMINDER_OUTBOX(borrowingid, userid, duedate)\n" +
+                        "SELECT b.id, b.userid, DATEADD(DAY, ?, b.borrowdate)\n" +
+                        "FROM BORROWINGS b\n" +
+                        "WHERE b.returndate IS NULL\n" +
+                        "AND b.borrowdate BETWEEN DATEADD(DAY, ?, CURRENT_DATE) AND DATEADD(DAY, ?, CURRENT_DATE)\n" +
+                        "AND NOT EXISTS (SELECT 1 FROM REMINDER_OUTBOX o WHERE o.borrowingid = b.id AND o.duedate = DATEADD(DAY, ?, b.borrowdate))";
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement(insert)) {
+                stmt.setInt(1, loanDays);
+                stmt.setInt(2, -loanDays);
+                stmt.setInt(3, daysAhead - loanDays);
+                stmt.setInt(4, loanDays);
+                int queued = stmt.executeUpdate();
+                if (queued > 0) System.out.println("Reminders queued: " + queued);
+                return queued;
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+    }
+
+    // Sends one batch of due reminders. Returns how many were taken.
+    public int deliverBatch() throws SQLException {
+        String query = "SELECT o.id, o.borrowingid, o.userid, o.duedate, u.name, u.email, bk.title\n" +
+                       "FROM REMINDER_OUTBOX o\n" +
+                       "JOIN USERS u ON u.id = o.userid\n" +
+                       "JOIN BORROWINGS b ON b.id = o.borrowingid\n" +
+                       "JOIN COPIES c ON c.id = b.copyid\n" +
+                       "JOIN BOOKS bk ON bk.id = c.bookid\n" +
+                       "WHERE o.status = 'Pending' AND o.nextattempt <= CURRENT_TIMESTAMP\n" +
+                       "ORDER BY o.id\n" +
+                       "LIMIT ?";
+
+        List<Reminder> batch = new ArrayList<>(batchSize);
+        ConnectionLock.lock(connection);
+        try {
+            // Loans returned since they were queued need no reminder any more
+            try (Statement stmt = connection.createStatement()) {
+                stmt.executeUpdate("UPDATE REMINDER_OUTBOX o SET status = 'Obsolete'\n" +
+                        "WHERE o.status = 'Pending' AND o.nextattempt <= CURRENT_TIMESTAMP\n" +
+                        "AND NOT EXISTS (SELECT 1 FROM BORROWINGS b WHERE b.id = o.borrowingid AND b.returndate IS NULL)");
+            }
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                stmt.setInt(1, batchSize);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        batch.add(new Reminder(rs.getLong("id"), rs.getInt("borrowingid"), rs.getInt("userid"),
+                                rs.getString("name"), rs.getString("email"), rs.getString("title"),
+                                rs.getDate("duedate").toLocalDate()));
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        if (batch.isEmpty()) return 0;
+
+        boolean delivered;
+        try {
+            sender.send(batch);
+            delivered = true;
+        } catch (IOException e) {
+            System.out.println("Reminder delivery failed, will retry: " + e.getMessage());
+            failedAttempts.addAndGet(batch.size());
+            delivered = false;
+        }
+
+        String update = delivered
+                ? "UPDATE REMINDER_OUTBOX SET status = 'Sent', attempts = attempts + 1, sentat = CURRENT_TIMESTAMP WHERE id = ?"
+                // 30 s, 1 min, 2 min, ... until MAX_ATTEMPTS, then the row is parked as Failed
+                : "UPDATE REMINDER_OUTBOX SET attempts = attempts + 1, " +
+                  "nextattempt = DATEADD(SECOND, " + BASE_BACKOFF_SECONDS + " * POWER(2, attempts), CURRENT_TIMESTAMP), " +
+                  "status = CASE WHEN attempts + 1 >= " + MAX_ATTEMPTS + " THEN 'Failed' ELSE status END WHERE id = ?";
+        ConnectionLock.lock(connection);
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement stmt = connection.prepareStatement(update)) {
+                for (Reminder reminder : batch) {
+                    stmt.setLong(1, reminder.id());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        if (delivered) sent.addAndGet(batch.size());
+        return batch.size();
+    }
+
+    // Delivery throughput since start and the current backlog
+    public String report() throws SQLException {
+        long pending = 0, failed = 0;
+        long oldestSeconds = 0;
+        ConnectionLock.lock(connection);
+        try {
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery(
+                         "SELECT SUM(CASE WHEN status = 'Pending' THEN 1 ELSE 0 END), " +
+                         "SUM(CASE WHEN status = 'Failed' THEN 1 ELSE 0 END), " +
+                         "MIN(CASE WHEN status = 'Pending' THEN createdat END) FROM REMINDER_OUTBOX")) {
+                if (rs.next()) {
+                    pending = rs.getLong(1);
+                    failed = rs.getLong(2);
+                    Timestamp oldest = rs.getTimestamp(3);
+                    if (oldest != null) oldestSeconds = (System.currentTimeMillis() - oldest.getTime()) / 1000;
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        return String.format("Reminders: %d sent (%.1f/s), %d failed attempts, backlog %d pending (oldest %d s), %d given up",
+                sent.get(), sent.get() / seconds, failedAttempts.get(), pending, oldestSeconds, failed);
+    }
+}
@@ -0,0 +1,269 @@
+package org.example;
+
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Per-book hold queues. Every book has one FIFO deque per priority level, so
+// finding the next holder only looks at a fixed number of deque heads.
+// Cancelled reservations are flagged and skipped lazily when they reach the head.
+public class ReservationQueue {
+    public static final String STATUS_ON_HOLD = "On Hold";
+    public static final int PRIORITY_LEVELS = 3;
+
+    private static final ReservationQueue INSTANCE = new ReservationQueue();
+
+    private final Map<Integer, BookQueue> queues = new ConcurrentHashMap<>();
+    private final Map<Integer, Reservation> waiting = new ConcurrentHashMap<>();
+
+    public static ReservationQueue getInstance() {
+        return INSTANCE;
+    }
+
+    public static class Reservation {
+        final int id;
+        final int userId;
+        final int bookId;
+        final int priority;
+        volatile boolean cancelled;
+
+        Reservation(int id, int userId, int bookId, int priority) {
+            this.id = id;
+            this.userId = userId;
+            this.bookId = bookId;
+            this.priority = priority;
+        }
+    }
+
+    private static class BookQueue {
+        // Held across the transaction that changes the book's queue
+        final ReentrantLock lock = new ReentrantLock();
+        final List<ArrayDeque<Reservation>> levels = new ArrayList<>(PRIORITY_LEVELS);
+
+        BookQueue() {
+            for (int i = 0; i < PRIORITY_LEVELS; i++) levels.add(new ArrayDeque<>());
+        }
+    }
+
+    public static void createTable(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS RESERVATIONS (\n" +
+                    "id INT AUTO_INCREMENT PRIMARY KEY,\n" +
+                    "userid INT NOT NULL REFERENCES USERS(id),\n" +
+                    "bookid INT NOT NULL REFERENCES BOOKS(id),\n" +
+                    "priority INT DEFAULT 0 NOT NULL,\n" +
+                    "reservedat TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL,\n" +
+                    "status VARCHAR(20) DEFAULT 'Waiting' NOT NULL,\n" +
+                    "copyid INT REFERENCES COPIES(id))");
+            stmt.execute("CREATE INDEX IF NOT EXISTS IDX_RESERVATIONS_STATUS ON RESERVATIONS(status, bookid)");
+        }
+    }
+
+    // Rebuilds the in-memory queues from the waiting reservations in the database
+    public void load(Connection connection) throws SQLException {
+        queues.clear();
+        waiting.clear();
+        String query = "SELECT id, userid, bookid, priority FROM RESERVATIONS\n" +
+                       "WHERE status = 'Waiting'\n" +
+                       "ORDER BY reservedat, id";
+        try (PreparedStatement stmt = connection.prepareStatement(query);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                enqueue(new Reservation(rs.getInt("id"), rs.getInt("userid"), rs.getInt("bookid"),
+                        clampPriority(rs.getInt("priority"))));
+            }
+        }
+        System.out.println("Reservations loaded: " + waiting.size());
+    }
+
+    ReentrantLock lockFor(int bookId) {
+        return queues.computeIfAbsent(bookId, id -> new BookQueue()).lock;
+    }
+
+    public int reserve(Connection connection, int userId, int bookId, int priority) throws SQLException {
+        priority = clampPriority(priority);
+        ReentrantLock bookLock = lockFor(bookId);
+        bookLock.lock();
+        try {
+            int id;
+            ConnectionLock.lock(connection);
+            try {
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "INSERT INTO RESERVATIONS(userid, bookid, priority) VALUES (?, ?, ?)",
+                        Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setInt(1, userId);
+                    stmt.setInt(2, bookId);
+                    stmt.setInt(3, priority);
+                    stmt.executeUpdate();
+                    try (ResultSet keys = stmt.getGeneratedKeys()) {
+                        keys.next();
+                        id = keys.getInt(1);
+                    }
+                }
+            } finally {
+                ConnectionLock.unlock(connection);
+            }
+            enqueue(new Reservation(id, userId, bookId, priority));
+            AuditTrail.record("INSERT", "RESERVATIONS", id, "user " + userId + " reserved book " + bookId);
+            return id;
+        } finally {
+            bookLock.unlock();
+        }
+    }
+
+    // Returns false if the reservation was already assigned or cancelled
+    public boolean cancel(Connection connection, int reservationId) throws SQLException {
+        Reservation reservation = waiting.get(reservationId);
+        if (reservation == null) return false;
+        ReentrantLock bookLock = lockFor(reservation.bookId);
+        bookLock.lock();
+        try {
+            if (reservation.cancelled || waiting.get(reservationId) != reservation) return false;
+            ConnectionLock.lock(connection);
+            try {
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "UPDATE RESERVATIONS SET status = 'Cancelled' WHERE id = ? AND status = 'Waiting'")) {
+                    stmt.setInt(1, reservationId);
+                    if (stmt.executeUpdate() == 0) return false;
+                }
+            } finally {
+                ConnectionLock.unlock(connection);
+            }
+            reservation.cancelled = true;
+            waiting.remove(reservationId);
+            return true;
+        } finally {
+            bookLock.unlock();
+        }
+    }
+
+    // Next holder for the book, or null. Caller must hold lockFor(bookId).
+    Reservation peekNext(int bookId) {
+        BookQueue queue = queues.get(bookId);
+        if (queue == null) return null;
+        for (int level = PRIORITY_LEVELS - 1; level >= 0; level--) {
+            ArrayDeque<Reservation> deque = queue.levels.get(level);
+            while (!deque.isEmpty() && deque.peekFirst().cancelled) deque.pollFirst();
+            if (!deque.isEmpty()) return deque.peekFirst();
+        }
+        return null;
+    }
+
+    // Next holder for the book that is not the given user's and not already taken
+    // in the caller's transaction, or null. Caller must hold lockFor(bookId).
+    Reservation peekNextExcept(int bookId, int userId, Set<Reservation> taken) {
+        BookQueue queue = queues.get(bookId);
+        if (queue == null) return null;
+        for (int level = PRIORITY_LEVELS - 1; level >= 0; level--) {
+            for (Reservation reservation : queue.levels.get(level)) {
+                if (!reservation.cancelled && reservation.userId != userId && !taken.contains(reservation)) {
+                    return reservation;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Part of the caller's transaction; the WHERE clause makes sure a reservation
+    // that was cancelled or assigned elsewhere is never assigned twice
+    void markAssigned(Connection connection, Reservation reservation, int copyId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "UPDATE RESERVATIONS SET status = 'Assigned', copyid = ? WHERE id = ? AND status = 'Waiting'")) {
+            stmt.setInt(1, copyId);
+            stmt.setInt(2, reservation.id);
+            if (stmt.executeUpdate() == 0) {
+                throw new SQLException("Reservation " + reservation.id + " is no longer waiting");
+            }
+        }
+    }
+
+    // Part of the caller's transaction: hands a copy on hold to the holder of its
+    // assigned reservation. Returns false if the copy is not on hold for this user.
+    boolean pickUp(Connection connection, int userId, int copyId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "UPDATE RESERVATIONS SET status = 'Fulfilled' WHERE copyid = ? AND userid = ? AND status = 'Assigned'")) {
+            stmt.setInt(1, copyId);
+            stmt.setInt(2, userId);
+            if (stmt.executeUpdate() == 0) return false;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "UPDATE COPIES SET status = 'not Available' WHERE id = ? AND status = '" + STATUS_ON_HOLD + "'")) {
+            stmt.setInt(1, copyId);
+            if (stmt.executeUpdate() == 0) throw new SQLException("Copy " + copyId + " is not on hold");
+        }
+        return true;
+    }
+
+    // Waiting and assigned reservations of a user as [reservation id, title, status]
+    public static List<List<Object>> reservationsOf(Connection connection, int userId) throws SQLException {
+        String query = "SELECT r.id, b.title, r.status FROM RESERVATIONS r\n" +
+                       "JOIN BOOKS b ON b.id = r.bookid\n" +
+                       "WHERE r.userid = ? AND r.status IN ('Waiting', 'Assigned')\n" +
+                       "ORDER BY r.reservedat, r.id";
+        List<List<Object>> rows = new ArrayList<>();
+        ConnectionLock.lock(connection);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                stmt.setInt(1, userId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        List<Object> row = new ArrayList<>();
+                        row.add(rs.getInt("id"));
+                        row.add(rs.getString("title"));
+                        row.add("Assigned".equals(rs.getString("status")) ? "Ready for pickup" : "Waiting");
+                        rows.add(row);
+                    }
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        return rows;
+    }
+
+    // Caller must hold lockFor(bookId)
+    void removeHead(int bookId, Reservation reservation) {
+        queues.get(bookId).levels.get(reservation.priority).pollFirst();
+        waiting.remove(reservation.id);
+    }
+
+    // Caller must hold lockFor(bookId); for a reservation that need not be at the head
+    void remove(int bookId, Reservation reservation) {
+        queues.get(bookId).levels.get(reservation.priority).remove(reservation);
+        waiting.remove(reservation.id);
+    }
+
+    // Drops the waiting reservations of a deleted user; they are skipped lazily
+    // when they reach the head, like cancelled ones
+    void forgetUser(int userId) {
+        for (Reservation reservation : waiting.values()) {
+            if (reservation.userId != userId) continue;
+            reservation.cancelled = true;
+            waiting.remove(reservation.id);
+        }
+    }
+
+    public int waitingCount() {
+        return waiting.size();
+    }
+
+    private void enqueue(Reservation reservation) {
+        BookQueue queue = queues.computeIfAbsent(reservation.bookId, id -> new BookQueue());
+        queue.lock.lock();
+        try {
+            queue.levels.get(reservation.priority).addLast(reservation);
+        } finally {
+            queue.lock.unlock();
+        }
+        waiting.put(reservation.id, reservation);
+    }
+
+    private static int clampPriority(int priority) {
+        return Math.max(0, Math.min(PRIORITY_LEVELS - 1, priority));
+    }
+}
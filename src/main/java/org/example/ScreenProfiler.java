@@ -0,0 +1,190 @@
+package org.example;
+
+import jdk.jfr.*;
+
+import javax.swing.*;
+import java.awt.Graphics;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+// JDK Flight Recorder events for the phases of loading a screen: SQL query,
+// ResultSet fetch, table model build, frame construction, first paint and
+// screen ready, which lasts until the last table of the screen is filled.
+// Each event carries the screen it belongs to, a row count and the bytes the
+// thread allocated during the phase. Events cost next to nothing unless a
+// recording is running; start one with -Dlibrary.jfr=<file.jfr>.
+public class ScreenProfiler {
+    private static final ThreadLocal<String> currentScreen = ThreadLocal.withInitial(() -> "unknown");
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Category({"Library", "Screen"})
+    @StackTrace(false)
+    abstract static class PhaseEvent extends Event {
+        @Label("Screen")
+        String screen;
+
+        @Label("Rows")
+        int rows;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("library.Query")
+    @Label("SQL Query")
+    static class QueryEvent extends PhaseEvent {
+        @Label("SQL")
+        String sql;
+    }
+
+    @Name("library.Fetch")
+    @Label("ResultSet Fetch")
+    static class FetchEvent extends PhaseEvent {
+    }
+
+    @Name("library.ModelBuild")
+    @Label("Table Model Build")
+    static class ModelBuildEvent extends PhaseEvent {
+    }
+
+    @Name("library.FrameConstruction")
+    @Label("Frame Construction")
+    static class FrameEvent extends PhaseEvent {
+    }
+
+    @Name("library.FirstPaint")
+    @Label("First Paint")
+    static class FirstPaintEvent extends PhaseEvent {
+    }
+
+    @Name("library.ScreenReady")
+    @Label("Screen Ready")
+    static class ScreenReadyEvent extends PhaseEvent {
+    }
+
+    @Name("library.TablePaint")
+    @Label("Table Paint")
+    static class TablePaintEvent extends PhaseEvent {
+        @Label("Table")
+        String table;
+
+        @Label("Scrolling")
+        boolean scrolling;
+    }
+
+    // One running phase; end() commits the event. A phase ended on another
+    // thread than it started on reports no allocation.
+    public static class Phase {
+        private final PhaseEvent event;
+        private final Thread owner = Thread.currentThread();
+        private final long allocatedAtStart;
+
+        private Phase(PhaseEvent event) {
+            this.event = event;
+            this.allocatedAtStart = event.isEnabled() ? threads.getCurrentThreadAllocatedBytes() : 0;
+            event.screen = currentScreen.get();
+            event.begin();
+        }
+
+        public void end(int rows) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.rows = rows;
+                if (Thread.currentThread() == owner) {
+                    event.allocated = threads.getCurrentThreadAllocatedBytes() - allocatedAtStart;
+                }
+                event.commit();
+            }
+        }
+
+        public void end() {
+            end(0);
+        }
+    }
+
+    // Starts the frame construction phase and makes the screen current for the
+    // query, fetch and model phases that follow on this thread
+    public static Phase frame(String screen) {
+        currentScreen.set(screen);
+        return new Phase(new FrameEvent());
+    }
+
+    // From the start of the frame until the screen's data is in; usually ended
+    // on the event thread after the loaders are done
+    public static Phase screenReady() {
+        return new Phase(new ScreenReadyEvent());
+    }
+
+    // Runs the task under the current screen on whatever thread picks it up,
+    // so the phases of background loaders are not reported as "unknown"
+    public static Runnable onScreen(Runnable task) {
+        String screen = currentScreen.get();
+        return () -> {
+            currentScreen.set(screen);
+            try {
+                task.run();
+            } finally {
+                currentScreen.remove();
+            }
+        };
+    }
+
+    public static Phase query(String sql) {
+        QueryEvent event = new QueryEvent();
+        event.sql = sql;
+        return new Phase(event);
+    }
+
+    public static Phase fetch() {
+        return new Phase(new FetchEvent());
+    }
+
+    public static Phase modelBuild() {
+        return new Phase(new ModelBuildEvent());
+    }
+
+    // One paint of a table's visible rows; rows is the number painted
+    public static Phase tablePaint(String table, boolean scrolling) {
+        TablePaintEvent event = new TablePaintEvent();
+        event.table = table;
+        event.scrolling = scrolling;
+        return new Phase(event);
+    }
+
+    // Ends a FirstPaint event the first time the frame's content is painted
+    public static void trackFirstPaint(JFrame frame) {
+        Phase phase = new Phase(new FirstPaintEvent());
+        JComponent probe = new JComponent() {
+            private boolean painted;
+
+            @Override
+            protected void paintComponent(Graphics g) {
+                if (!painted) {
+                    painted = true;
+                    phase.end();
+                    SwingUtilities.invokeLater(() -> setVisible(false));
+                }
+            }
+        };
+        probe.setOpaque(false);
+        frame.setGlassPane(probe);
+        probe.setVisible(true);
+    }
+
+    // Records this session to the given file using the "profile" settings,
+    // which include allocation sampling, plus the library events
+    public static void startRecording(Path file) throws IOException, ParseException {
+        Recording recording = new Recording(Configuration.getConfiguration("profile"));
+        recording.enable("library.*");
+        recording.setName("library-session");
+        recording.setToDisk(true);
+        recording.setDestination(file);
+        recording.setDumpOnExit(true);
+        recording.start();
+        System.out.println("Recording JFR to " + file);
+    }
+}
@@ -0,0 +1,123 @@
+package org.example;
+
+import java.sql.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Pre-insert duplicate checks for USERS.EMAIL and BOOKS.ISBN. A negative Bloom
+// filter answer means the key is certainly new and the insert can go ahead
+// without a lookup; a positive answer is confirmed with one indexed query, so
+// duplicates are rejected before a write is attempted.
+public class UniqueKeyIndex {
+    private static final double TARGET_FALSE_POSITIVE_RATE = 0.01;
+
+    private static UniqueKeyIndex instance;
+
+    private final Column emails;
+    private final Column isbns;
+
+    private static class Column {
+        final String name;
+        final String existsQuery;
+        final BloomFilter filter;
+        final AtomicLong checks = new AtomicLong();
+        final AtomicLong positives = new AtomicLong();
+        final AtomicLong falsePositives = new AtomicLong();
+
+        Column(String name, String existsQuery, BloomFilter filter) {
+            this.name = name;
+            this.existsQuery = existsQuery;
+            this.filter = filter;
+        }
+
+        boolean exists(Connection connection, String key) throws SQLException {
+            checks.incrementAndGet();
+            if (key == null || !filter.mightContain(key)) return false;
+            positives.incrementAndGet();
+            try (PreparedStatement stmt = connection.prepareStatement(existsQuery)) {
+                stmt.setString(1, key);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) return true;
+                }
+            }
+            falsePositives.incrementAndGet();
+            return false;
+        }
+
+        // Share of the checked keys that were not in the table but still got a
+        // "maybe" from the filter, comparable to the expected rate
+        double observedFalsePositiveRate() {
+            long falsePositive = falsePositives.get();
+            long negatives = checks.get() - (positives.get() - falsePositive);
+            return negatives == 0 ? 0.0 : (double) falsePositive / negatives;
+        }
+
+        String report() {
+            return String.format("%s: %d keys, %d KB, expected fp rate %.4f, observed %.4f (%d false of %d positives, %d checks)",
+                    name, filter.insertions(), filter.sizeInBytes() / 1024, filter.expectedFalsePositiveRate(),
+                    observedFalsePositiveRate(), falsePositives.get(), positives.get(), checks.get());
+        }
+    }
+
+    private UniqueKeyIndex(Column emails, Column isbns) {
+        this.emails = emails;
+        this.isbns = isbns;
+    }
+
+    public static UniqueKeyIndex getInstance() {
+        return instance;
+    }
+
+    // Builds both filters with one streaming pass over each column
+    public static UniqueKeyIndex load(Connection connection) throws SQLException {
+        Column emails = new Column("USERS.EMAIL", "SELECT 1 FROM USERS WHERE email = ?",
+                scan(connection, "USERS", "email"));
+        Column isbns = new Column("BOOKS.ISBN", "SELECT 1 FROM BOOKS WHERE isbn = ?",
+                scan(connection, "BOOKS", "isbn"));
+        instance = new UniqueKeyIndex(emails, isbns);
+        System.out.println(emails.report());
+        System.out.println(isbns.report());
+        return instance;
+    }
+
+    private static BloomFilter scan(Connection connection, String table, String column) throws SQLException {
+        long rows;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            rs.next();
+            rows = rs.getLong(1);
+        }
+        // Room to double before the false-positive rate degrades
+        BloomFilter filter = new BloomFilter(Math.max(10_000, rows * 2), TARGET_FALSE_POSITIVE_RATE);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.setFetchSize(1000);
+            try (ResultSet rs = stmt.executeQuery("SELECT " + column + " FROM " + table + " WHERE " + column + " IS NOT NULL")) {
+                while (rs.next()) filter.add(rs.getString(1));
+            }
+        }
+        return filter;
+    }
+
+    public boolean emailExists(Connection connection, String email) throws SQLException {
+        return emails.exists(connection, email);
+    }
+
+    public boolean isbnExists(Connection connection, String isbn) throws SQLException {
+        return isbns.exists(connection, isbn);
+    }
+
+    public void emailAdded(String email) {
+        if (email != null) emails.filter.add(email);
+    }
+
+    public void isbnAdded(String isbn) {
+        if (isbn != null) isbns.filter.add(isbn);
+    }
+
+    double observedIsbnFalsePositiveRate() {
+        return isbns.observedFalsePositiveRate();
+    }
+
+    public String report() {
+        return emails.report() + "\n" + isbns.report();
+    }
+}
@@ -0,0 +1,181 @@
+package org.example;
+
+import java.sql.*;
+import java.util.*;
+import java.util.List;
+
+// Collects cell edits from the admin tables and writes them in JDBC batches
+// when the admin saves a table. Edits to the same row are coalesced into one
+// UPDATE. Every row carries the VERSION it was read with; the UPDATE only
+// matches that version and bumps it, so a row changed by someone else in the
+// meantime is reported as a conflict instead of being overwritten. Every other
+// writer of these tables bumps VERSION too.
+// BORROWINGS is not editable here, and there is no other way to edit a loan:
+// loans change only through Circulation (borrow, return, past loans), which
+// keeps copies, counters, fines and the circulation log in step. Correcting
+// the dates of a recorded loan would need the same overlap and fine checks
+// and is not supported.
+public class WriteBehindBuffer {
+    public static final String[] TABLES = {"USERS", "BOOKS"};
+
+    private final Connection connection;
+    private final Map<String, Map<Integer, Integer>> versions = new HashMap<>();
+    private final Map<String, LinkedHashMap<Integer, PendingRow>> pending = new HashMap<>();
+
+    private static class PendingRow {
+        int expectedVersion;
+        final Map<String, Object> values = new LinkedHashMap<>();
+
+        PendingRow(int expectedVersion) {
+            this.expectedVersion = expectedVersion;
+        }
+    }
+
+    public record FlushResult(int updated, List<String> conflicts) {
+    }
+
+    public WriteBehindBuffer(Connection connection) {
+        this.connection = connection;
+        for (String table : TABLES) {
+            versions.put(table, new HashMap<>());
+            pending.put(table, new LinkedHashMap<>());
+        }
+    }
+
+    public static void addVersionColumns(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            for (String table : TABLES) {
+                stmt.execute("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS version INT DEFAULT 0 NOT NULL");
+            }
+        }
+    }
+
+    // Version of the row as shown in the table, recorded when the table is populated
+    public synchronized void rememberVersion(String table, int id, int version) {
+        versions.get(table).put(id, version);
+    }
+
+    public synchronized void edit(String table, int id, String column, Object value) {
+        if (!pending.containsKey(table)) throw new IllegalArgumentException(table + " is not editable");
+        if (value instanceof String text && text.isEmpty()) value = null;
+        int version = versions.get(table).getOrDefault(id, 0);
+        pending.get(table).computeIfAbsent(id, k -> new PendingRow(version)).values.put(column, value);
+    }
+
+    public synchronized int pendingCount() {
+        int count = 0;
+        for (Map<Integer, PendingRow> rows : pending.values()) count += rows.size();
+        return count;
+    }
+
+    public FlushResult flush(String table) {
+        Map<Integer, PendingRow> rows;
+        synchronized (this) {
+            rows = new LinkedHashMap<>(pending.get(table));
+            pending.get(table).clear();
+        }
+        if (rows.isEmpty()) return new FlushResult(0, List.of());
+
+        // One batch per distinct set of edited columns
+        Map<List<String>, List<Integer>> groups = new LinkedHashMap<>();
+        for (Map.Entry<Integer, PendingRow> row : rows.entrySet()) {
+            groups.computeIfAbsent(new ArrayList<>(row.getValue().values.keySet()), k -> new ArrayList<>()).add(row.getKey());
+        }
+
+        int updated = 0;
+        List<String> conflicts = new ArrayList<>();
+        ConnectionLock.lock(connection);
+        try {
+            for (Map.Entry<List<String>, List<Integer>> group : groups.entrySet()) {
+                List<String> columns = group.getKey();
+                String sql = "UPDATE " + table + " SET " + String.join(" = ?, ", columns) +
+                             " = ?, version = version + 1 WHERE id = ? AND version = ?";
+                try {
+                    updated += executeGroup(table, sql, columns, group.getValue(), rows, conflicts);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    for (int id : group.getValue()) conflicts.add(table + " row " + id + " not saved: " + e.getMessage());
+                }
+            }
+        } finally {
+            ConnectionLock.unlock(connection);
+        }
+        if (updated > 0) System.out.println(table + ": " + updated + " edited rows saved");
+        return new FlushResult(updated, conflicts);
+    }
+
+    private int executeGroup(String table, String sql, List<String> columns, List<Integer> ids,
+                             Map<Integer, PendingRow> rows, List<String> conflicts) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (int id : ids) {
+                bind(stmt, columns, id, rows.get(id));
+                stmt.addBatch();
+            }
+            int[] counts;
+            try {
+                counts = stmt.executeBatch();
+                connection.commit();
+            } catch (BatchUpdateException e) {
+                // A bad value (e.g. a duplicate email) - isolate it by retrying row by row
+                connection.rollback();
+                counts = new int[ids.size()];
+                for (int i = 0; i < ids.size(); i++) {
+                    try (PreparedStatement single = connection.prepareStatement(sql)) {
+                        bind(single, columns, ids.get(i), rows.get(ids.get(i)));
+                        counts[i] = single.executeUpdate();
+                        connection.commit();
+                    } catch (SQLException rowError) {
+                        connection.rollback();
+                        counts[i] = -1;
+                        conflicts.add(table + " row " + ids.get(i) + " not saved: " + rowError.getMessage());
+                    }
+                }
+            }
+
+            int updated = 0;
+            for (int i = 0; i < ids.size(); i++) {
+                int id = ids.get(i);
+                PendingRow row = rows.get(id);
+                if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                    updated++;
+                    synchronized (this) {
+                        versions.get(table).put(id, row.expectedVersion + 1);
+                        // Edited again while this flush was running
+                        PendingRow next = pending.get(table).get(id);
+                        if (next != null && next.expectedVersion == row.expectedVersion) next.expectedVersion++;
+                    }
+                    afterUpdate(connection, table, id, row);
+                } else if (counts[i] == 0) {
+                    conflicts.add(table + " row " + id + " was changed by someone else, reload to edit it again");
+                }
+            }
+            return updated;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static void bind(PreparedStatement stmt, List<String> columns, int id, PendingRow row) throws SQLException {
+        int index = 1;
+        for (String column : columns) stmt.setObject(index++, row.values.get(column));
+        stmt.setInt(index++, id);
+        stmt.setInt(index, row.expectedVersion);
+    }
+
+    private static void afterUpdate(Connection connection, String table, int id, PendingRow row) {
+        AuditTrail.record("UPDATE", table, id, row.values.toString());
+        // The type-ahead fields suggest the row under its edited name, email or title
+        try {
+            PrefixIndex.refresh(connection, table, id);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Error while updating the autocomplete index");
+        }
+        UniqueKeyIndex keys = UniqueKeyIndex.getInstance();
+        if (keys == null) return;
+        if (table.equals("USERS") && row.values.get("email") != null) keys.emailAdded(row.values.get("email").toString());
+        if (table.equals("BOOKS") && row.values.get("isbn") != null) keys.isbnAdded(row.values.get("isbn").toString());
+    }
+}
@@ -0,0 +1,106 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class AuditTrailTest {
+    private String url;
+    private Connection connection;
+    private final List<AuditTrail.AuditEvent> written = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws SQLException {
+        url = "jdbc:h2:mem:audit" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 10, 5, 10);
+        connection = DriverManager.getConnection(url);
+        ReservationQueue.getInstance().load(connection);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        AuditTrail trail = AuditTrail.getInstance();
+        if (trail != null) trail.close();
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void everyRunGetsItsOwnKeys() throws Exception {
+        // A log from before the key columns existed
+        execute("CREATE TABLE AUDIT_LOG (sequence BIGINT, eventtime TIMESTAMP NOT NULL, actor VARCHAR(255), " +
+                "action VARCHAR(32) NOT NULL, tablename VARCHAR(64), rowid BIGINT, detail VARCHAR(1000))");
+        execute("INSERT INTO AUDIT_LOG(sequence, eventtime, action) VALUES (0, CURRENT_TIMESTAMP, 'INSERT')");
+
+        for (int run = 0; run < 2; run++) {
+            AuditTrail trail = AuditTrail.start(64, AuditTrail.FullPolicy.BLOCK, new AuditTrail.TableSink(url));
+            for (int i = 0; i < 3; i++) AuditTrail.record("UPDATE", "USERS", i, null);
+            trail.close();
+            Thread.sleep(5);
+        }
+
+        assertEquals(7, count("SELECT COUNT(DISTINCT id) FROM AUDIT_LOG"));
+        assertEquals(2, count("SELECT COUNT(DISTINCT runid) FROM AUDIT_LOG"));
+        // Sequences restart with each run, the key does not
+        assertEquals(3, count("SELECT COUNT(*) FROM AUDIT_LOG WHERE sequence = 0"));
+    }
+
+    @Test
+    public void archiveDeletesAndNightlyFinesAreAudited() throws Exception {
+        AuditTrail.start(1024, AuditTrail.FullPolicy.BLOCK, new AuditTrail.Sink() {
+            public void write(List<AuditTrail.AuditEvent> batch) {
+                written.addAll(batch);
+            }
+
+            public void close() {
+            }
+        });
+        execute("INSERT INTO BORROWINGS(userid, copyid, borrowdate, returndate) " +
+                "VALUES (2, 1, DATEADD(DAY, -800, CURRENT_DATE), DATEADD(DAY, -790, CURRENT_DATE))");
+        int overdue = Circulation.borrowCopy(connection, 3, 2, LocalDate.now().minusDays(LoanCounters.loanDays() + 30));
+
+        Path directory = Files.createTempDirectory("audit-archive");
+        try {
+            assertEquals(1, BorrowingArchive.open(directory).archive(connection, 365));
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(file);
+            }
+        }
+        FinesEngine engine = new FinesEngine(url, FinesEngine.configuredRules(), 1);
+        engine.run();
+        engine.close();
+        AuditTrail.getInstance().close();
+
+        assertTrue(written.stream().anyMatch(e -> e.action().equals("DELETE") && e.table().equals("BORROWINGS")
+                && e.detail().startsWith("archived to")));
+        assertTrue(written.stream().anyMatch(e -> e.action().equals("MERGE") && e.table().equals("LOAN_FINES")
+                && e.rowId() == overdue));
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private int count(String query) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
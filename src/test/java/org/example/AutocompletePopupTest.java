@@ -0,0 +1,27 @@
+package org.example;
+
+import org.junit.Test;
+
+import javax.swing.*;
+
+import static org.junit.Assert.*;
+
+public class AutocompletePopupTest {
+
+    @Test
+    public void onlyAChosenSuggestionResolvesToAnId() {
+        JTextField field = new JTextField();
+        AutocompletePopup popup = AutocompletePopup.attach(field, PrefixIndex.USERS);
+
+        field.setText("7");
+        assertNull(AutocompletePopup.selectedId(field));
+
+        popup.choose(new PrefixIndex.Suggestion(7, "7 Ann <ann@example.org>"));
+        assertEquals("7 Ann <ann@example.org>", field.getText());
+        assertEquals(Integer.valueOf(7), AutocompletePopup.selectedId(field));
+
+        // Editing the chosen text means it no longer names that suggestion
+        field.setText("7 Ann");
+        assertNull(AutocompletePopup.selectedId(field));
+    }
+}
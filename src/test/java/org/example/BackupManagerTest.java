@@ -0,0 +1,110 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class BackupManagerTest {
+    private Path root;
+    private String url;
+    private Connection connection;
+    private BackupManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("backup-test");
+        url = "jdbc:h2:" + root.resolve("library").toAbsolutePath();
+        TestSchema.create(url, 2000, 500, 1000);
+        // Stays open during the backups, like the desk's connection
+        connection = DriverManager.getConnection(url);
+        manager = new BackupManager(url, root.resolve("backups"), 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(file);
+        }
+    }
+
+    @Test
+    public void restoresAnIncrementalBackupOfALiveDatabase() throws Exception {
+        BackupManager.BackupReport first = manager.backup();
+        assertTrue(first.full());
+        execute("UPDATE USERS SET name = 'changed' WHERE id = 7");
+        BackupManager.BackupReport second = manager.backup();
+        assertFalse(second.full());
+        assertTrue(second.changedBlocks() < second.totalBlocks());
+        assertEquals("45000", retentionTime());
+
+        Path restored = root.resolve("restored.mv.db");
+        manager.restore(root.resolve("backups").resolve(second.manifest()), restored);
+        String restoredUrl = "jdbc:h2:" + root.resolve("restored").toAbsolutePath();
+        try (Connection copy = DriverManager.getConnection(restoredUrl);
+             Statement stmt = copy.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*), MAX(CASE WHEN id = 7 THEN name END) FROM USERS")) {
+            rs.next();
+            assertEquals(2000, rs.getInt(1));
+            assertEquals("changed", rs.getString(2));
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void verifyFindsADamagedBlock() throws Exception {
+        BackupManager.BackupReport report = manager.backup();
+        Path manifest = root.resolve("backups").resolve(report.manifest());
+        assertTrue(manager.verify(manifest).isEmpty());
+
+        Path blocks = root.resolve("backups").resolve(report.manifest().replace(".manifest", ".blk"));
+        try (RandomAccessFile file = new RandomAccessFile(blocks.toFile(), "rw")) {
+            file.seek(10);
+            file.write(~file.read());
+        }
+        assertFalse(manager.verify(manifest).isEmpty());
+    }
+
+    @Test
+    public void pruneKeepsTheBlocksRemainingManifestsNeed() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            execute("UPDATE USERS SET name = 'run " + i + "' WHERE id = 1");
+            manager.backup();
+            Thread.sleep(2);
+        }
+        List<Path> manifests = manager.manifests();
+        assertEquals(3, manifests.size());
+
+        manager.prune(2);
+        assertEquals(manifests.subList(1, 3), manager.manifests());
+        // The incrementals still point into the full backup's block file
+        for (Path manifest : manager.manifests()) assertTrue(manager.verify(manifest).isEmpty());
+        assertTrue(Files.exists(Path.of(manifests.get(0).toString().replace(".manifest", ".blk"))));
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private String retentionTime() throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT SETTING_VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE SETTING_NAME = 'RETENTION_TIME'")) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+}
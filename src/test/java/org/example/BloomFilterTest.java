@@ -0,0 +1,46 @@
+package org.example;
+
+import org.junit.Test;
+
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+
+    @Test
+    public void staysNearTheConfiguredFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(20_000, 0.01);
+        for (int i = 0; i < 20_000; i++) filter.add("isbn" + i);
+
+        for (int i = 0; i < 20_000; i++) assertTrue("lost key " + i, filter.mightContain("isbn" + i));
+        int falsePositives = 0;
+        int probes = 200_000;
+        for (int i = 0; i < probes; i++) {
+            if (filter.mightContain("missing" + i)) falsePositives++;
+        }
+        double observed = (double) falsePositives / probes;
+        assertTrue("observed " + observed, observed < 0.02);
+        assertEquals(0.01, filter.expectedFalsePositiveRate(), 0.005);
+    }
+
+    @Test
+    public void observedRateCountsOnlyKeysThatAreNotInTheTable() throws SQLException {
+        String url = "jdbc:h2:mem:bloom" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 2, 100, 1);
+        try (Connection connection = DriverManager.getConnection(url)) {
+            UniqueKeyIndex index = UniqueKeyIndex.load(connection);
+            // Hits on existing keys must not dilute the rate
+            for (int i = 1; i <= 100; i++) assertTrue(index.isbnExists(connection, "isbn" + i));
+            assertEquals(0.0, index.observedIsbnFalsePositiveRate(), 0.0);
+
+            for (int i = 0; i < 5_000; i++) assertFalse(index.isbnExists(connection, "new" + i));
+            double withHits = index.observedIsbnFalsePositiveRate();
+            assertTrue("observed " + withHits, withHits < 0.02);
+
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("SHUTDOWN");
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class BorrowingArchiveTest {
+    private static final int USERS = 600;
+
+    private Connection connection;
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        String url = "jdbc:h2:mem:archive" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, USERS, 5, 5);
+        connection = DriverManager.getConnection(url);
+        directory = Files.createTempDirectory("archive-test");
+        // Every even user gets (id % 7) + 1 closed loans from two years ago
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("INSERT INTO BORROWINGS(userid, copyid, borrowdate, returndate)\n" +
+                    "SELECT u.X, MOD(u.X, 5) + 1, DATEADD(DAY, -800 + n.X, CURRENT_DATE), DATEADD(DAY, -750 + n.X, CURRENT_DATE)\n" +
+                    "FROM SYSTEM_RANGE(2, " + USERS + ", 2) u JOIN SYSTEM_RANGE(1, 7) n ON n.X <= MOD(u.X, 7) + 1");
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(file);
+        }
+    }
+
+    @Test
+    public void readsEveryUserBackAcrossBlocks() throws Exception {
+        BorrowingArchive archive = BorrowingArchive.open(directory);
+        int archived = archive.archive(connection, 365);
+        // Enough rows for several 256-record blocks, so users straddle block boundaries
+        assertTrue(archived > 1000);
+        assertEquals(0, count("SELECT COUNT(*) FROM BORROWINGS"));
+
+        for (int userId = 1; userId <= USERS; userId++) {
+            int expected = userId % 2 == 0 ? userId % 7 + 1 : 0;
+            List<BorrowingArchive.ArchivedBorrowing> rows = archive.archived(userId);
+            assertEquals("loans of user " + userId, expected, rows.size());
+            for (BorrowingArchive.ArchivedBorrowing row : rows) assertEquals(userId, row.userId());
+            assertEquals(expected > 0, archive.hasHistory(userId));
+        }
+    }
+
+    @Test
+    public void segmentsWrittenElsewhereAreFound() throws Exception {
+        BorrowingArchive reader = BorrowingArchive.open(directory);
+        assertFalse(reader.hasHistory(2));
+        BorrowingArchive.open(directory).archive(connection, 365);
+        assertTrue(reader.hasHistory(2));
+    }
+
+    @Test
+    public void usersWithArchivedLoansAreNotDeleted() throws Exception {
+        BorrowingArchive archive = BorrowingArchive.open(directory);
+        archive.archive(connection, 365);
+
+        assertFalse(Circulation.deleteUser(connection, 4, archive));
+        assertEquals(1, count("SELECT COUNT(*) FROM USERS WHERE id = 4"));
+        assertTrue(Circulation.deleteUser(connection, 5, archive));
+        assertEquals(0, count("SELECT COUNT(*) FROM USERS WHERE id = 5"));
+    }
+
+    private int count(String query) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
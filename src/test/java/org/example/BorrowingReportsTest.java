@@ -0,0 +1,84 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BorrowingReportsTest {
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        String url = "jdbc:h2:mem:reports" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 10, 3, 6);
+        connection = DriverManager.getConnection(url);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void rangeFollowsBorrowingsIncludingDeletes() throws SQLException {
+        BorrowingReports.install(connection);
+        LocalDate today = LocalDate.now();
+        int old = Circulation.recordPastLoan(connection, 2, 1, today.minusDays(40), today.minusDays(30));
+        int recent = Circulation.recordPastLoan(connection, 3, 2, today.minusDays(5), today.minusDays(1));
+        int open = Circulation.borrowCopy(connection, 4, 3);
+
+        assertEquals(List.of(old, recent, open), range(today.minusDays(60), today));
+        assertEquals(List.of(recent, open), range(today.minusDays(5), today));
+
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("DELETE FROM BORROWINGS WHERE id = " + recent);
+        }
+        assertEquals(List.of(open), range(today.minusDays(5), today));
+    }
+
+    @Test
+    public void installLeavesOtherTablesAlone() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE BORROWINGS_P202401 (id INT PRIMARY KEY)");
+        }
+        BorrowingReports.install(connection);
+        BorrowingReports.install(connection);
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'BORROWINGS_P202401'")) {
+            rs.next();
+            assertEquals(1, rs.getInt(1));
+        }
+    }
+
+    @Test
+    public void pastLoansMayNotOverlapOnTheSameCopy() throws SQLException {
+        LocalDate today = LocalDate.now();
+        Circulation.recordPastLoan(connection, 2, 1, today.minusDays(20), today.minusDays(10));
+        try {
+            Circulation.recordPastLoan(connection, 3, 1, today.minusDays(12), today.minusDays(2));
+            fail("overlapping loan of the same copy was recorded");
+        } catch (SQLException expected) {
+        }
+        Circulation.recordPastLoan(connection, 3, 1, today.minusDays(9), today.minusDays(2));
+        // The copy was never taken off the shelf by the history entries
+        assertTrue(Circulation.borrowCopy(connection, 4, 1, today.minusDays(1)) > 0);
+        assertTrue(CirculationStress.checkInvariants(connection).isEmpty());
+    }
+
+    private List<Integer> range(LocalDate from, LocalDate to) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        try (PreparedStatement stmt = BorrowingReports.prepareRange(connection, from, to); ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) ids.add(rs.getInt("id"));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,96 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BranchRouterTest {
+
+    @After
+    public void tearDown() {
+        BranchRouter.closeConnections();
+        System.clearProperty("library.branches");
+        System.clearProperty("library.branch");
+    }
+
+    @Test
+    public void defaultsToTheSingleMainBranch() {
+        assertEquals("main", BranchRouter.localBranch());
+        assertEquals("jdbc:h2:./db/database", BranchRouter.localUrl());
+    }
+
+    @Test
+    public void resolvesTheConfiguredLocalBranch() {
+        System.setProperty("library.branches", "north=./db/north, south = ./db/south");
+        assertEquals("north", BranchRouter.localBranch());
+        System.setProperty("library.branch", "south");
+        assertEquals("jdbc:h2:./db/south", BranchRouter.localUrl());
+        assertEquals(2, BranchRouter.branches().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnknownBranch() {
+        System.setProperty("library.branch", "east");
+        BranchRouter.localUrl();
+    }
+
+    @Test
+    public void searchMergesTheBranchesInTitleOrder() throws SQLException {
+        String north = branch("north", 3);
+        String south = branch("south", 2);
+        System.setProperty("library.branches", "north=" + north + ",south=" + south);
+
+        List<BranchRouter.BookHit> first = BranchRouter.searchBooks("book", 0, 3);
+        assertEquals(3, first.size());
+        assertEquals("book1", first.get(0).title());
+        assertEquals("north", first.get(0).branch());
+        assertEquals("book1", first.get(1).title());
+        assertEquals("south", first.get(1).branch());
+        assertEquals("book2", first.get(2).title());
+        assertEquals("north", first.get(2).branch());
+
+        List<BranchRouter.BookHit> second = BranchRouter.searchBooks("book", 3, 3);
+        assertEquals(2, second.size());
+        assertEquals("south", second.get(0).branch());
+        assertEquals("book3", second.get(1).title());
+    }
+
+    @Test
+    public void loanOfAnotherBranchShowsInTheHomeHistory() throws SQLException {
+        String north = branch("north", 2);
+        String south = branch("south", 2);
+        System.setProperty("library.branches", "north=" + north + ",south=" + south);
+        System.setProperty("library.branch", "north");
+
+        try (Connection home = DriverManager.getConnection("jdbc:h2:" + north);
+             Connection remote = DriverManager.getConnection("jdbc:h2:" + south)) {
+            int borrowingId = BranchRouter.borrowAcrossBranches(home, 2, "south", 1);
+
+            List<BranchRouter.BranchLoan> loans = BranchRouter.branchLoans(home, 2);
+            assertEquals(1, loans.size());
+            assertEquals("south", loans.get(0).branch());
+            assertEquals(borrowingId, loans.get(0).borrowingId());
+            assertNull(loans.get(0).returnDate());
+            assertFalse(Circulation.deleteUser(home, 2, null));
+
+            Circulation.returnCopy(remote, 1);
+            assertNotNull(BranchRouter.branchLoans(home, 2).get(0).returnDate());
+            try (Statement stmt = home.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT returndate FROM BRANCH_LOANS WHERE userid = 2")) {
+                assertTrue(rs.next());
+                assertNotNull(rs.getDate(1));
+            }
+        }
+    }
+
+    // H2 path of a fresh in-memory branch with the library schema
+    private static String branch(String name, int books) throws SQLException {
+        String path = "mem:" + name + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create("jdbc:h2:" + path, 5, books, books);
+        return path;
+    }
+}
@@ -0,0 +1,80 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class CatalogueSnapshotTest {
+    private Connection connection;
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        String url = "jdbc:h2:mem:snapshot" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 2, 3, 6);
+        connection = DriverManager.getConnection(url);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("UPDATE BOOKS SET title = 'Dune' WHERE id = 1");
+            stmt.execute("UPDATE BOOKS SET title = 'Dune Messiah' WHERE id = 2");
+            stmt.execute("UPDATE COPIES SET status = 'not Available' WHERE bookid = 2");
+        }
+        directory = Files.createTempDirectory("snapshot-test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(file);
+        }
+    }
+
+    @Test
+    public void searchesTitlesWithTheirPublisher() throws Exception {
+        CatalogueSnapshot snapshot = CatalogueSnapshot.build(connection, directory);
+        assertEquals(3, snapshot.size());
+
+        List<CatalogueSnapshot.Book> dune = snapshot.searchTitle("DUNE", 10);
+        assertEquals(2, dune.size());
+        assertEquals("Dune", dune.get(0).title());
+        assertEquals("Test Press", dune.get(0).publisherName());
+        assertEquals(2, dune.get(0).availableCopies());
+        assertEquals(0, dune.get(1).availableCopies());
+        assertTrue(snapshot.searchTitle("Emma", 10).isEmpty());
+    }
+
+    @Test
+    public void keepsOnlyTheNewestSnapshot() throws Exception {
+        Files.write(directory.resolve("catalogue-0000000000001.snap"), new byte[]{1});
+        Files.write(directory.resolve("catalogue-0000000000002.snap.tmp"), new byte[]{1});
+        CatalogueSnapshot built = CatalogueSnapshot.build(connection, directory);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count());
+        }
+        assertEquals(built.version(), CatalogueSnapshot.openLatest(directory).version());
+    }
+
+    @Test
+    public void remapsOnlyWhenANewerSnapshotAppears() throws Exception {
+        CatalogueSnapshot built = CatalogueSnapshot.build(connection, directory);
+        assertSame(built, CatalogueSnapshot.openIfNewer(directory, built));
+
+        Thread.sleep(2);
+        CatalogueSnapshot rebuilt = CatalogueSnapshot.build(connection, directory);
+        CatalogueSnapshot reopened = CatalogueSnapshot.openIfNewer(directory, built);
+        assertTrue(reopened != built);
+        assertEquals(rebuilt.version(), reopened.version());
+    }
+}
@@ -0,0 +1,135 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class CirculationLogTest {
+    private Connection connection;
+    private Path directory;
+    private CirculationLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        String url = "jdbc:h2:mem:events" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 10, 2, 4);
+        connection = DriverManager.getConnection(url);
+        ReservationQueue.getInstance().load(connection);
+        directory = Files.createTempDirectory("events-test");
+        log = CirculationLog.open(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.close();
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(file);
+        }
+    }
+
+    @Test
+    public void replayRebuildsCopiesAndOpenLoans() throws Exception {
+        Circulation.borrowCopy(connection, 2, 1);
+        Circulation.borrowCopy(connection, 2, 2);
+        Circulation.borrowCopy(connection, 3, 3);
+        long beforeReturn = System.currentTimeMillis();
+        Thread.sleep(5);
+        Circulation.returnCopy(connection, 2);
+        // Entered from paper, must not count as open
+        Circulation.recordPastLoan(connection, 4, 4, LocalDate.now().minusDays(30), LocalDate.now().minusDays(20));
+
+        Map<Integer, Integer> loans = CirculationLog.openLoansAsOf(directory, Long.MAX_VALUE);
+        assertEquals(Map.of(2, 1, 3, 1), loans);
+        assertEquals(Map.of(2, 2, 3, 1), CirculationLog.openLoansAsOf(directory, beforeReturn));
+
+        Map<Integer, String> copies = CirculationLog.copyStatusAsOf(directory, Long.MAX_VALUE);
+        assertEquals("not Available", copies.get(1));
+        assertEquals("Available", copies.get(2));
+        assertNull(copies.get(4));
+    }
+
+    @Test
+    public void failedTransactionsAreVoided() throws Exception {
+        Circulation.borrowCopy(connection, 2, 1);
+        try {
+            Circulation.borrowCopy(connection, 3, 1);
+            fail("lent a copy twice");
+        } catch (SQLException expected) {
+        }
+
+        CirculationLog.Transaction events = CirculationLog.begin();
+        events.record(CirculationLog.BORROW, 99, 5, 2, null);
+        events.record(CirculationLog.STATUS_CHANGE, 2, 0, 0, "not Available");
+        events.awaitDurable();
+        events.abort();
+
+        assertEquals(Map.of(2, 1), CirculationLog.openLoansAsOf(directory, Long.MAX_VALUE));
+        assertNull(CirculationLog.copyStatusAsOf(directory, Long.MAX_VALUE).get(2));
+    }
+
+    @Test
+    public void eventsAreDurableWhenTheLoanCommits() throws Exception {
+        int borrowingId = Circulation.borrowCopy(connection, 2, 1);
+        // Read from disk while the log is still open, without waiting for the flusher
+        List<CirculationLog.Event> events = new ArrayList<>();
+        CirculationLog.replay(directory, Long.MAX_VALUE, events::add);
+        assertEquals(2, events.size());
+        assertEquals(CirculationLog.BORROW, events.get(0).type());
+        assertEquals(borrowingId, events.get(0).a());
+
+        log.close();
+        log = CirculationLog.open(directory);
+        long next = log.append(CirculationLog.USER_CREATE, 11, 0, 0, "new@test");
+        assertEquals(events.get(1).sequence() + 1, next);
+    }
+
+    @Test
+    public void aNewLogStartsFromTheDatabase() throws Exception {
+        log.close();
+        // Loans made before there was a log
+        Circulation.borrowCopy(connection, 2, 1);
+        Circulation.borrowCopy(connection, 3, 2);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) Files.delete(file);
+        }
+
+        log = CirculationLog.open(directory, connection);
+        Circulation.returnCopy(connection, 1);
+        assertEquals(Map.of(3, 1), CirculationLog.openLoansAsOf(directory, Long.MAX_VALUE));
+        Map<Integer, String> copies = CirculationLog.copyStatusAsOf(directory, Long.MAX_VALUE);
+        assertEquals("Available", copies.get(1));
+        assertEquals("not Available", copies.get(2));
+        assertEquals("Available", copies.get(4));
+
+        // Only a new log is seeded
+        log.close();
+        log = CirculationLog.open(directory, connection);
+        assertEquals(Map.of(3, 1), CirculationLog.openLoansAsOf(directory, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void onlyOneWriterAtATime() throws Exception {
+        try {
+            CirculationLog.open(directory);
+            fail("opened a log that is already open");
+        } catch (IOException expected) {
+        }
+        assertSame(log, CirculationLog.getInstance());
+    }
+}
@@ -0,0 +1,26 @@
+package org.example;
+
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CirculationStressTest {
+
+    @Test
+    public void aShortRunLeavesNoInvariantViolations() throws Exception {
+        String url = "jdbc:h2:mem:stress" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        CirculationStress stress = new CirculationStress(url, 8);
+        stress.createSchema(50, 20, 100);
+
+        List<String> violations = stress.run(32, 2);
+        assertTrue(String.join("\n", violations), violations.isEmpty());
+
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+public class CoBorrowRecommenderTest {
+    private Connection connection;
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        String url = "jdbc:h2:mem:recommend" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        // Copy n belongs to book n + 1 (mod 10)
+        TestSchema.create(url, 10, 10, 10);
+        connection = DriverManager.getConnection(url);
+        file = Files.createTempDirectory("recommend-test").resolve("recommendations.bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+        // The file stays; the recommender still writes it back on shutdown
+    }
+
+    @Test
+    public void loansAfterTheLastSaveAreReplayedOnRestore() throws Exception {
+        loan(2, 1);
+        loan(2, 2);
+        loan(3, 1);
+        CoBorrowRecommender.loadOrBuild(connection, file, 60);
+        assertArrayEquals(new int[]{3}, CoBorrowRecommender.getInstance().recommend(3, 5));
+
+        // Committed while no recommender was listening, e.g. by another process
+        loan(4, 1);
+        loan(4, 5);
+        loan(3, 5);
+
+        CoBorrowRecommender restored = CoBorrowRecommender.loadOrBuild(connection, file, 60);
+        assertArrayEquals(new int[]{6}, restored.recommend(2, 5));
+        assertArrayEquals(new int[]{3}, restored.recommend(4, 5));
+        assertArrayEquals(new int[]{3}, restored.recommend(3, 5));
+    }
+
+    @Test
+    public void borrowingFeedsTheRunningRecommender() throws Exception {
+        loan(2, 1);
+        loan(2, 2);
+        CoBorrowRecommender engine = CoBorrowRecommender.loadOrBuild(connection, file, 60);
+
+        Circulation.borrowCopy(connection, 5, 1);
+        assertArrayEquals(new int[]{3}, engine.recommend(5, 5));
+    }
+
+    @Test
+    public void loansMadeDuringTheBuildAreReplayedOnPublish() throws Exception {
+        loan(2, 1);
+        loan(2, 2);
+        CoBorrowRecommender engine = CoBorrowRecommender.build(connection);
+
+        // Committed after the build read BORROWINGS, before anyone could feed it
+        loan(5, 1);
+        CoBorrowRecommender.publish(engine, connection);
+        assertSame(engine, CoBorrowRecommender.getInstance());
+        assertArrayEquals(new int[]{3}, engine.recommend(5, 5));
+    }
+
+    private void loan(int userId, int copyId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "INSERT INTO BORROWINGS(userid, copyid, borrowdate, returndate) VALUES (?, ?, CURRENT_DATE, CURRENT_DATE)")) {
+            stmt.setInt(1, userId);
+            stmt.setInt(2, copyId);
+            stmt.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+public class CopyBarcodeIndexTest {
+    private Connection connection;
+    private CopyBarcodeIndex index;
+
+    @Before
+    public void setUp() throws SQLException {
+        String url = "jdbc:h2:mem:barcodes" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        // Copy numbers equal copy ids here
+        TestSchema.create(url, 10, 2, 4);
+        connection = DriverManager.getConnection(url);
+        ReservationQueue.getInstance().load(connection);
+        index = CopyBarcodeIndex.load(connection);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void followsTheCirculationOfACopy() throws SQLException {
+        int bookId = Circulation.findBookId(connection, 1);
+        assertEquals(CopyBarcodeIndex.AVAILABLE, index.lookup(connection, 1).status());
+
+        Circulation.borrowCopy(connection, 2, 1);
+        assertEquals(CopyBarcodeIndex.ON_LOAN, index.lookup(connection, 1).status());
+
+        int reservationId = ReservationQueue.getInstance().reserve(connection, 3, bookId, 0);
+        Circulation.returnCopy(connection, 1);
+        assertEquals(CopyBarcodeIndex.ON_HOLD, index.lookup(connection, 1).status());
+
+        Circulation.cancelReservation(connection, reservationId);
+        assertEquals(CopyBarcodeIndex.AVAILABLE, index.lookup(connection, 1).status());
+    }
+
+    @Test
+    public void growsPastItsInitialSize() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("INSERT INTO COPIES(bookid, copynumber, status) SELECT 1, 1000 + X, 'Available' FROM SYSTEM_RANGE(1, 100)");
+        }
+        for (int n = 1001; n <= 1100; n++) assertNotNull(index.lookup(connection, n));
+        assertEquals(104, index.size());
+        assertEquals(3, index.lookup(connection, 3).copyId());
+        assertNull(index.lookup(connection, 5000));
+    }
+}
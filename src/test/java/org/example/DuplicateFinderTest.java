@@ -0,0 +1,116 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DuplicateFinderTest {
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        String url = "jdbc:h2:mem:dedup" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 5, 3, 3);
+        connection = DriverManager.getConnection(url);
+        ReservationQueue.getInstance().load(connection);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void minHashEstimatesTheJaccardSimilarity() {
+        String[][] pairs = {
+                {"the lord of the rings | j r r tolkien | allen unwin", "the lord of the ring | jrr tolkien | allen and unwin"},
+                {"a tale of two cities | charles dickens", "great expectations | charles dickens"},
+                {"war and peace | leo tolstoy", "the hobbit | j r r tolkien"},
+        };
+        for (String[] pair : pairs) {
+            double exact = jaccard(pair[0], pair[1]);
+            double estimated = DuplicateFinder.similarity(DuplicateFinder.minHash(pair[0]), DuplicateFinder.minHash(pair[1]));
+            assertEquals(pair[0] + " / " + pair[1], exact, estimated, 0.12);
+        }
+        assertEquals(1.0, DuplicateFinder.similarity(DuplicateFinder.minHash("same text"), DuplicateFinder.minHash("same text")), 0.0);
+    }
+
+    @Test
+    public void mergeAllOnlyMergesBooksWithTheSameIsbn() throws SQLException {
+        int first = addBook("The Hobbit", "978-0-261-10221-7");
+        int hyphenated = addBook("The Hobbit.", "9780261102217");
+        int typo = addBook("The  Hobbit", "9780261102218");
+        int otherEdition = addBook("The Hobbit", "9780007458424");
+        int noIsbn = addBook("the hobbit", null);
+
+        DuplicateFinder finder = new DuplicateFinder(connection);
+        List<List<Integer>> groups = new ArrayList<>();
+        for (DuplicateFinder.Cluster cluster : finder.findClusters(DuplicateFinder.Kind.BOOKS, 0.7)) {
+            // The generated "book1", "book2", ... are near duplicates of each other too
+            List<Integer> group = finder.survivorFirst(DuplicateFinder.Kind.BOOKS, cluster);
+            if (group.contains(first)) groups.add(group);
+        }
+        assertEquals(1, groups.size());
+        assertEquals(Set.of(first, hyphenated, typo, otherEdition, noIsbn), new HashSet<>(groups.get(0)));
+
+        List<List<Integer>> confirmed = finder.sameIsbn(groups);
+        assertEquals(List.of(List.of(first, hyphenated, typo)), confirmed);
+        assertEquals(2, finder.merge(DuplicateFinder.Kind.BOOKS, confirmed));
+        assertEquals(3, count("SELECT COUNT(*) FROM BOOKS WHERE LOWER(title) LIKE 'the%hobbit%'"));
+    }
+
+    @Test
+    public void editDistanceCountsSingleEdits() {
+        assertEquals(0, DuplicateFinder.editDistance("9780261102217", "9780261102217"));
+        assertEquals(1, DuplicateFinder.editDistance("9780261102217", "9780261102218"));
+        assertEquals(1, DuplicateFinder.editDistance("978026110221", "9780261102217"));
+        assertEquals(2, DuplicateFinder.editDistance("9780261102217", "9780261102271"));
+        assertEquals("080442957X", DuplicateFinder.normalizeIsbn("0-8044-2957-x"));
+    }
+
+    private static double jaccard(String a, String b) {
+        Set<String> x = shingles(a), y = shingles(b);
+        Set<String> union = new HashSet<>(x);
+        union.addAll(y);
+        x.retainAll(y);
+        return (double) x.size() / union.size();
+    }
+
+    private static Set<String> shingles(String text) {
+        String padded = " " + text + " ";
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) result.add(padded.substring(i, i + 3));
+        return result;
+    }
+
+    private int addBook(String title, String isbn) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "INSERT INTO BOOKS(title, author, publisher, publicationyear, isbn) VALUES (?, 'J. R. R. Tolkien', '1', 1937, ?)",
+                Statement.RETURN_GENERATED_KEYS)) {
+            stmt.setString(1, title);
+            stmt.setString(2, isbn);
+            stmt.executeUpdate();
+            try (ResultSet keys = stmt.getGeneratedKeys()) {
+                keys.next();
+                return keys.getInt(1);
+            }
+        }
+    }
+
+    private int count(String query) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.example;
+
+import org.junit.Test;
+
+import javax.swing.*;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.text.NumberFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+
+import static org.junit.Assert.*;
+
+public class FastTableTest {
+
+    @Test
+    public void rendererFormatsByTheColumnType() {
+        LocalDate day = LocalDate.of(2024, 3, 9);
+        FastTable.CachedRenderer dates = FastTable.CachedRenderer.forValue(Date.valueOf(day));
+        assertEquals(DateTimeFormatter.ofLocalizedDate(FormatStyle.MEDIUM).format(day), dates.text(Date.valueOf(day)));
+        assertEquals(SwingConstants.LEADING, dates.getHorizontalAlignment());
+
+        LocalDateTime time = day.atTime(14, 5);
+        assertEquals(DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM, FormatStyle.SHORT).format(time),
+                dates.text(Timestamp.valueOf(time)));
+
+        FastTable.CachedRenderer amounts = FastTable.CachedRenderer.forValue(new BigDecimal("1234.5"));
+        NumberFormat format = NumberFormat.getNumberInstance();
+        format.setMinimumFractionDigits(2);
+        assertEquals(format.format(1234.5), amounts.text(new BigDecimal("1234.5")));
+        assertEquals(SwingConstants.RIGHT, amounts.getHorizontalAlignment());
+
+        // Ids and years are not grouped
+        FastTable.CachedRenderer ids = FastTable.CachedRenderer.forValue(2024);
+        assertEquals("2024", ids.text(2024));
+        assertEquals("123456789", ids.text(123456789));
+        assertEquals(SwingConstants.RIGHT, ids.getHorizontalAlignment());
+    }
+}
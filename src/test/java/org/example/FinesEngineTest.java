@@ -0,0 +1,99 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.time.LocalDate;
+
+import static org.junit.Assert.*;
+
+public class FinesEngineTest {
+    // 14 days on loan, then 10 cents a day after 2 days of grace, at most 1.00;
+    // librarians pay nothing
+    private static final FinesEngine.FineRules RULES = new FinesEngine.FineRules(14,
+            new FinesEngine.FineRule(10, 100, 2), new FinesEngine.FineRule(0, 0, 0));
+
+    private String url;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        url = "jdbc:h2:mem:fines" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 10, 5, 10);
+        connection = DriverManager.getConnection(url);
+        ReservationQueue.getInstance().load(connection);
+        LoanCounters.load(connection, RULES);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void rulesApplyGraceCapAndUserType() {
+        assertEquals(0, RULES.fine(14, false));
+        assertEquals(0, RULES.fine(16, false));
+        assertEquals(30, RULES.fine(17, false));
+        assertEquals(100, RULES.fine(40, false));
+        assertEquals(0, RULES.fine(40, true));
+    }
+
+    @Test
+    public void theFineChargedOnReturnIsTheNightlyFine() throws SQLException {
+        int late = Circulation.borrowCopy(connection, 2, 1, LocalDate.now().minusDays(19));
+        int capped = Circulation.borrowCopy(connection, 3, 2, LocalDate.now().minusDays(60));
+        Circulation.borrowCopy(connection, 1, 3, LocalDate.now().minusDays(60));
+
+        FinesEngine engine = new FinesEngine(url, RULES, 2);
+        FinesEngine.RunReport report = engine.run();
+        engine.close();
+        assertEquals(3, report.loans());
+        assertEquals(2, report.fined());
+        assertEquals(50, nightlyFine(late));
+        assertEquals(100, nightlyFine(capped));
+
+        Circulation.returnCopy(connection, 1);
+        Circulation.returnCopy(connection, 2);
+        Circulation.returnCopy(connection, 3);
+        LoanCounters counters = LoanCounters.getInstance();
+        assertEquals(50, counters.get(2).fineCents());
+        assertEquals(100, counters.get(3).fineCents());
+        assertEquals(0, counters.get(1).fineCents());
+        assertEquals(0, counters.get(2).overdueLoans());
+    }
+
+    @Test
+    public void eachRunClosesItsWorkerConnections() throws SQLException {
+        Circulation.borrowCopy(connection, 2, 1, LocalDate.now().minusDays(19));
+        int before = sessions();
+        FinesEngine engine = new FinesEngine(url, RULES, 4);
+        for (int night = 0; night < 3; night++) {
+            engine.run();
+            assertEquals(before, sessions());
+        }
+        engine.close();
+    }
+
+    private int sessions() throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SESSIONS")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private long nightlyFine(int borrowingId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT amountcents FROM LOAN_FINES WHERE borrowingid = ?")) {
+            stmt.setInt(1, borrowingId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                assertTrue(rs.next());
+                return rs.getLong(1);
+            }
+        }
+    }
+}
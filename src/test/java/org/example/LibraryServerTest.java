@@ -0,0 +1,99 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+public class LibraryServerTest {
+    private LibraryServer server;
+    private Connection connection;
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @Before
+    public void setUp() throws Exception {
+        String url = "jdbc:h2:mem:server" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 10, 3, 6);
+        connection = DriverManager.getConnection(url);
+        server = new LibraryServer(url, 0, 2, null);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        server.stop();
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void returningACopyThatIsNotOnLoanIsAConflict() throws Exception {
+        assertEquals(409, post("/returns?copyId=1").statusCode());
+        assertEquals(201, post("/loans?userId=2&copyId=1").statusCode());
+        assertEquals(200, post("/returns?copyId=1").statusCode());
+        assertEquals(409, post("/returns?copyId=1").statusCode());
+    }
+
+    @Test
+    public void etagsRevalidatePerUrl() throws Exception {
+        HttpResponse<String> first = get("/books/1", null);
+        String etag = first.headers().firstValue("ETag").orElseThrow();
+        assertEquals(304, get("/books/1", etag).statusCode());
+        // Another book never matches the tag of the first one
+        assertEquals(200, get("/books/2", etag).statusCode());
+
+        HttpResponse<String> loan = post("/loans?userId=2&copyId=1");
+        assertEquals(loan.body(), 201, loan.statusCode());
+        assertEquals(200, get("/books/1", etag).statusCode());
+    }
+
+    @Test
+    public void etagsFollowChangesMadeOutsideTheServer() throws Exception {
+        String etag = get("/books/1", null).headers().firstValue("ETag").orElseThrow();
+        assertEquals(304, get("/books/1", etag).statusCode());
+
+        // A loan at the desk, on its own connection
+        Circulation.borrowCopy(connection, 2, 2);
+        HttpResponse<String> changed = get("/books/1", etag);
+        assertEquals(200, changed.statusCode());
+        etag = changed.headers().firstValue("ETag").orElseThrow();
+
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("UPDATE BOOKS SET title = 'renamed', version = version + 1 WHERE id = 1");
+        }
+        assertEquals(200, get("/books/1", etag).statusCode());
+    }
+
+    @Test
+    public void reservationsCanBeMadeAndCancelled() throws Exception {
+        HttpResponse<String> created = post("/reservations?userId=3&bookId=1");
+        assertEquals(201, created.statusCode());
+        int id = Integer.parseInt(created.body().replaceAll("\\D", ""));
+        HttpRequest delete = HttpRequest.newBuilder(uri("/reservations/" + id)).DELETE().build();
+        assertEquals(200, client.send(delete, HttpResponse.BodyHandlers.ofString()).statusCode());
+        assertEquals(409, client.send(delete, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.port() + path);
+    }
+
+    private HttpResponse<String> get(String path, String etag) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri(path));
+        if (etag != null) request.header("If-None-Match", etag);
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> post(String path) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri(path)).POST(HttpRequest.BodyPublishers.noBody()).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,118 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class LoanCountersTest {
+    private static final int USERS = 20;
+    private static final int COPIES = 200;
+
+    private String url;
+    private Connection connection;
+    private LoanCounters counters;
+
+    @Before
+    public void setUp() throws SQLException {
+        url = "jdbc:h2:mem:counters" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, USERS, 50, COPIES);
+        connection = DriverManager.getConnection(url);
+        ReservationQueue.getInstance().load(connection);
+        counters = LoanCounters.load(connection);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void enforcesTheLimitPerUser() throws SQLException {
+        for (int copy = 1; copy <= 5; copy++) Circulation.borrowCopy(connection, 2, copy);
+        try {
+            Circulation.borrowCopy(connection, 2, 6);
+            fail("sixth loan accepted");
+        } catch (SQLException expected) {
+        }
+        assertEquals(5, counters.get(2).openLoans());
+        Circulation.returnCopy(connection, 1);
+        Circulation.borrowCopy(connection, 2, 6);
+        assertEquals(5, counters.get(2).openLoans());
+    }
+
+    @Test
+    public void reconcilingDuringLoansOnOtherConnectionsLosesNothing() throws Exception {
+        ExecutorService desks = Executors.newFixedThreadPool(4);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread reconciler = new Thread(() -> {
+            try (Connection own = DriverManager.getConnection(url)) {
+                while (running.get()) counters.reconcile(own);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        reconciler.start();
+
+        List<Future<?>> work = new ArrayList<>();
+        for (int desk = 0; desk < 4; desk++) {
+            int first = desk * (COPIES / 4) + 1;
+            work.add(desks.submit(() -> {
+                try (Connection own = DriverManager.getConnection(url)) {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 300; i++) {
+                        int copy = first + random.nextInt(COPIES / 4);
+                        try {
+                            if (random.nextBoolean()) Circulation.borrowCopy(own, 2 + random.nextInt(USERS - 1), copy);
+                            else Circulation.returnCopy(own, copy);
+                        } catch (SQLException refused) {
+                            // limit reached, copy on loan or not on loan
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : work) future.get(60, TimeUnit.SECONDS);
+        running.set(false);
+        reconciler.join();
+        desks.shutdown();
+
+        // Nothing drifted, so a final recount has nothing to correct
+        assertEquals(0, counters.reconcile(connection));
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT userid, COUNT(*) FROM BORROWINGS WHERE returndate IS NULL GROUP BY userid")) {
+            while (rs.next()) {
+                assertEquals(rs.getInt(2), counters.get(rs.getInt(1)).openLoans());
+                assertTrue(rs.getInt(2) <= 5);
+            }
+        }
+    }
+
+    @Test
+    public void returnsLowerOnlyTheOverdueLoansAReconcileMarked() throws SQLException {
+        LocalDate longAgo = LocalDate.now().minusDays(LoanCounters.loanDays() + 10);
+        Circulation.borrowCopy(connection, 2, 1, longAgo);
+        Circulation.borrowCopy(connection, 2, 2, longAgo);
+        counters.reconcile(connection);
+        assertEquals(2, counters.get(2).overdueLoans());
+
+        // Overdue already, but no reconcile has counted it yet
+        Circulation.borrowCopy(connection, 2, 3, longAgo);
+        Circulation.returnCopy(connection, 3);
+        assertEquals(2, counters.get(2).overdueLoans());
+        Circulation.returnCopy(connection, 1);
+        assertEquals(1, counters.get(2).overdueLoans());
+        assertEquals(0, counters.reconcile(connection));
+    }
+}
@@ -0,0 +1,52 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PrefixIndexTest {
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        String url = "jdbc:h2:mem:prefix" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 5, 2, 2);
+        connection = DriverManager.getConnection(url);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("UPDATE USERS SET name = 'Prefix Five', email = 'prefix5@index' WHERE id = 5");
+        }
+        PrefixIndex.loadAll(connection);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void addingAnIdAgainReplacesItsEarlierKeys() {
+        assertEquals(5, PrefixIndex.USERS.suggest("prefix five", 5).get(0).id());
+        PrefixIndex.USERS.remove(5);
+        assertTrue(PrefixIndex.USERS.suggest("prefix five", 5).isEmpty());
+
+        // The loaded keys stay gone once the user is back under new ones
+        PrefixIndex.USERS.add(5, "5 Renamed Five <renamed5@index>", "Renamed Five", "renamed5@index");
+        assertTrue(PrefixIndex.USERS.suggest("prefix five", 5).isEmpty());
+        assertTrue(PrefixIndex.USERS.suggest("prefix5@", 5).isEmpty());
+        List<PrefixIndex.Suggestion> renamed = PrefixIndex.USERS.suggest("renamed five", 5);
+        assertEquals(1, renamed.size());
+        assertEquals("5 Renamed Five <renamed5@index>", renamed.get(0).label());
+
+        // And so do the keys of the previous add
+        PrefixIndex.USERS.add(5, "5 Again Five <renamed5@index>", "Again Five", "renamed5@index");
+        assertTrue(PrefixIndex.USERS.suggest("renamed five", 5).isEmpty());
+        assertEquals("5 Again Five <renamed5@index>", PrefixIndex.USERS.suggest("renamed5@", 5).get(0).label());
+    }
+}
@@ -0,0 +1,104 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReminderOutboxTest {
+    private Connection connection;
+    private final List<ReminderOutbox.Reminder> delivered = new ArrayList<>();
+    private boolean gatewayDown;
+
+    @Before
+    public void setUp() throws SQLException {
+        String url = "jdbc:h2:mem:reminders" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 10, 5, 10);
+        connection = DriverManager.getConnection(url);
+        ReservationQueue.getInstance().load(connection);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void failedDeliveriesBackOffExponentiallyThenGiveUp() throws SQLException {
+        ReminderOutbox outbox = new ReminderOutbox(connection, this::send, 10);
+        Circulation.borrowCopy(connection, 2, 1, LocalDate.now().minusDays(LoanCounters.loanDays() - 1));
+        assertEquals(1, outbox.enqueueDue(2));
+        assertEquals(0, outbox.enqueueDue(2));
+
+        gatewayDown = true;
+        assertEquals(1, outbox.deliverBatch());
+        assertEquals(30, secondsUntilRetry(), 2);
+        // Not due again until the backoff has passed
+        assertEquals(0, outbox.deliverBatch());
+
+        makeDue();
+        assertEquals(1, outbox.deliverBatch());
+        assertEquals(60, secondsUntilRetry(), 2);
+        makeDue();
+        assertEquals(1, outbox.deliverBatch());
+        assertEquals(120, secondsUntilRetry(), 2);
+
+        execute("UPDATE REMINDER_OUTBOX SET attempts = 7");
+        makeDue();
+        assertEquals(1, outbox.deliverBatch());
+        assertEquals("Failed", queryString("SELECT status FROM REMINDER_OUTBOX"));
+        assertTrue(delivered.isEmpty());
+    }
+
+    @Test
+    public void aRetryThatGetsThroughIsSentOnce() throws SQLException {
+        ReminderOutbox outbox = new ReminderOutbox(connection, this::send, 10);
+        Circulation.borrowCopy(connection, 2, 1, LocalDate.now().minusDays(LoanCounters.loanDays()));
+        outbox.enqueueDue(2);
+
+        gatewayDown = true;
+        outbox.deliverBatch();
+        gatewayDown = false;
+        makeDue();
+        assertEquals(1, outbox.deliverBatch());
+        assertEquals(0, outbox.deliverBatch());
+        assertEquals(1, delivered.size());
+        assertEquals("Sent", queryString("SELECT status FROM REMINDER_OUTBOX"));
+        assertEquals("2", queryString("SELECT attempts FROM REMINDER_OUTBOX"));
+    }
+
+    private void send(List<ReminderOutbox.Reminder> batch) throws IOException {
+        if (gatewayDown) throw new IOException("gateway down");
+        delivered.addAll(batch);
+    }
+
+    private void makeDue() throws SQLException {
+        execute("UPDATE REMINDER_OUTBOX SET nextattempt = DATEADD(SECOND, -1, CURRENT_TIMESTAMP)");
+    }
+
+    private long secondsUntilRetry() throws SQLException {
+        return Long.parseLong(queryString("SELECT DATEDIFF(SECOND, CURRENT_TIMESTAMP, nextattempt) FROM REMINDER_OUTBOX"));
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private String queryString(String query) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            assertTrue(rs.next());
+            return rs.getString(1);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class ReservationQueueTest {
+    private Connection connection;
+    private final ReservationQueue queue = ReservationQueue.getInstance();
+
+    @Before
+    public void setUp() throws SQLException {
+        String url = "jdbc:h2:mem:reservations" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 10, 2, 2);
+        connection = DriverManager.getConnection(url);
+        queue.load(connection);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void higherPriorityGoesFirstThenFifo() throws SQLException {
+        int first = queue.reserve(connection, 2, 1, 0);
+        int second = queue.reserve(connection, 3, 1, 0);
+        int urgent = queue.reserve(connection, 4, 1, 2);
+
+        ReentrantLock bookLock = queue.lockFor(1);
+        bookLock.lock();
+        try {
+            assertEquals(urgent, queue.peekNext(1).id);
+            queue.removeHead(1, queue.peekNext(1));
+            assertEquals(first, queue.peekNext(1).id);
+            queue.removeHead(1, queue.peekNext(1));
+            assertEquals(second, queue.peekNext(1).id);
+        } finally {
+            bookLock.unlock();
+        }
+    }
+
+    @Test
+    public void cancelledReservationsAreSkipped() throws SQLException {
+        int first = queue.reserve(connection, 2, 1, 1);
+        int second = queue.reserve(connection, 3, 1, 1);
+
+        assertTrue(queue.cancel(connection, first));
+        assertFalse(queue.cancel(connection, first));
+        ReentrantLock bookLock = queue.lockFor(1);
+        bookLock.lock();
+        try {
+            assertEquals(second, queue.peekNext(1).id);
+        } finally {
+            bookLock.unlock();
+        }
+    }
+
+    @Test
+    public void returnedCopyIsHeldForTheHolderOnly() throws SQLException {
+        int bookId = Circulation.findBookId(connection, 1);
+        Circulation.borrowCopy(connection, 2, 1);
+        int reservationId = queue.reserve(connection, 3, bookId, 0);
+
+        assertEquals(reservationId, Circulation.returnCopy(connection, 1));
+        assertEquals(ReservationQueue.STATUS_ON_HOLD, copyStatus(1));
+
+        try {
+            Circulation.borrowCopy(connection, 4, 1);
+            fail("a copy on hold was lent to somebody else");
+        } catch (SQLException expected) {
+            assertEquals(ReservationQueue.STATUS_ON_HOLD, copyStatus(1));
+        }
+
+        Circulation.borrowCopy(connection, 3, 1);
+        assertEquals("not Available", copyStatus(1));
+        assertEquals("Fulfilled", reservationStatus(reservationId));
+        assertTrue(CirculationStress.checkInvariants(connection).isEmpty());
+    }
+
+    @Test
+    public void cancellingAHoldPassesTheCopyOn() throws SQLException {
+        int bookId = Circulation.findBookId(connection, 1);
+        Circulation.borrowCopy(connection, 2, 1);
+        int held = queue.reserve(connection, 3, bookId, 0);
+        int next = queue.reserve(connection, 4, bookId, 0);
+        Circulation.returnCopy(connection, 1);
+
+        assertTrue(Circulation.cancelReservation(connection, held));
+        assertEquals("Cancelled", reservationStatus(held));
+        assertEquals("Assigned", reservationStatus(next));
+        assertEquals(ReservationQueue.STATUS_ON_HOLD, copyStatus(1));
+
+        assertTrue(Circulation.cancelReservation(connection, next));
+        assertEquals("Available", copyStatus(1));
+        assertFalse(Circulation.cancelReservation(connection, next));
+    }
+
+    @Test
+    public void deletingAUserCancelsTheirReservations() throws SQLException {
+        int bookId = Circulation.findBookId(connection, 1);
+        int otherBookId = Circulation.findBookId(connection, 2);
+        Circulation.borrowCopy(connection, 2, 1);
+        int held = queue.reserve(connection, 3, bookId, 0);
+        int next = queue.reserve(connection, 4, bookId, 0);
+        int waiting = queue.reserve(connection, 3, otherBookId, 2);
+        Circulation.returnCopy(connection, 1);
+
+        assertTrue(Circulation.deleteUser(connection, 3, null));
+        assertEquals(0, queryInt("SELECT COUNT(*) FROM RESERVATIONS WHERE id IN (?, ?)", held, waiting));
+        assertEquals("Assigned", reservationStatus(next));
+        assertEquals(ReservationQueue.STATUS_ON_HOLD, copyStatus(1));
+        assertEquals(0, queue.waitingCount());
+        ReentrantLock bookLock = queue.lockFor(otherBookId);
+        bookLock.lock();
+        try {
+            assertNull(queue.peekNext(otherBookId));
+        } finally {
+            bookLock.unlock();
+        }
+        assertTrue(CirculationStress.checkInvariants(connection).isEmpty());
+    }
+
+    private int queryInt(String query, int first, int second) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+            stmt.setInt(1, first);
+            stmt.setInt(2, second);
+            try (ResultSet rs = stmt.executeQuery()) {
+                assertTrue(rs.next());
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private String copyStatus(int copyId) throws SQLException {
+        return queryString("SELECT status FROM COPIES WHERE id = ?", copyId);
+    }
+
+    private String reservationStatus(int reservationId) throws SQLException {
+        return queryString("SELECT status FROM RESERVATIONS WHERE id = ?", reservationId);
+    }
+
+    private String queryString(String query, int id) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+            stmt.setInt(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                assertTrue(rs.next());
+                return rs.getString(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.example;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScreenProfilerTest {
+
+    @Test
+    public void loaderPhasesKeepTheScreenTheyWereStartedFrom() throws Exception {
+        Path file = Files.createTempFile("screen-test", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("library.*");
+            recording.start();
+
+            ScreenProfiler.Phase frame = ScreenProfiler.frame("createMainWindowUser");
+            ScreenProfiler.Phase ready = ScreenProfiler.screenReady();
+            frame.end();
+            Thread loader = Thread.ofVirtual().start(ScreenProfiler.onScreen(() -> ScreenProfiler.query("SELECT 1").end(1)));
+            loader.join();
+            ready.end();
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        RecordedEvent query = only(events, "library.Query");
+        assertEquals("createMainWindowUser", query.getString("screen"));
+        assertEquals(1, query.getInt("rows"));
+        RecordedEvent screenReady = only(events, "library.ScreenReady");
+        RecordedEvent frame = only(events, "library.FrameConstruction");
+        // The screen is ready only after the loader's query
+        assertTrue(screenReady.getEndTime().compareTo(query.getEndTime()) >= 0);
+        assertTrue(screenReady.getEndTime().compareTo(frame.getEndTime()) >= 0);
+    }
+
+    private static RecordedEvent only(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> named = events.stream().filter(e -> e.getEventType().getName().equals(name)).toList();
+        assertEquals(name, 1, named.size());
+        return named.get(0);
+    }
+}
@@ -0,0 +1,37 @@
+package org.example;
+
+import java.sql.*;
+
+// Library schema for the tests: the tables of ./db/database plus the ones the
+// desk creates on start, filled with synthetic rows.
+//   users    "user<n>" <user<n>@test>, user 1 is a librarian
+//   books    "book<n>", isbn "isbn<n>", all from publisher 1 "Test Press"
+//   copies   copy n has copy number n and belongs to book (n mod books) + 1, all Available
+final class TestSchema {
+
+    private TestSchema() {
+    }
+
+    static void create(String url, int users, int books, int copies) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE PUBLISHERS(id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR, address VARCHAR, phonenumber VARCHAR)");
+            stmt.execute("CREATE TABLE BOOKS(id INT AUTO_INCREMENT PRIMARY KEY, title VARCHAR, author VARCHAR, " +
+                    "publisher VARCHAR REFERENCES PUBLISHERS(id), publicationyear INT, isbn VARCHAR UNIQUE)");
+            stmt.execute("CREATE TABLE USERS(id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR, email VARCHAR UNIQUE, phonenumber VARCHAR, address VARCHAR)");
+            stmt.execute("CREATE TABLE LIBRARIANS(id INT AUTO_INCREMENT PRIMARY KEY, userid INT NOT NULL REFERENCES USERS(id), employmentdate DATE, position VARCHAR)");
+            stmt.execute("CREATE TABLE COPIES(id INT AUTO_INCREMENT PRIMARY KEY, bookid INT REFERENCES BOOKS(id), copynumber INT NOT NULL UNIQUE, status VARCHAR)");
+            stmt.execute("CREATE TABLE BORROWINGS(id INT AUTO_INCREMENT PRIMARY KEY, userid INT NOT NULL REFERENCES USERS(id), " +
+                    "copyid INT NOT NULL REFERENCES COPIES(id), borrowdate DATE NOT NULL, returndate DATE)");
+            stmt.execute("INSERT INTO PUBLISHERS(name) VALUES ('Test Press')");
+            stmt.execute("INSERT INTO USERS(name, email) SELECT 'user' || X, 'user' || X || '@test' FROM SYSTEM_RANGE(1, " + users + ")");
+            stmt.execute("INSERT INTO LIBRARIANS(userid, position) VALUES (1, 'Librarian')");
+            stmt.execute("INSERT INTO BOOKS(title, author, publisher, publicationyear, isbn) " +
+                    "SELECT 'book' || X, 'author', 1, 2000, 'isbn' || X FROM SYSTEM_RANGE(1, " + books + ")");
+            stmt.execute("INSERT INTO COPIES(bookid, copynumber, status) " +
+                    "SELECT MOD(X, " + books + ") + 1, X, 'Available' FROM SYSTEM_RANGE(1, " + copies + ")");
+            ReservationQueue.createTable(connection);
+            BranchRouter.createTable(connection);
+        }
+    }
+}
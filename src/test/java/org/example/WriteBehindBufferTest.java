@@ -0,0 +1,112 @@
+package org.example;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindBufferTest {
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        String url = "jdbc:h2:mem:writebehind" + System.nanoTime() + ";DB_CLOSE_DELAY=-1";
+        TestSchema.create(url, 5, 5, 1);
+        connection = DriverManager.getConnection(url);
+        WriteBehindBuffer.addVersionColumns(connection);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void editsOfOneRowAreCoalesced() throws SQLException {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(connection);
+        buffer.rememberVersion("USERS", 2, 0);
+        buffer.edit("USERS", 2, "name", "Ann");
+        buffer.edit("USERS", 2, "address", "Main St");
+        buffer.edit("USERS", 2, "name", "Anna");
+        assertEquals(1, buffer.pendingCount());
+
+        WriteBehindBuffer.FlushResult result = buffer.flush("USERS");
+        assertEquals(1, result.updated());
+        assertTrue(result.conflicts().isEmpty());
+        assertEquals("Anna", queryString("SELECT name FROM USERS WHERE id = 2"));
+        assertEquals("1", queryString("SELECT version FROM USERS WHERE id = 2"));
+
+        // The buffer now expects the bumped version
+        buffer.edit("USERS", 2, "name", "Anne");
+        assertEquals(1, buffer.flush("USERS").updated());
+    }
+
+    @Test
+    public void savedEditsReachTheAutocompleteIndex() throws SQLException {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(connection);
+        buffer.edit("USERS", 3, "name", "Quentin Writebehind");
+        buffer.edit("BOOKS", 4, "title", "Quixotic Writebehind");
+        buffer.flush("USERS");
+        buffer.flush("BOOKS");
+
+        List<PrefixIndex.Suggestion> users = PrefixIndex.USERS.suggest("quentin writebehind", 5);
+        assertEquals(1, users.size());
+        assertEquals(3, users.get(0).id());
+        assertEquals("3 Quentin Writebehind <user3@test>", users.get(0).label());
+        List<PrefixIndex.Suggestion> books = PrefixIndex.BOOKS.suggest("quixotic", 5);
+        assertEquals(1, books.size());
+        assertEquals(4, books.get(0).id());
+    }
+
+    @Test
+    public void aRowChangedElsewhereIsAConflict() throws SQLException {
+        WriteBehindBuffer first = new WriteBehindBuffer(connection);
+        WriteBehindBuffer second = new WriteBehindBuffer(connection);
+        for (WriteBehindBuffer buffer : new WriteBehindBuffer[]{first, second}) {
+            buffer.rememberVersion("BOOKS", 1, 0);
+            buffer.rememberVersion("BOOKS", 2, 0);
+        }
+        first.edit("BOOKS", 1, "title", "First");
+        second.edit("BOOKS", 1, "title", "Second");
+        second.edit("BOOKS", 2, "title", "Untouched elsewhere");
+
+        assertEquals(1, first.flush("BOOKS").updated());
+        WriteBehindBuffer.FlushResult result = second.flush("BOOKS");
+        assertEquals(1, result.updated());
+        assertEquals(1, result.conflicts().size());
+        assertTrue(result.conflicts().get(0).startsWith("BOOKS row 1"));
+        assertEquals("First", queryString("SELECT title FROM BOOKS WHERE id = 1"));
+        assertEquals("Untouched elsewhere", queryString("SELECT title FROM BOOKS WHERE id = 2"));
+    }
+
+    @Test
+    public void aBadValueOnlyFailsItsOwnRow() throws SQLException {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(connection);
+        buffer.edit("USERS", 2, "email", "user3@test");
+        buffer.edit("USERS", 4, "email", "new@test");
+
+        WriteBehindBuffer.FlushResult result = buffer.flush("USERS");
+        assertEquals(1, result.updated());
+        assertEquals(1, result.conflicts().size());
+        assertTrue(result.conflicts().get(0).startsWith("USERS row 2 not saved"));
+        assertEquals("new@test", queryString("SELECT email FROM USERS WHERE id = 4"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void borrowingsAreNotEditable() {
+        new WriteBehindBuffer(connection).edit("BORROWINGS", 1, "returndate", null);
+    }
+
+    private String queryString(String query) throws SQLException {
+        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            assertTrue(rs.next());
+            return rs.getString(1);
+        }
+    }
+}